@@ -0,0 +1,74 @@
+package ixa.storm;
+
+import ixa.kaflib.KAFDocument;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import org.bson.BSON;
+import org.openjdk.jmh.annotations.*;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+
+// Throughput of the NAF -> DBObject mapping (encode) and of the DBObject -> NAF reconstruction (decode)
+// of each layer, without a MongoDB server. Decoding a layer also decodes the layers it is anchored to
+// (e.g. terms needs text), as getNaf does. Run with "-prof gc" to get the allocation rate.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+
+    @Param({"1000", "10000"})
+    public int tokens;
+
+    // Entities per token
+    @Param({"0.1"})
+    public double entityDensity;
+
+    // Predicates per token
+    @Param({"0.1"})
+    public double srlDensity;
+
+    @Param({"4"})
+    public int treeDepth;
+
+    @Param({"text", "terms", "entities", "deps", "constituency", "srl"})
+    public String layer;
+
+    private MongoNaf.Mapping mapping;
+    private KAFDocument naf;
+    private Map<String, List<DBObject>> layerObjs;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	this.mapping = new MongoNaf.Mapping();
+	this.naf = NafGenerator.generate(this.tokens, this.entityDensity, this.srlDensity, this.treeDepth, 42);
+	// Objects as read from MongoDB: the layers needed to rebuild the benchmarked one, through BSON
+	this.layerObjs = new HashMap<String, List<DBObject>>();
+	for (Map.Entry<String, List<DBObject>> entry : this.mapping.mapWithAnchors(this.naf, this.layer).entrySet()) {
+	    List<DBObject> objs = new ArrayList<DBObject>();
+	    for (DBObject obj : entry.getValue()) {
+		objs.add(new DefaultDBDecoder().decode(BSON.encode(obj), (DBCollection) null));
+	    }
+	    this.layerObjs.put(entry.getKey(), objs);
+	}
+    }
+
+    @Benchmark
+    public List<DBObject> encode() {
+	return this.mapping.map(this.naf, this.layer);
+    }
+
+    @Benchmark
+    public KAFDocument decode() {
+	return this.mapping.build(this.layerObjs);
+    }
+
+}
@@ -0,0 +1,116 @@
+package ixa.storm;
+
+import ixa.kaflib.*;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Random;
+
+
+// Generates synthetic NAF documents for the benchmarks: sentences of SENTENCE_LENGTH tokens, each one
+// with a term per token, a dependency chain, a constituency tree of the given depth, and entities and
+// predicates (with two roles each) for the given fraction of tokens.
+class NafGenerator {
+
+    static final int SENTENCE_LENGTH = 20;
+    static final int PARAGRAPH_LENGTH = 10;
+
+    private static final String[] POS = {"N", "V", "A", "R", "D", "P"};
+    private static final String[] ENTITY_TYPES = {"PERSON", "LOCATION", "ORGANIZATION", "MISC"};
+
+
+    static KAFDocument generate(int tokens, double entityDensity, double srlDensity, int treeDepth, long seed)
+	throws Exception
+    {
+	Random random = new Random(seed);
+	KAFDocument naf = new KAFDocument("en", "v3");
+	int offset = 0;
+	for (int sentStart = 0; sentStart < tokens; sentStart += SENTENCE_LENGTH) {
+	    int sent = sentStart / SENTENCE_LENGTH + 1;
+	    List<Term> terms = new ArrayList<Term>();
+	    for (int i = sentStart; i < Math.min(sentStart + SENTENCE_LENGTH, tokens); i++) {
+		String form = "token" + random.nextInt(5000);
+		WF wf = naf.newWF(form, offset, sent);
+		wf.setPara((sent - 1) / PARAGRAPH_LENGTH + 1);
+		wf.setLength(form.length());
+		offset += form.length() + 1;
+		List<WF> wfs = new ArrayList<WF>();
+		wfs.add(wf);
+		Term term = naf.newTerm(KAFDocument.newWFSpan(wfs));
+		term.setType("open");
+		term.setLemma(form.toLowerCase());
+		term.setPos(POS[random.nextInt(POS.length)]);
+		term.setMorphofeat(term.getPos() + "S");
+		terms.add(term);
+	    }
+	    addDeps(naf, terms);
+	    addTree(naf, terms, treeDepth);
+	    addEntities(naf, terms, entityDensity, random);
+	    addPredicates(naf, terms, srlDensity, random);
+	}
+	return naf;
+    }
+
+    private static void addDeps(KAFDocument naf, List<Term> terms)
+    {
+	for (int i = 1; i < terms.size(); i++) {
+	    naf.newDep(terms.get(i - 1), terms.get(i), (i % 2 == 0) ? "nmod" : "dobj");
+	}
+    }
+
+    private static void addTree(KAFDocument naf, List<Term> terms, int depth)
+	throws Exception
+    {
+	naf.newConstituent(createNode(naf, terms, 0, terms.size(), depth));
+    }
+
+    // Non-terminal node splitting the terms in two halves until depth is reached
+    private static TreeNode createNode(KAFDocument naf, List<Term> terms, int from, int to, int depth)
+	throws Exception
+    {
+	NonTerminal node = naf.newNonTerminal((depth % 2 == 0) ? "NP" : "VP");
+	if (depth <= 1 || to - from < 2) {
+	    // A preterminal, labelled with the POS, per term
+	    for (int i = from; i < to; i++) {
+		NonTerminal pos = naf.newNonTerminal(terms.get(i).getPos());
+		pos.addChild(naf.newTerminal(KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(i, i + 1)))));
+		node.addChild(pos);
+	    }
+	} else {
+	    int middle = (from + to) / 2;
+	    node.addChild(createNode(naf, terms, from, middle, depth - 1));
+	    node.addChild(createNode(naf, terms, middle, to, depth - 1));
+	}
+	return node;
+    }
+
+    private static void addEntities(KAFDocument naf, List<Term> terms, double density, Random random)
+    {
+	int count = (int) Math.round(terms.size() * density);
+	for (int i = 0; i < count; i++) {
+	    int from = random.nextInt(terms.size());
+	    int to = Math.min(from + 1 + random.nextInt(3), terms.size());
+	    List<Span<Term>> references = new ArrayList<Span<Term>>();
+	    references.add(KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(from, to))));
+	    Entity entity = naf.newEntity(references);
+	    entity.setType(ENTITY_TYPES[random.nextInt(ENTITY_TYPES.length)]);
+	}
+    }
+
+    private static void addPredicates(KAFDocument naf, List<Term> terms, double density, Random random)
+    {
+	int count = (int) Math.round(terms.size() * density);
+	for (int i = 0; i < count; i++) {
+	    int anchor = random.nextInt(terms.size());
+	    Predicate predicate = naf.newPredicate(KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(anchor, anchor + 1))));
+	    predicate.addExternalRef(naf.newExternalRef("PropBank", "predicate.0" + (1 + random.nextInt(3))));
+	    String[] semRoles = {"A0", "A1"};
+	    for (String semRole : semRoles) {
+		int from = random.nextInt(terms.size());
+		int to = Math.min(from + 1 + random.nextInt(2), terms.size());
+		Predicate.Role role = naf.newRole(predicate, semRole, KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(from, to))));
+		predicate.addRole(role);
+	    }
+	}
+    }
+
+}
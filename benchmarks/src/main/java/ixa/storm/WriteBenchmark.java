@@ -0,0 +1,82 @@
+package ixa.storm;
+
+import ixa.kaflib.KAFDocument;
+import org.openjdk.jmh.annotations.*;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+
+// Throughput of document writes to a MongoDB server with each durability profile (see
+// MongoNaf.setDurabilityProfile): single inserts and bulk inserts of batch documents. The same
+// documents (up to DOCUMENTS) are written again and again, so the collections don't keep growing.
+// The database is dropped at the end. Needs a running server: -p server=... -p port=...
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WriteBenchmark {
+
+    private static final int DOCUMENTS = 1000;
+
+    @Param({"localhost"})
+    public String server;
+
+    @Param({"27017"})
+    public int port;
+
+    @Param({"naf_benchmark"})
+    public String db;
+
+    @Param({"durable", "balanced", "fast", "default"})
+    public String profile;
+
+    @Param({"false"})
+    public boolean packed;
+
+    @Param({"1000"})
+    public int tokens;
+
+    // Documents per bulk insert
+    @Param({"100"})
+    public int batch;
+
+    private MongoNaf mongoNaf;
+    private KAFDocument naf;
+    private Map<String, KAFDocument> nafs;
+    private int next;
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+	this.mongoNaf = MongoNaf.instance(this.server, this.port, this.db, this.packed);
+	this.mongoNaf.drop();
+	this.mongoNaf.setDurabilityProfile(this.profile);
+	this.mongoNaf.setBatchSize(this.batch);
+	this.naf = NafGenerator.generate(this.tokens, 0.1, 0.1, 4, 42);
+	this.nafs = new LinkedHashMap<String, KAFDocument>();
+	for (int i = 0; i < this.batch; i++) {
+	    this.nafs.put("batch" + i, this.naf);
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+	this.mongoNaf.drop();
+    }
+
+    @Benchmark
+    public void insertDocument() throws Exception {
+	this.mongoNaf.insertNafDocument("doc" + this.next, this.naf);
+	this.next = (this.next + 1) % DOCUMENTS;
+    }
+
+    // Throughput in batches per second
+    @Benchmark
+    public Map<String, MongoNafException> insertDocuments() {
+	return this.mongoNaf.insertNafDocuments(this.nafs);
+    }
+
+}
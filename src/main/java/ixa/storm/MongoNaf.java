@@ -3,139 +3,720 @@ package ixa.storm;
 import ixa.kaflib.*;
 import ixa.kaflib.KAFDocument.LinguisticProcessor;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoException;
 import com.mongodb.WriteConcern;
-import com.mongodb.DB;
-import com.mongodb.DBCollection;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.DBCursor;
 import com.mongodb.ServerAddress;
 import com.mongodb.BasicDBList;
+import org.bson.BSON;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.LinkedHashMap;
 import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.net.UnknownHostException;
 import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.logging.Logger;
 
 
 
 public class MongoNaf {
 
-    private static MongoNaf instance;
-    private String nafVersion;
-    private String nafLang;
-    private DB db;
-    // MongoDB collections
-    private DBCollection logColl;
-    private DBCollection headerColl;
-    private DBCollection lpColl;
-    private DBCollection rawColl;
-    private DBCollection textColl;
-    private DBCollection termsColl;
-    private DBCollection entitiesColl;
-    private DBCollection depsColl;
-    private DBCollection constituentsColl;
-    private DBCollection chunksColl;
-    private DBCollection corefsColl;
-    private DBCollection opinionsColl;
-    private DBCollection srlColl;
-    private DBCollection factualityColl;
-    private DBCollection timeExpressionsColl;
-    private DBCollection temporalRelationsColl;
-    private DBCollection causalRelationsColl;
-
-
-    private MongoNaf(String server, int port, String dbName)
-	throws MongoNafException {
-	try {
-	    MongoClient mongoClient = new MongoClient(server, port);
-	    this.db = mongoClient.getDB(dbName);
-	} catch(Exception e) {
-	    throw new MongoNafException("Error connecting to MongoDB.");
-	}
-	this.logColl = this.db.getCollection("log");
-	this.headerColl = this.db.getCollection("header");
-	this.lpColl = this.db.getCollection("linguisticProcessors");
-	this.rawColl = this.db.getCollection("raw");
-	this.textColl = this.db.getCollection("text");
-	this.termsColl = this.db.getCollection("terms");
-	this.entitiesColl = this.db.getCollection("entities");
-	this.depsColl = this.db.getCollection("deps");
-	this.constituentsColl = this.db.getCollection("constituency");
-	this.chunksColl = this.db.getCollection("chunks");
-	this.corefsColl = this.db.getCollection("coreferences");
-	this.opinionsColl = this.db.getCollection("opinions");
-	this.srlColl = this.db.getCollection("srl");
-	this.factualityColl = this.db.getCollection("factualitylayer");
-	this.timeExpressionsColl = this.db.getCollection("timeExpressions");
-	this.temporalRelationsColl = this.db.getCollection("temporalRelations");
-	this.causalRelationsColl = this.db.getCollection("causalRelations");
-	if (this.textColl.getIndexInfo().size() == 0) { // @TODO: check system.indexes instead of text
-	    this.createIndexes();
+    // Annotation layers, in the order they have to be rebuilt
+    private static final String[] LAYER_NAMES = {"text", "terms", "entities", "deps", "constituency", "chunks", "coreferences", "opinions", "srl", "factualitylayer", "timeExpressions", "temporalRelations", "causalRelations"};
+
+    // Layers each layer's annotations are anchored to, as needed by the getX reconstruction methods
+    private static final Map<String, String[]> LAYER_DEPENDENCIES = new HashMap<String, String[]>();
+    static {
+	LAYER_DEPENDENCIES.put("text", new String[] {});
+	LAYER_DEPENDENCIES.put("terms", new String[] {"text"});
+	LAYER_DEPENDENCIES.put("entities", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("deps", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("constituency", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("chunks", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("coreferences", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("opinions", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("srl", new String[] {"terms"});
+	LAYER_DEPENDENCIES.put("factualitylayer", new String[] {"text"});
+	LAYER_DEPENDENCIES.put("timeExpressions", new String[] {"text", "terms"});
+	LAYER_DEPENDENCIES.put("temporalRelations", new String[] {"srl", "timeExpressions"});
+	LAYER_DEPENDENCIES.put("causalRelations", new String[] {"srl"});
+    }
+
+    // Order in which the parts of a document are merged (follows the (doc_id, paragraph, sentence) index)
+    private static final DBObject PART_ORDER = new BasicDBObject("doc_id", 1).append("paragraph", 1).append("sentence", 1);
+
+    // Annotation fields indexed by ensureAnnotationIndexes, by layer
+    private static final String[][] ANNOTATION_INDEXES = {
+	{"terms", "lemma"},
+	{"terms", "external_references.reference"},
+	{"entities", "type"},
+	{"entities", "external_references.reference"},
+	{"srl", "uri"},
+	{"srl", "external_references.reference"}
+    };
+
+    // Documents removed by each $in query of removeDocs
+    private static final int REMOVE_BATCH_SIZE = 1000;
+
+    // Time of the last write of each stored object, used by the TTL indexes when retention is enabled
+    private static final String INSERTED_AT = "inserted_at";
+
+    private static final Logger LOGGER = Logger.getLogger(MongoNaf.class.getName());
+
+    // Instances by server:port/dbName (and layout), and the clients (connection pools) they share by server:port
+    private static final Map<String, MongoNaf> instances = new HashMap<String, MongoNaf>();
+    private static final Map<String, MongoClient> clients = new HashMap<String, MongoClient>();
+
+    // Settings can be changed while other threads use the instance
+    private volatile NafParameters nafParameters;
+    private volatile ExecutorService readExecutor;
+    private volatile int batchSize;
+    private volatile boolean columnar;
+    private volatile MongoNafCache cache;
+    private volatile MongoNafAsyncWriter asyncWriter;
+    private volatile MongoNafMetrics metrics;
+    // Write concern of each layer ("header", "linguisticProcessors", "raw" or an annotation layer)
+    private final Map<String, WriteConcern> writeConcerns = new ConcurrentHashMap<String, WriteConcern>();
+    private volatile WriteConcern defaultWriteConcern;
+    // Size from which the objects of each layer ("raw" or an annotation layer) are compressed
+    private final Map<String, Integer> compressionThresholds = new ConcurrentHashMap<String, Integer>();
+    private volatile boolean retention;
+    private MongoNafStorage storage;
+    private MongoNafIndexManager indexManager;
+    // Collections
+    private MongoNafCollection logColl;
+    private MongoNafCollection headerColl;
+    private MongoNafCollection lpColl;
+    private MongoNafCollection rawColl;
+    private MongoNafCollection textColl;
+    private MongoNafCollection termsColl;
+    private MongoNafCollection entitiesColl;
+    private MongoNafCollection depsColl;
+    private MongoNafCollection constituentsColl;
+    private MongoNafCollection chunksColl;
+    private MongoNafCollection corefsColl;
+    private MongoNafCollection opinionsColl;
+    private MongoNafCollection srlColl;
+    private MongoNafCollection factualityColl;
+    private MongoNafCollection timeExpressionsColl;
+    private MongoNafCollection temporalRelationsColl;
+    private MongoNafCollection causalRelationsColl;
+    // Packed layout: header, LPs, raw text and layers of a document (or part) in a single object
+    private final boolean packed;
+    private MongoNafCollection documentsColl;
+
+    // Language and version given to the NAF documents whose header doesn't have them
+    public static final class NafParameters {
+	private final String version;
+	private final String lang;
+
+	public NafParameters(String version, String lang) {
+	    this.version = version;
+	    this.lang = lang;
+	}
+
+	public String getVersion() {
+	    return this.version;
+	}
+
+	public String getLang() {
+	    return this.lang;
+	}
+    }
+
+    // The NAF <-> DBObject mapping alone, without reading or writing anything (used by the benchmarks)
+    static final class Mapping {
+	private final MongoNaf mongoNaf;
+
+	Mapping() {
+	    this.mongoNaf = new MongoNaf(new MongoNafMemoryStorage(), false);
+	}
+
+	List<DBObject> map(KAFDocument naf, String layerName) {
+	    return this.mongoNaf.mapLayer(naf, layerName);
+	}
+
+	// Objects getNaf would read to rebuild a layer: the header and the objects of the layer and of
+	// the layers it's anchored to
+	Map<String, List<DBObject>> mapWithAnchors(KAFDocument naf, String layerName) {
+	    Map<String, List<DBObject>> layerObjs = new HashMap<String, List<DBObject>>();
+	    for (String fetchedLayer : this.mongoNaf.getLayersToFetch(Arrays.asList(layerName))) {
+		DBObject obj;
+		if (fetchedLayer.equals("header")) {
+		    obj = this.mongoNaf.createHeaderObject("doc", naf);
+		} else {
+		    obj = new BasicDBObject("annotations", this.mongoNaf.mapLayer(naf, fetchedLayer));
+		}
+		layerObjs.put(fetchedLayer, new ArrayList<DBObject>(Arrays.asList(obj)));
+	    }
+	    return layerObjs;
+	}
+
+	KAFDocument build(Map<String, List<DBObject>> layerObjs) {
+	    return this.mongoNaf.buildNaf(layerObjs, false, this.mongoNaf.getNafParameters());
+	}
+    }
+
+
+    private MongoNaf(MongoNafStorage storage, boolean packed)
+    {
+	this.storage = storage;
+	this.logColl = storage.getCollection("log");
+	this.headerColl = storage.getCollection("header");
+	this.lpColl = storage.getCollection("linguisticProcessors");
+	this.rawColl = storage.getCollection("raw");
+	this.textColl = storage.getCollection("text");
+	this.termsColl = storage.getCollection("terms");
+	this.entitiesColl = storage.getCollection("entities");
+	this.depsColl = storage.getCollection("deps");
+	this.constituentsColl = storage.getCollection("constituency");
+	this.chunksColl = storage.getCollection("chunks");
+	this.corefsColl = storage.getCollection("coreferences");
+	this.opinionsColl = storage.getCollection("opinions");
+	this.srlColl = storage.getCollection("srl");
+	this.factualityColl = storage.getCollection("factualitylayer");
+	this.timeExpressionsColl = storage.getCollection("timeExpressions");
+	this.temporalRelationsColl = storage.getCollection("temporalRelations");
+	this.causalRelationsColl = storage.getCollection("causalRelations");
+	this.documentsColl = storage.getCollection("documents");
+	this.packed = packed;
+	List<String> partCollections = new ArrayList<String>(Arrays.asList(LAYER_NAMES));
+	partCollections.addAll(Arrays.asList("header", "raw"));
+	if (packed) {
+	    partCollections.add("documents");
+	}
+	this.indexManager = new MongoNafIndexManager(storage, partCollections);
+	// The log is only inserted into
+	this.indexManager.addCollection("log");
+	List<String> missingIndexes = this.indexManager.getMissingIndexes();
+	if (!missingIndexes.isEmpty()) {
+	    LOGGER.info("Missing indexes, building them in background: " + missingIndexes);
+	    this.indexManager.ensureIndexes();
 	}
 	// Default NAF values
-	this.nafVersion = "mongodb_test_version";
-	this.nafLang = "en";
+	this.nafParameters = new NafParameters("mongodb_test_version", "en");
+	this.batchSize = 100;
     }
 
     public static MongoNaf instance(String server, int port, String dbName)
 	throws MongoNafException
     {
-	if (instance == null) {
-	    instance = new MongoNaf(server, port, dbName);
+	return instance(server, port, dbName, false);
+    }
+
+    // If packed is true, each document (or paragraph/sentence part) is stored as a single object
+    // in the "documents" collection instead of being spread over a collection per layer.
+    public static MongoNaf instance(String server, int port, String dbName, boolean packed)
+	throws MongoNafException
+    {
+	return instance(server, port, dbName, packed, null);
+    }
+
+    // Returns the instance for the given server and database, creating it if needed. Instances are
+    // thread-safe and can be shared by all the threads of a process. Instances on the same server share
+    // one MongoClient, whose connection pool is configured by the options given when the first instance
+    // on that server is created (the driver's defaults if null).
+    public static MongoNaf instance(String server, int port, String dbName, boolean packed, MongoClientOptions options)
+	throws MongoNafException
+    {
+	String serverKey = server + ":" + port;
+	String key = serverKey + "/" + dbName + (packed ? "/packed" : "");
+	synchronized (instances) {
+	    MongoNaf mongoNaf = instances.get(key);
+	    if (mongoNaf == null) {
+		MongoClient mongoClient = clients.get(serverKey);
+		if (mongoClient == null) {
+		    try {
+			mongoClient = (options != null)
+			    ? new MongoClient(new ServerAddress(server, port), options)
+			    : new MongoClient(server, port);
+		    } catch(Exception e) {
+			throw new MongoNafException("Error connecting to MongoDB.", e);
+		    }
+		    clients.put(serverKey, mongoClient);
+		}
+		try {
+		    mongoNaf = new MongoNaf(new MongoNafMongoStorage(mongoClient.getDB(dbName)), packed);
+		} catch(MongoException e) {
+		    throw new MongoNafException("Error connecting to MongoDB.", e);
+		}
+		instances.put(key, mongoNaf);
+	    }
+	    return mongoNaf;
 	}
-	return instance;
     }
 
+    // Returns a new instance storing the documents in the given storage, e.g. a MongoNafMemoryStorage
+    public static MongoNaf newInstance(MongoNafStorage storage, boolean packed)
+    {
+	return new MongoNaf(storage, packed);
+    }
+
+    // Sets the default NAF parameters of this instance. Use the getNaf methods taking NafParameters
+    // to give each call its own parameters.
     public void setNafParameters(String version, String lang) {
-	this.nafVersion = version;
-	this.nafLang = lang;
+	this.nafParameters = new NafParameters(version, lang);
     }
 
-    private void createIndexes() {
-	this.lpColl.createIndex(new BasicDBObject("doc_id", 1).append("name", 1));
+    public NafParameters getNafParameters() {
+	return this.nafParameters;
+    }
+
+    // Number of documents written by each bulk operation of insertNafDocuments
+    public void setBatchSize(int batchSize) {
+	this.batchSize = batchSize;
+    }
+
+    // Store the text and terms layers with the compact columnar encoding. Layers stored either way can be read.
+    public void setColumnarEncoding(boolean columnar) {
+	this.columnar = columnar;
+    }
+
+    // Compress the stored objects of a layer ("raw" or an annotation layer) with Deflate when their BSON
+    // size (UTF-8 size for the raw text) is at least thresholdBytes. A negative threshold disables it.
+    // Layers stored either way can be read, but compressed layers can't be searched with findAnnotations.
+    public void setCompression(String layerName, int thresholdBytes) {
+	if (thresholdBytes < 0) {
+	    this.compressionThresholds.remove(layerName);
+	} else {
+	    this.compressionThresholds.put(layerName, thresholdBytes);
+	}
+    }
+
+    // Keep the layers read by getNaf in a LRU cache, bounded by number of entries and/or estimated
+    // size in bytes (0 means no limit). Writes through this instance invalidate the cached document.
+    public void enableCache(int maxEntries, long maxBytes) {
+	this.cache = new MongoNafCache(maxEntries, maxBytes);
+    }
+
+    public void disableCache() {
+	this.cache = null;
+    }
+
+    // Returns the cache (hit, miss and eviction counters), or null if it is disabled
+    public MongoNafCache getCache() {
+	return this.cache;
+    }
+
+    void invalidateCache(String docId) {
+	MongoNafCache cache = this.cache;
+	if (cache != null) {
+	    cache.invalidate(docId);
+	}
+    }
+
+    // Measure the reads and writes of each layer (see MongoNafMetrics). If jmxName is not null, the
+    // statistics are also registered in the platform MBean server under that name.
+    public synchronized void enableMetrics(String jmxName) throws MongoNafException {
+	this.disableMetrics();
+	MongoNafMetrics metrics = new MongoNafMetrics();
+	if (jmxName != null) {
+	    metrics.registerMBeans(jmxName);
+	}
+	this.metrics = metrics;
+    }
+
+    public synchronized void disableMetrics() throws MongoNafException {
+	MongoNafMetrics metrics = this.metrics;
+	this.metrics = null;
+	if (metrics != null) {
+	    metrics.unregisterMBeans();
+	}
+    }
+
+    // Returns the metrics, or null if they are disabled
+    public MongoNafMetrics getMetrics() {
+	return this.metrics;
+    }
+
+    // Layers are read concurrently on the given executor. If null, they are read one after another.
+    public void setReadExecutor(ExecutorService executor) {
+	this.readExecutor = executor;
+    }
+
+    // Inserts submitted with the *Async methods are queued and stored by the given number of writer
+    // threads, in bulk operations of up to flushSize documents, or fewer if no more documents arrive
+    // within flushIntervalMillis. Submitting blocks while the queue (of queueSize documents per writer) is full.
+    public synchronized void enableAsyncWrites(int queueSize, int writers, int flushSize, long flushIntervalMillis)
+	throws MongoNafException
+    {
+	this.disableAsyncWrites();
+	this.asyncWriter = new MongoNafAsyncWriter(this, queueSize, writers, flushSize, flushIntervalMillis);
+    }
+
+    // Stores the queued writes and stops the writer threads
+    public synchronized void disableAsyncWrites() throws MongoNafException {
+	MongoNafAsyncWriter writer = this.asyncWriter;
+	if (writer == null) {
+	    return;
+	}
+	this.asyncWriter = null;
+	try {
+	    writer.close();
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new MongoNafException("Interrupted while flushing the asynchronous writes.", e);
+	}
+    }
+
+    // Builds the indexes needed by MongoNaf's queries which don't exist yet
+    public void ensureIndexes() {
+	this.indexManager.ensureIndexes();
+    }
+
+    // Returns the indexes needed by MongoNaf's queries which don't exist
+    public List<String> getMissingIndexes() {
+	return this.indexManager.getMissingIndexes();
+    }
+
+    // Builds multikey indexes on the annotation fields searched by findAnnotations: lemmas and
+    // external references of terms, types and external references of entities, and URIs and
+    // external references of predicates. They slow writes down, so they are only built on request.
+    public void ensureAnnotationIndexes() throws MongoNafException {
+	for (String[] index : ANNOTATION_INDEXES) {
+	    this.ensureAnnotationIndex(index[0], index[1]);
+	}
+    }
+
+    // Builds a multikey index on a field (a dotted path, e.g. "external_references.reference") of
+    // the annotations of a layer
+    public void ensureAnnotationIndex(String layerName, String field) throws MongoNafException {
+	MongoNafCollection collection = this.getAnnotationsCollection(this.checkAnnotationLayer(layerName));
+	for (String path : this.getAnnotationFieldPaths(layerName, field)) {
+	    this.indexManager.addIndex(collection.getName(), new BasicDBObject(path, 1));
+	}
+	this.indexManager.ensureIndexes();
+    }
+
+    // Returns the stored documents (or paragraph/sentence parts) with an annotation of the layer whose
+    // field is equal to value (or contains it, for lists), in (doc_id, paragraph, sentence) order.
+    // Matches are read from a cursor as they are iterated. Fields without an index (see
+    // ensureAnnotationIndex) are searched by scanning the whole collection.
+    public Iterator<MongoNafMatch> findAnnotations(String layerName, String field, Object value) throws MongoNafException {
+	MongoNafCollection collection = this.getAnnotationsCollection(this.checkAnnotationLayer(layerName));
+	List<DBObject> conditions = new ArrayList<DBObject>();
+	for (String path : this.getAnnotationFieldPaths(layerName, field)) {
+	    conditions.add(new BasicDBObject(path, value));
+	}
+	DBObject query = (conditions.size() == 1) ? conditions.get(0) : new BasicDBObject("$or", conditions);
+	DBObject projection = new BasicDBObject("doc_id", 1).append("paragraph", 1).append("sentence", 1);
+	final Iterator<DBObject> cursor;
+	try {
+	    cursor = collection.iterate(query, projection, PART_ORDER);
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error searching the " + field + " of the " + layerName + " layer.", e);
+	}
+	return new Iterator<MongoNafMatch>() {
+	    public boolean hasNext() {
+		return cursor.hasNext();
+	    }
+
+	    public MongoNafMatch next() {
+		DBObject obj = cursor.next();
+		return new MongoNafMatch((String) obj.get("doc_id"), (Integer) obj.get("paragraph"), (Integer) obj.get("sentence"));
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    private String checkAnnotationLayer(String layerName) throws MongoNafException {
+	if (!LAYER_DEPENDENCIES.containsKey(layerName)) {
+	    throw new MongoNafException("Not an annotation layer: " + layerName);
+	}
+	return layerName;
+    }
+
+    // Paths of an annotation field in the stored objects of a layer: in the annotation list and, if
+    // the layer can be stored with the columnar encoding, in its columns
+    private List<String> getAnnotationFieldPaths(String layerName, String field) {
+	String layerPath = this.packed ? "layers." + layerName + "." : "";
+	List<String> paths = new ArrayList<String>();
+	paths.add(this.packed ? layerPath + field : "annotations." + field);
+	String columnPath = MongoNafColumnarCodec.getColumnPath(layerName, field);
+	if (columnPath != null) {
+	    paths.add(layerPath + "columns." + columnPath);
+	}
+	return paths;
+    }
+
+    // Reads one annotation of a stored document (e.g. a term by its id) as a mapped object, or null
+    // if it doesn't exist. See getAnnotations.
+    public DBObject getAnnotation(String docId, String layerName, String annotationId) throws MongoNafException {
+	return this.getAnnotations(docId, layerName, Collections.singletonList(annotationId)).get(annotationId);
+    }
+
+    // Reads annotations of a stored document by id (mapped objects by id, leaving out the ids that don't
+    // exist) without reading the whole layer: a single aggregation unwinds the annotations of the parts
+    // containing any of the ids and returns the requested ones. Parts of the layer stored with the
+    // columnar encoding or compressed are read whole. The annotations of the deps and constituency layers
+    // have no ids.
+    public Map<String, DBObject> getAnnotations(String docId, String layerName, Collection<String> annotationIds) throws MongoNafException {
+	MongoNafCollection collection = this.getAnnotationsCollection(this.checkAnnotationLayer(layerName));
+	if (layerName.equals("deps") || layerName.equals("constituency")) {
+	    throw new MongoNafException("The annotations of the " + layerName + " layer have no ids.");
+	}
+	String path = this.getAnnotationsPath(layerName);
+	String encodedPath = this.packed ? path + "." : "";
+	Set<String> remaining = new HashSet<String>(annotationIds);
+	Map<String, DBObject> annotations = new HashMap<String, DBObject>();
+	MongoNafMetrics metrics = this.metrics;
+	long start = (metrics != null) ? System.nanoTime() : 0;
+	List<DBObject> objs = new ArrayList<DBObject>();
+	try {
+	    DBObject ids = new BasicDBObject("$in", new ArrayList<String>(remaining));
+	    DBObject query = new BasicDBObject("doc_id", docId).append(path + ".id", ids);
+	    DBObject elementQuery = new BasicDBObject("id", ids);
+	    for (DBObject annotation : collection.findElements(query, path, elementQuery)) {
+		remaining.remove(annotation.get("id"));
+		annotations.put((String) annotation.get("id"), annotation);
+		objs.add(annotation);
+	    }
+	    if (!remaining.isEmpty()) {
+		DBObject encodedQuery = new BasicDBObject("doc_id", docId)
+		    .append("$or", Arrays.asList(new BasicDBObject(encodedPath + "columns", new BasicDBObject("$exists", true)),
+						 new BasicDBObject(encodedPath + "compressed", new BasicDBObject("$exists", true))));
+		DBObject projection = this.packed ? new BasicDBObject(path, 1) : null;
+		for (DBObject obj : collection.find(encodedQuery, projection, null)) {
+		    for (DBObject annotation : this.getAnnotationObjs(layerName, (DBObject) this.getStoredLayer(obj, layerName))) {
+			if (remaining.remove(annotation.get("id"))) {
+			    annotations.put((String) annotation.get("id"), annotation);
+			}
+		    }
+		    objs.add(obj);
+		}
+	    }
+	} catch(MongoException e) {
+	    if (metrics != null) {
+		metrics.recordError(layerName, MongoNafMetrics.FETCH);
+	    }
+	    throw new MongoNafException("Error reading annotations of the " + layerName + " layer of document " + docId + ".", e);
+	}
+	if (metrics != null) {
+	    this.recordFetch(metrics, layerName, start, objs);
+	}
+	return annotations;
+    }
+
+    // The layer in a stored object: the object itself, or in the packed layout its entry in layers
+    private Object getStoredLayer(DBObject obj, String layerName)
+    {
+	if (!this.packed) {
+	    return obj.containsField("annotations") ? obj.get("annotations") : obj;
+	}
+	return ((DBObject) obj.get("layers")).get(layerName);
+    }
+
+    // Objects written from now on get an inserted_at time (refreshed by every later write of them), and
+    // TTL indexes on every collection remove them expireAfterSeconds after it. Calling it again changes
+    // the expiration of the existing indexes. Each stored object (header, LPs, raw text, each layer and
+    // part of a layer) expires on its own: a document whose objects were last written at different
+    // times (e.g. a layer updated later) is removed in several steps, and can be read partially
+    // meanwhile. Write documents as a whole (or remove them with removeDoc) to expire them at once.
+    public void enableRetention(long expireAfterSeconds) {
+	this.indexManager.ensureTtlIndexes(INSERTED_AT, expireAfterSeconds);
+	this.retention = true;
+    }
+
+    // Drops the TTL indexes, so that nothing expires anymore
+    public void disableRetention() {
+	this.retention = false;
+	this.indexManager.dropTtlIndexes(INSERTED_AT);
+    }
+
+    private <T extends DBObject> T stamp(T obj) {
+	if (this.retention) {
+	    obj.put(INSERTED_AT, new Date());
+	}
+	return obj;
+    }
+
+    // Update operators which also set the inserted_at time, whether the object exists or not
+    private DBObject stampUpdate(DBObject update) {
+	if (this.retention) {
+	    DBObject setOnInsert = (DBObject) update.get("$setOnInsert");
+	    if (setOnInsert != null) {
+		setOnInsert.removeField(INSERTED_AT);
+	    }
+	    DBObject set = (DBObject) update.get("$set");
+	    if (set == null) {
+		set = new BasicDBObject();
+		update.put("$set", set);
+	    }
+	    set.put(INSERTED_AT, new Date());
+	}
+	return update;
+    }
+
+    // Sets the write concern used to store a layer ("header", "linguisticProcessors", "raw", an
+    // annotation layer, or "log" for the log entries). null goes back to the default write concern.
+    // In the packed layout, whole documents are written with the concern of the header.
+    public void setWriteConcern(String layerName, WriteConcern concern) {
+	if (concern == null) {
+	    this.writeConcerns.remove(layerName);
+	} else {
+	    this.writeConcerns.put(layerName, concern);
+	}
+    }
+
+    // Write concern of the layers without their own one. If null, the database's is used.
+    public void setDefaultWriteConcern(WriteConcern concern) {
+	this.defaultWriteConcern = concern;
+    }
+
+    // Sets the write concern of every layer from a durability profile:
+    // "durable": every layer is journaled
+    // "balanced": header, LPs and raw text are journaled, annotation layers and log entries are acknowledged
+    // "fast": header, LPs and raw text are journaled, annotation layers (which can be derived
+    //         again from the raw text) and log entries are unacknowledged
+    // "default": the write concern of the database for every layer
+    public void setDurabilityProfile(String profile) throws MongoNafException {
+	WriteConcern sourceConcern;
+	WriteConcern layerConcern;
+	if (profile.equals("durable")) {
+	    sourceConcern = WriteConcern.JOURNALED;
+	    layerConcern = WriteConcern.JOURNALED;
+	}
+	else if (profile.equals("balanced")) {
+	    sourceConcern = WriteConcern.JOURNALED;
+	    layerConcern = WriteConcern.ACKNOWLEDGED;
+	}
+	else if (profile.equals("fast")) {
+	    sourceConcern = WriteConcern.JOURNALED;
+	    layerConcern = WriteConcern.UNACKNOWLEDGED;
+	}
+	else if (profile.equals("default")) {
+	    sourceConcern = null;
+	    layerConcern = null;
+	}
+	else {
+	    throw new MongoNafException("Unknown durability profile: " + profile);
+	}
+	this.setWriteConcern("header", sourceConcern);
+	this.setWriteConcern("linguisticProcessors", sourceConcern);
+	this.setWriteConcern("raw", sourceConcern);
+	for (String layerName : LAYER_NAMES) {
+	    this.setWriteConcern(layerName, layerConcern);
+	}
+	this.setWriteConcern("log", layerConcern);
+    }
+
+    WriteConcern getWriteConcern(String layerName) {
+	WriteConcern concern = this.writeConcerns.get(layerName);
+	if (concern == null) {
+	    concern = this.defaultWriteConcern;
+	}
+	return (concern != null) ? concern : this.storage.getDefaultWriteConcern();
+    }
+
+    private MongoNafCollection getLayerCollection(String layerName) {
+	if (layerName.equals("raw")) return this.rawColl;
+	if (layerName.equals("text")) return this.textColl;
+	if (layerName.equals("terms")) return this.termsColl;
+	if (layerName.equals("entities")) return this.entitiesColl;
+	if (layerName.equals("deps")) return this.depsColl;
+	if (layerName.equals("constituency")) return this.constituentsColl;
+	if (layerName.equals("chunks")) return this.chunksColl;
+	if (layerName.equals("coreferences")) return this.corefsColl;
+	if (layerName.equals("opinions")) return this.opinionsColl;
+	if (layerName.equals("srl")) return this.srlColl;
+	if (layerName.equals("factualitylayer")) return this.factualityColl;
+	if (layerName.equals("timeExpressions")) return this.timeExpressionsColl;
+	if (layerName.equals("temporalRelations")) return this.temporalRelationsColl;
+	if (layerName.equals("causalRelations")) return this.causalRelationsColl;
+	return null;
     }
 
     public void drop() {
-	this.db.dropDatabase();
-    }
-
-    public void removeDoc(String docId) {
-	DBObject docDef = new BasicDBObject("doc_id", docId);
-	this.headerColl.remove(docDef);
-	this.lpColl.remove(docDef);
-	this.rawColl.remove(docDef);
-	this.textColl.remove(docDef);
-	this.termsColl.remove(docDef);
-	this.entitiesColl.remove(docDef);  
-	this.depsColl.remove(docDef);    
-	this.constituentsColl.remove(docDef);   
-	this.chunksColl.remove(docDef);   
-	this.corefsColl.remove(docDef);   
-	this.opinionsColl.remove(docDef);   
-	this.srlColl.remove(docDef); 
-	this.factualityColl.remove(docDef);
-	this.timeExpressionsColl.remove(docDef);
-	this.temporalRelationsColl.remove(docDef);
-	this.causalRelationsColl.remove(docDef);
+	this.storage.drop();
+    }
+
+    public void removeDoc(String docId) throws MongoNafException {
+	this.removeDocs(Collections.singletonList(docId));
+    }
+
+    // Removes several documents, with one remove per collection for every REMOVE_BATCH_SIZE documents.
+    // Each collection is removed from with the write concern of its layer.
+    public void removeDocs(Collection<String> docIds) throws MongoNafException {
+	List<String> ids = new ArrayList<String>(docIds);
+	for (int from = 0; from < ids.size(); from += REMOVE_BATCH_SIZE) {
+	    List<String> batch = ids.subList(from, Math.min(from + REMOVE_BATCH_SIZE, ids.size()));
+	    try {
+		this.removeDocBatch(new BasicDBObject("doc_id", new BasicDBObject("$in", batch)));
+	    } catch(MongoException e) {
+		throw new MongoNafException("Error removing documents " + batch + ".", e);
+	    } finally {
+		for (String docId : batch) {
+		    this.invalidateCache(docId);
+		}
+	    }
+	}
+    }
+
+    private void removeDocBatch(DBObject docDef) {
+	if (this.packed) {
+	    // Whole documents are written with the concern of the header
+	    this.documentsColl.remove(docDef, this.getWriteConcern("header"));
+	    return;
+	}
+	this.headerColl.remove(docDef, this.getWriteConcern("header"));
+	this.lpColl.remove(docDef, this.getWriteConcern("linguisticProcessors"));
+	this.rawColl.remove(docDef, this.getWriteConcern("raw"));
+	for (String layerName : LAYER_NAMES) {
+	    this.getLayerCollection(layerName).remove(docDef, this.getWriteConcern(layerName));
+	}
     }
 
     public void insertNafDocument(String docId, KAFDocument naf)
+	throws MongoNafException
     {
 	this.insertNafDocument(docId, naf, null, null);
     }
 	
     public void insertNafDocument(String docId, KAFDocument naf, Integer paragraph)
+	throws MongoNafException
     {
 	this.insertNafDocument(docId, naf, paragraph, null);
     }
 
     public void insertNafDocument(String docId, KAFDocument naf, Integer paragraph, Integer sentence)
+	throws MongoNafException
     {
-	this.insertHeader(docId, naf);
+	this.insertNafDocument(docId, naf, paragraph, sentence, true);
+    }
+
+    // If syncLinguisticProcessors is false, the LPs of the document are not written (for callers which
+    // know they are already stored). In the packed layout LPs are written with the document anyway.
+    public void insertNafDocument(String docId, KAFDocument naf, Integer paragraph, Integer sentence, boolean syncLinguisticProcessors)
+	throws MongoNafException
+    {
+	if (this.packed) {
+	    this.insertPackedDocument(docId, naf, paragraph, sentence);
+	    return;
+	}
+	this.insertHeader(docId, naf, paragraph);
+	if (syncLinguisticProcessors) {
+	    this.insertLinguisticProcessors(docId, naf);
+	}
 	this.insertLayer(docId, naf, "raw", paragraph, sentence);
 	this.insertLayer(docId, naf, "text", paragraph, sentence);
 	this.insertLayer(docId, naf, "terms", paragraph, sentence);
@@ -152,7 +733,601 @@ public class MongoNaf {
 	this.insertLayer(docId, naf, "causalRelations", paragraph, sentence);
     }
 
-    private void insertHeader(String docId, KAFDocument naf) {
+    // Send several NAF documents to MongoDB. Documents are written in batches of batchSize documents,
+    // using one bulk operation per collection and batch. Returns the documents which could not be
+    // stored, mapped to the corresponding error.
+    public Map<String, MongoNafException> insertNafDocuments(Map<String, KAFDocument> nafs)
+    {
+	Map<String, MongoNafException> errors = new HashMap<String, MongoNafException>();
+	List<String> docIds = new ArrayList<String>(nafs.keySet());
+	for (int from = 0; from < docIds.size(); from += this.batchSize) {
+	    int to = Math.min(from + this.batchSize, docIds.size());
+	    this.insertNafDocumentBatch(docIds.subList(from, to), nafs, errors);
+	}
+	return errors;
+    }
+
+    // Queues a NAF document to be stored by the asynchronous writer. The document is mapped on the
+    // calling thread, so it can be modified once this method returns. The returned future (and the
+    // callback, if not null) is completed once the document has been stored.
+    public Future<Void> insertNafDocumentAsync(String docId, KAFDocument naf, MongoNafAsyncWriter.Callback callback)
+	throws MongoNafException
+    {
+	return this.insertNafDocumentAsync(docId, naf, null, null, callback);
+    }
+
+    public Future<Void> insertNafDocumentAsync(String docId, KAFDocument naf, Integer paragraph, Integer sentence, MongoNafAsyncWriter.Callback callback)
+	throws MongoNafException
+    {
+	List<MongoNafWrite> writes;
+	try {
+	    writes = this.createDocumentWrites(docId, naf, paragraph, sentence);
+	} catch(RuntimeException e) {
+	    throw new MongoNafException("Error mapping document " + docId + ".", e);
+	}
+	return this.submitAsync(docId, writes, callback);
+    }
+
+    public Future<Void> insertLayerAsync(String docId, KAFDocument naf, String layerName, Integer paragraph, Integer sentence, MongoNafAsyncWriter.Callback callback)
+	throws MongoNafException
+    {
+	List<MongoNafWrite> writes;
+	try {
+	    writes = this.createLayerWrites(docId, naf, layerName, paragraph, sentence);
+	} catch(RuntimeException e) {
+	    throw new MongoNafException("Error mapping layer " + layerName + " of document " + docId + ".", e);
+	}
+	try {
+	    // Done before queueing the layer, on the calling thread
+	    this.replaceLayerParts(docId, layerName, paragraph);
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error removing the parts of layer " + layerName + " of document " + docId + ".", e);
+	}
+	return this.submitAsync(docId, writes, callback);
+    }
+
+    private Future<Void> submitAsync(String docId, List<MongoNafWrite> writes, MongoNafAsyncWriter.Callback callback)
+	throws MongoNafException
+    {
+	MongoNafAsyncWriter writer = this.asyncWriter;
+	if (writer == null) {
+	    throw new MongoNafException("Asynchronous writes are not enabled.");
+	}
+	try {
+	    return writer.submit(docId, writes, callback);
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new MongoNafException("Interrupted while queueing document " + docId + ".", e);
+	} catch(IllegalStateException e) {
+	    throw new MongoNafException("Asynchronous writes are not enabled.", e);
+	}
+    }
+
+    private void insertNafDocumentBatch(List<String> docIds, Map<String, KAFDocument> nafs, Map<String, MongoNafException> errors)
+    {
+	List<MongoNafWrite> writes = new ArrayList<MongoNafWrite>();
+	for (String docId : docIds) {
+	    try {
+		writes.addAll(this.createDocumentWrites(docId, nafs.get(docId), null, null));
+	    } catch(RuntimeException e) {
+		errors.put(docId, new MongoNafException("Error mapping document " + docId + ".", e));
+	    }
+	}
+	this.bulkWrite(writes, errors);
+	for (String docId : docIds) {
+	    this.invalidateCache(docId);
+	}
+    }
+
+    // Maps a NAF document to the writes storing it. LPs are only inserted if they don't exist yet.
+    List<MongoNafWrite> createDocumentWrites(String docId, KAFDocument naf, Integer paragraph, Integer sentence)
+    {
+	List<MongoNafWrite> writes = new ArrayList<MongoNafWrite>();
+	if (this.packed) {
+	    if (paragraph == null) {
+		writes.add(MongoNafWrite.replace(this.documentsColl, docId, this.createPackedObject(docId, naf, null, null, true), this.getWriteConcern("header")));
+	    } else {
+		DBObject docObj = this.createPackedObject(docId, naf, null, null, false);
+		docObj.removeField("_id");
+		DBObject partObj = this.createPackedObject(docId, naf, paragraph, sentence, true);
+		partObj.removeField("header");
+		partObj.removeField("lps");
+		partObj.removeField("raw");
+		writes.add(MongoNafWrite.update(this.documentsColl, docId, docId, new BasicDBObject("$set", docObj), this.getWriteConcern("header")));
+		writes.add(MongoNafWrite.replace(this.documentsColl, docId, partObj, this.getWriteConcern("header")));
+	    }
+	    return writes;
+	}
+	writes.add(this.createHeaderWrite(docId, naf, paragraph));
+	writes.addAll(this.createLinguisticProcessorWrites(docId, naf));
+	writes.add(MongoNafWrite.replace(this.rawColl, docId, this.createRawTextObject(naf.getRawText(), docId), this.getWriteConcern("raw")));
+	for (String layerName : LAYER_NAMES) {
+	    DBObject layerObj = this.createLayerObject(docId, naf, layerName, paragraph, sentence);
+	    if (layerObj != null) {
+		writes.add(MongoNafWrite.replace(this.getLayerCollection(layerName), docId, layerObj, this.getWriteConcern(layerName)));
+	    }
+	}
+	return writes;
+    }
+
+    // Stores a whole document split into paragraphs ("P") or sentences ("S"), replacing the parts stored
+    // before. Annotations spanning several parts are stored at document level.
+    public void insertNafDocumentPartitioned(String docId, KAFDocument naf, String granularity)
+	throws MongoNafException
+    {
+	if (!granularity.equals("P") && !granularity.equals("S")) {
+	    throw new MongoNafException("Unknown granularity: " + granularity);
+	}
+	List<MongoNafWrite> writes;
+	try {
+	    writes = this.createPartitionedWrites(docId, naf, granularity);
+	} catch(RuntimeException e) {
+	    throw new MongoNafException("Error mapping document " + docId + ".", e);
+	}
+	try {
+	    this.removeParts(docId);
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error removing the parts of document " + docId + ".", e);
+	}
+	Map<String, MongoNafException> errors = new HashMap<String, MongoNafException>();
+	this.bulkWrite(writes, errors);
+	this.invalidateCache(docId);
+	if (errors.containsKey(docId)) {
+	    throw errors.get(docId);
+	}
+    }
+
+    // Removes the paragraphs and sentences stored for a document
+    private void removeParts(String docId)
+    {
+	DBObject query = new BasicDBObject("doc_id", docId).append("paragraph", new BasicDBObject("$exists", true));
+	if (this.packed) {
+	    this.documentsColl.remove(query, this.getWriteConcern("header"));
+	    return;
+	}
+	for (String layerName : LAYER_NAMES) {
+	    this.getLayerCollection(layerName).remove(query, this.getWriteConcern(layerName));
+	}
+    }
+
+    // A layer written for the whole of a partitioned document replaces the parts of the layer, and
+    // the positions of its document level annotations. Returns whether the document is partitioned.
+    private boolean replaceLayerParts(String docId, String layerName, Integer paragraph)
+    {
+	if (paragraph != null || layerName.equals("raw")) {
+	    return false;
+	}
+	MongoNafCollection docColl = this.packed ? this.documentsColl : this.headerColl;
+	DBObject docObj = docColl.findOne(new BasicDBObject("_id", docId), new BasicDBObject("partitioned", 1));
+	if (docObj == null || !docObj.containsField("partitioned")) {
+	    return false;
+	}
+	DBObject query = new BasicDBObject("doc_id", docId).append("paragraph", new BasicDBObject("$exists", true));
+	WriteConcern concern = this.getWriteConcern(layerName);
+	if (!this.packed) {
+	    this.getLayerCollection(layerName).remove(query, concern);
+	    return true;
+	}
+	query.put("layers." + layerName, new BasicDBObject("$exists", true));
+	DBObject unset = new BasicDBObject("$unset", new BasicDBObject("layers." + layerName, "").append("positions." + layerName, ""));
+	for (DBObject partObj : this.documentsColl.find(query, new BasicDBObject("_id", 1), null)) {
+	    this.documentsColl.update(new BasicDBObject("_id", partObj.get("_id")), unset, false, concern);
+	}
+	DBObject unsetPositions = new BasicDBObject("$unset", new BasicDBObject("positions." + layerName, ""));
+	this.documentsColl.update(new BasicDBObject("_id", docId), unsetPositions, false, concern);
+	return true;
+    }
+
+    private List<MongoNafWrite> createPartitionedWrites(String docId, KAFDocument naf, String granularity)
+    {
+	// Part _id -> part object, and annotations of each layer with their positions in the document
+	// layer (to merge them back in the same order). The document itself is the part without paragraph.
+	Map<Object, BasicDBObject> partObjs = new LinkedHashMap<Object, BasicDBObject>();
+	Map<Object, Map<String, List<DBObject>>> partLayers = new LinkedHashMap<Object, Map<String, List<DBObject>>>();
+	Map<Object, Map<String, List<Integer>>> partPositions = new HashMap<Object, Map<String, List<Integer>>>();
+	BasicDBObject docPartObj = this.createPartObject(docId, null, null);
+	partObjs.put(docId, docPartObj);
+	partLayers.put(docId, new LinkedHashMap<String, List<DBObject>>());
+	partPositions.put(docId, new HashMap<String, List<Integer>>());
+	Map<String, WF> wfIndex = new HashMap<String, WF>();
+	for (WF wf : naf.getWFs()) {
+	    wfIndex.put(wf.getId(), wf);
+	}
+	for (String layerName : LAYER_NAMES) {
+	    List<DBObject> annDBObjs = this.mapLayer(naf, layerName);
+	    List<?> annotations = this.getLayerAnnotations(naf, layerName);
+	    if (!annDBObjs.isEmpty()) {
+		// Every layer has a document level object (maybe empty), replacing the whole layer stored before
+		partLayers.get(docId).put(layerName, new ArrayList<DBObject>());
+		partPositions.get(docId).put(layerName, new ArrayList<Integer>());
+	    }
+	    for (int i = 0; i < annDBObjs.size(); i++) {
+		BasicDBObject partObj = this.getAnnotationPart(docId, layerName, annotations.get(i), granularity, wfIndex);
+		if (partObj == null) {
+		    partObj = docPartObj;
+		}
+		Object id = partObj.get("_id");
+		if (!partObjs.containsKey(id)) {
+		    partObjs.put(id, partObj);
+		    partLayers.put(id, new LinkedHashMap<String, List<DBObject>>());
+		    partPositions.put(id, new HashMap<String, List<Integer>>());
+		}
+		Map<String, List<DBObject>> layers = partLayers.get(id);
+		if (!layers.containsKey(layerName)) {
+		    layers.put(layerName, new ArrayList<DBObject>());
+		    partPositions.get(id).put(layerName, new ArrayList<Integer>());
+		}
+		layers.get(layerName).add(annDBObjs.get(i));
+		partPositions.get(id).get(layerName).add(i);
+	    }
+	}
+	List<MongoNafWrite> writes = new ArrayList<MongoNafWrite>();
+	if (this.packed) {
+	    // The object of the document also holds its header, LPs, raw text and document level annotations
+	    for (Map.Entry<Object, BasicDBObject> part : partObjs.entrySet()) {
+		DBObject obj = part.getValue();
+		if (part.getValue() == docPartObj) {
+		    obj = this.createPackedObject(docId, naf, null, null, false);
+		    obj.put("partitioned", granularity);
+		}
+		BasicDBObject layers = new BasicDBObject();
+		BasicDBObject positions = new BasicDBObject();
+		for (Map.Entry<String, List<DBObject>> layer : partLayers.get(part.getKey()).entrySet()) {
+		    if (!layer.getValue().isEmpty()) {
+			layers.append(layer.getKey(), this.encodePackedLayer(layer.getKey(), layer.getValue()));
+			positions.append(layer.getKey(), partPositions.get(part.getKey()).get(layer.getKey()));
+		    } else if (part.getValue() == docPartObj) {
+			// As in the other layout, so that annotations appended later are sorted after the parts
+			layers.append(layer.getKey(), layer.getValue());
+			positions.append(layer.getKey(), layer.getValue());
+		    }
+		}
+		obj.put("layers", layers);
+		obj.put("positions", positions);
+		writes.add(MongoNafWrite.replace(this.documentsColl, docId, obj, this.getWriteConcern("header")));
+	    }
+	    return writes;
+	}
+	DBObject headerObj = this.createHeaderObject(docId, naf);
+	headerObj.put("partitioned", granularity);
+	writes.add(MongoNafWrite.replace(this.headerColl, docId, headerObj, this.getWriteConcern("header")));
+	writes.addAll(this.createLinguisticProcessorWrites(docId, naf));
+	writes.add(MongoNafWrite.replace(this.rawColl, docId, this.createRawTextObject(naf.getRawText(), docId), this.getWriteConcern("raw")));
+	for (Map.Entry<Object, BasicDBObject> part : partObjs.entrySet()) {
+	    Integer paragraph = (Integer) part.getValue().get("paragraph");
+	    Integer sentence = (Integer) part.getValue().get("sentence");
+	    for (Map.Entry<String, List<DBObject>> layer : partLayers.get(part.getKey()).entrySet()) {
+		DBObject layerObj;
+		if (layer.getValue().isEmpty()) {
+		    layerObj = this.createPartObject(docId, paragraph, sentence).append("annotations", layer.getValue());
+		} else {
+		    layerObj = this.createLayerObject(docId, layer.getKey(), layer.getValue(), paragraph, sentence);
+		}
+		layerObj.put("positions", partPositions.get(part.getKey()).get(layer.getKey()));
+		writes.add(MongoNafWrite.replace(this.getLayerCollection(layer.getKey()), docId, layerObj, this.getWriteConcern(layer.getKey())));
+	    }
+	}
+	return writes;
+    }
+
+    // Part object of the paragraph (or sentence) of the WFs an annotation is anchored to, or null if
+    // they are in several parts or the annotation isn't anchored to WFs
+    private BasicDBObject getAnnotationPart(String docId, String layerName, Object annotation, String granularity, Map<String, WF> wfIndex)
+    {
+	List<WF> wfs = this.getAnchorWFs(layerName, annotation, wfIndex);
+	if (wfs == null || wfs.isEmpty()) {
+	    return null;
+	}
+	Integer paragraph = null;
+	Integer sentence = null;
+	for (WF wf : wfs) {
+	    int wfParagraph = wf.hasPara() ? wf.getPara() : 0;
+	    if (paragraph != null && paragraph != wfParagraph) {
+		return null;
+	    }
+	    paragraph = wfParagraph;
+	    if (granularity.equals("S")) {
+		if (sentence != null && sentence != wf.getSent()) {
+		    return null;
+		}
+		sentence = wf.getSent();
+	    }
+	}
+	return this.createPartObject(docId, paragraph, sentence);
+    }
+
+    // WFs an annotation is anchored to (through its terms), or null for relations between annotations
+    private List<WF> getAnchorWFs(String layerName, Object annotation, Map<String, WF> wfIndex)
+    {
+	if (layerName.equals("text")) {
+	    return Collections.singletonList((WF) annotation);
+	}
+	if (layerName.equals("factualitylayer")) {
+	    WF wf = wfIndex.get(((Factuality) annotation).getId());
+	    return (wf != null) ? Collections.singletonList(wf) : null;
+	}
+	if (layerName.equals("timeExpressions")) {
+	    Timex3 timex3 = (Timex3) annotation;
+	    return timex3.hasSpan() ? timex3.getSpan().getTargets() : null;
+	}
+	List<Term> terms = new ArrayList<Term>();
+	if (layerName.equals("terms")) {
+	    terms.add((Term) annotation);
+	} else if (layerName.equals("entities")) {
+	    terms.addAll(((Entity) annotation).getTerms());
+	} else if (layerName.equals("deps")) {
+	    terms.add(((Dep) annotation).getFrom());
+	    terms.add(((Dep) annotation).getTo());
+	} else if (layerName.equals("constituency")) {
+	    this.addTerminalTerms(((Tree) annotation).getRoot(), terms);
+	} else if (layerName.equals("chunks")) {
+	    terms.addAll(((Chunk) annotation).getSpan().getTargets());
+	} else if (layerName.equals("coreferences")) {
+	    for (Span<Term> span : ((Coref) annotation).getSpans()) {
+		terms.addAll(span.getTargets());
+	    }
+	} else if (layerName.equals("opinions")) {
+	    Opinion opinion = (Opinion) annotation;
+	    if (opinion.getOpinionHolder() != null) terms.addAll(opinion.getOpinionHolder().getSpan().getTargets());
+	    if (opinion.getOpinionTarget() != null) terms.addAll(opinion.getOpinionTarget().getSpan().getTargets());
+	    if (opinion.getOpinionExpression() != null) terms.addAll(opinion.getOpinionExpression().getSpan().getTargets());
+	} else if (layerName.equals("srl")) {
+	    Predicate predicate = (Predicate) annotation;
+	    terms.addAll(predicate.getSpan().getTargets());
+	    for (Predicate.Role role : predicate.getRoles()) {
+		terms.addAll(role.getSpan().getTargets());
+	    }
+	} else {
+	    return null;
+	}
+	List<WF> wfs = new ArrayList<WF>();
+	for (Term term : terms) {
+	    wfs.addAll(term.getSpan().getTargets());
+	}
+	return wfs;
+    }
+
+    private void addTerminalTerms(TreeNode node, List<Term> terms)
+    {
+	if (node.isTerminal()) {
+	    terms.addAll(((Terminal) node).getSpan().getTargets());
+	} else {
+	    for (TreeNode child : ((NonTerminal) node).getChildren()) {
+		this.addTerminalTerms(child, terms);
+	    }
+	}
+    }
+
+    // Annotations of a layer, in the order mapLayer maps them
+    private List<?> getLayerAnnotations(KAFDocument naf, String layerName)
+    {
+	if (layerName.equals("text")) return naf.getWFs();
+	if (layerName.equals("terms")) return naf.getTerms();
+	if (layerName.equals("entities")) return naf.getEntities();
+	if (layerName.equals("deps")) return naf.getDeps();
+	if (layerName.equals("constituency")) return naf.getConstituents();
+	if (layerName.equals("chunks")) return naf.getChunks();
+	if (layerName.equals("coreferences")) return naf.getCorefs();
+	if (layerName.equals("opinions")) return naf.getOpinions();
+	if (layerName.equals("srl")) return naf.getPredicates();
+	if (layerName.equals("factualitylayer")) return naf.getFactualities();
+	if (layerName.equals("timeExpressions")) return naf.getTimeExs();
+	if (layerName.equals("temporalRelations")) return naf.getTLinks();
+	if (layerName.equals("causalRelations")) return naf.getCLinks();
+	throw new IllegalArgumentException("Unknown layer: " + layerName);
+    }
+
+    // Maps a layer of a NAF document to the writes storing it (none if the layer is empty)
+    List<MongoNafWrite> createLayerWrites(String docId, KAFDocument naf, String layerName, Integer paragraph, Integer sentence)
+    {
+	List<MongoNafWrite> writes = new ArrayList<MongoNafWrite>();
+	if (layerName.equals("raw")) {
+	    if (this.packed) {
+		BasicDBObject partObj = this.createPartObject(docId, null, null);
+		partObj.append("raw", this.encodeRawText(naf.getRawText()));
+		Object id = partObj.removeField("_id");
+		writes.add(MongoNafWrite.update(this.documentsColl, docId, id, new BasicDBObject("$set", partObj), this.getWriteConcern("raw")));
+	    } else {
+		writes.add(MongoNafWrite.replace(this.rawColl, docId, this.createRawTextObject(naf.getRawText(), docId), this.getWriteConcern("raw")));
+	    }
+	    return writes;
+	}
+	List<DBObject> annDBObjs = this.mapLayer(naf, layerName);
+	if (!annDBObjs.isEmpty()) {
+	    writes.add(this.createLayerWrite(docId, layerName, annDBObjs, paragraph, sentence));
+	}
+	return writes;
+    }
+
+    // Write storing the whole annotation list of a layer
+    private MongoNafWrite createLayerWrite(String docId, String layerName, List<DBObject> annDBObjs, Integer paragraph, Integer sentence)
+    {
+	if (this.packed) {
+	    // Only the given layer of the packed object is updated
+	    BasicDBObject partObj = this.createPartObject(docId, paragraph, sentence);
+	    partObj.append("layers." + layerName, this.encodePackedLayer(layerName, annDBObjs));
+	    Object id = partObj.removeField("_id");
+	    return MongoNafWrite.update(this.documentsColl, docId, id, new BasicDBObject("$set", partObj), this.getWriteConcern(layerName));
+	}
+	DBObject layerObj = this.createLayerObject(docId, layerName, annDBObjs, paragraph, sentence);
+	return MongoNafWrite.replace(this.getLayerCollection(layerName), docId, layerObj, this.getWriteConcern(layerName));
+    }
+
+    // Write appending annotations to the stored annotation list of a layer ($push/$each), creating it if needed
+    private MongoNafWrite createAppendWrite(String docId, String layerName, List<DBObject> annDBObjs, Integer paragraph, Integer sentence)
+    {
+	BasicDBObject partObj = this.createPartObject(docId, paragraph, sentence);
+	Object id = partObj.removeField("_id");
+	DBObject push = new BasicDBObject(this.getAnnotationsPath(layerName), new BasicDBObject("$each", annDBObjs));
+	DBObject update = new BasicDBObject("$setOnInsert", partObj).append("$push", push);
+	return MongoNafWrite.update(this.getAnnotationsCollection(layerName), docId, id, this.stampUpdate(update), this.getWriteConcern(layerName));
+    }
+
+    // Writes turning the stored annotations of a layer into the current ones: changed annotations are
+    // set by position and new annotations at the end are appended. Returns null if it is cheaper (or
+    // only possible) to store the whole layer again: annotations were removed or most of them changed.
+    private List<MongoNafWrite> createDiffWrites(String docId, String layerName, List<DBObject> storedObjs, List<DBObject> annDBObjs, Integer paragraph, Integer sentence)
+    {
+	if (annDBObjs.size() < storedObjs.size()) {
+	    return null;
+	}
+	String path = this.getAnnotationsPath(layerName);
+	BasicDBObject changed = new BasicDBObject();
+	for (int i = 0; i < storedObjs.size(); i++) {
+	    // Compared in their BSON form, as stored objects are read back as BasicDBObject/BasicDBList
+	    if (!Arrays.equals(BSON.encode(storedObjs.get(i)), BSON.encode(annDBObjs.get(i)))) {
+		changed.append(path + "." + i, annDBObjs.get(i));
+	    }
+	}
+	if (changed.size() * 2 > storedObjs.size()) {
+	    return null;
+	}
+	List<MongoNafWrite> writes = new ArrayList<MongoNafWrite>();
+	if (!changed.isEmpty()) {
+	    Object id = this.createPartObject(docId, paragraph, sentence).get("_id");
+	    writes.add(MongoNafWrite.update(this.getAnnotationsCollection(layerName), docId, id, this.stampUpdate(new BasicDBObject("$set", changed)), this.getWriteConcern(layerName)));
+	}
+	// $set of positions and $push can't be applied to the same array in one update
+	if (annDBObjs.size() > storedObjs.size()) {
+	    writes.add(this.createAppendWrite(docId, layerName, annDBObjs.subList(storedObjs.size(), annDBObjs.size()), paragraph, sentence));
+	}
+	return writes;
+    }
+
+    private MongoNafCollection getAnnotationsCollection(String layerName)
+    {
+	return this.packed ? this.documentsColl : this.getLayerCollection(layerName);
+    }
+
+    // Path of the annotation list of a layer in its stored object
+    private String getAnnotationsPath(String layerName)
+    {
+	return this.packed ? "layers." + layerName : "annotations";
+    }
+
+    // Reads the stored object of a layer ({annotations: [...]} or {columns: {...}}), or null if it doesn't exist
+    private DBObject fetchStoredLayer(String docId, String layerName, Integer paragraph, Integer sentence)
+    {
+	Object id = this.createPartObject(docId, paragraph, sentence).get("_id");
+	if (!this.packed) {
+	    return this.getLayerCollection(layerName).findOne(new BasicDBObject("_id", id), null);
+	}
+	DBObject packedObj = this.documentsColl.findOne(new BasicDBObject("_id", id), new BasicDBObject("layers." + layerName, 1));
+	DBObject packedLayers = (packedObj != null) ? (DBObject) packedObj.get("layers") : null;
+	if (packedLayers == null || !packedLayers.containsField(layerName)) {
+	    return null;
+	}
+	Object packedLayer = packedLayers.get(layerName);
+	return (packedLayer instanceof List) ? new BasicDBObject("annotations", packedLayer) : (DBObject) packedLayer;
+    }
+
+    // Runs the writes with a single unordered bulk operation per collection and write concern.
+    // Failed documents are added to errors.
+    void bulkWrite(List<MongoNafWrite> writes, Map<String, MongoNafException> errors)
+    {
+	Map<String, List<MongoNafWrite>> collWrites = new LinkedHashMap<String, List<MongoNafWrite>>();
+	for (MongoNafWrite write : writes) {
+	    String key = write.collection.getName() + "\u0000" + write.concern;
+	    List<MongoNafWrite> objs = collWrites.get(key);
+	    if (objs == null) {
+		objs = new ArrayList<MongoNafWrite>();
+		collWrites.put(key, objs);
+	    }
+	    objs.add(write);
+	}
+	MongoNafMetrics metrics = this.metrics;
+	for (List<MongoNafWrite> objs : collWrites.values()) {
+	    MongoNafCollection collection = objs.get(0).collection;
+	    try {
+		long bytes = (metrics != null) ? this.measureEncoding(metrics, collection.getName(), objs) : 0;
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		Map<Integer, String> writeErrors = collection.bulkWrite(objs, objs.get(0).concern);
+		if (metrics != null) {
+		    metrics.record(collection.getName(), MongoNafMetrics.STORE, System.nanoTime() - start, 0, bytes);
+		}
+		for (Map.Entry<Integer, String> error : writeErrors.entrySet()) {
+		    if (metrics != null) {
+			metrics.recordError(collection.getName(), MongoNafMetrics.STORE);
+		    }
+		    String docId = objs.get(error.getKey()).docId;
+		    if (!errors.containsKey(docId)) {
+			errors.put(docId, new MongoNafException("Error storing document " + docId + " in " + collection.getName() + ": " + error.getValue()));
+		    }
+		}
+	    } catch(MongoException e) {
+		if (metrics != null) {
+		    metrics.recordError(collection.getName(), MongoNafMetrics.STORE);
+		}
+		for (MongoNafWrite write : objs) {
+		    if (!errors.containsKey(write.docId)) {
+			errors.put(write.docId, new MongoNafException("Error storing document " + write.docId + " in " + collection.getName() + ".", e));
+		    }
+		}
+	    }
+	}
+    }
+
+    // Runs the writes of a layer one after another, measuring them if metrics are enabled
+    private void execute(String layerName, List<MongoNafWrite> writes)
+    {
+	MongoNafMetrics metrics = this.metrics;
+	if (metrics == null) {
+	    for (MongoNafWrite write : writes) {
+		write.execute();
+	    }
+	    return;
+	}
+	long bytes = this.measureEncoding(metrics, layerName, writes);
+	long start = System.nanoTime();
+	try {
+	    for (MongoNafWrite write : writes) {
+		write.execute();
+	    }
+	} catch(MongoException e) {
+	    metrics.recordError(layerName, MongoNafMetrics.STORE);
+	    throw e;
+	}
+	metrics.record(layerName, MongoNafMetrics.STORE, System.nanoTime() - start, 0, bytes);
+    }
+
+    // Records the BSON size of the written objects (and the time to encode them) for 1 in
+    // SIZE_SAMPLING writes, returning the estimated size (0 for the writes not sampled)
+    private long measureEncoding(MongoNafMetrics metrics, String layerName, List<MongoNafWrite> writes)
+    {
+	if (!metrics.sampleSize()) {
+	    return 0;
+	}
+	long start = System.nanoTime();
+	long bytes = 0;
+	for (MongoNafWrite write : writes) {
+	    bytes += BSON.encode(write.getObject()).length;
+	}
+	metrics.record(layerName, MongoNafMetrics.ENCODE, System.nanoTime() - start, 0, bytes);
+	return bytes * MongoNafMetrics.SIZE_SAMPLING;
+    }
+
+    private void insertHeader(String docId, KAFDocument naf, Integer paragraph) throws MongoNafException {
+	try {
+	    this.execute("header", Collections.singletonList(this.createHeaderWrite(docId, naf, paragraph)));
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error storing the header of document " + docId + ".", e);
+	} finally {
+	    this.invalidateCache(docId);
+	}
+    }
+
+    // Write of the header of a document, or of a part of it (paragraph not null): parts keep the
+    // fields of the stored header they don't write (e.g. the mark of partitioned documents)
+    private MongoNafWrite createHeaderWrite(String docId, KAFDocument naf, Integer paragraph) {
+	DBObject headerObj = this.createHeaderObject(docId, naf);
+	if (paragraph == null) {
+	    return MongoNafWrite.replace(this.headerColl, docId, headerObj, this.getWriteConcern("header"));
+	}
+	headerObj.removeField("_id");
+	return MongoNafWrite.update(this.headerColl, docId, docId, new BasicDBObject("$set", headerObj), this.getWriteConcern("header"));
+    }
+
+    private DBObject createHeaderObject(String docId, KAFDocument naf) {
 	BasicDBObject doc = new BasicDBObject()
 	    .append("_id", docId)
 	    .append("doc_id", docId)
@@ -179,172 +1354,376 @@ public class MongoNaf {
 	    doc.append("public", publicDoc);
 	}
 
+	return this.stamp(doc);
+    }
+
+    // Insert LPs from a NAF document into the DB, keeping the ones which already exist. All the LPs are
+    // written with a single bulk upsert.
+    public void insertLinguisticProcessors(String docId, KAFDocument naf) throws MongoNafException {
+	List<LinguisticProcessor> lps = naf.getLinguisticProcessorList();
+	if (lps.isEmpty()) {
+	    return;
+	}
+	Map<String, MongoNafException> errors = new HashMap<String, MongoNafException>();
+	this.bulkWrite(this.createLinguisticProcessorWrites(docId, naf), errors);
+	this.invalidateCache(docId);
+	if (errors.containsKey(docId)) {
+	    throw errors.get(docId);
+	}
+    }
+
+    // Upserts of the LPs of a document keyed on their docId_name _id, which only write LPs which don't exist.
+    // In the packed layout, LPs are pushed to the document unless it has one with the same name.
+    private List<MongoNafWrite> createLinguisticProcessorWrites(String docId, KAFDocument naf)
+    {
+	List<MongoNafWrite> writes = new ArrayList<MongoNafWrite>();
+	if (this.packed) {
+	    for (LinguisticProcessor lp : naf.getLinguisticProcessorList()) {
+		DBObject query = new BasicDBObject("_id", docId)
+		    .append("lps.name", new BasicDBObject("$ne", lp.getName()));
+		DBObject lpObj = this.createPackedLinguisticProcessorObject(docId, lp);
+		DBObject update = this.stampUpdate(new BasicDBObject("$push", new BasicDBObject("lps", lpObj)));
+		writes.add(MongoNafWrite.updateIf(this.documentsColl, docId, query, update, this.getWriteConcern("linguisticProcessors")));
+	    }
+	    return writes;
+	}
+	for (LinguisticProcessor lp : naf.getLinguisticProcessorList()) {
+	    DBObject lpObj = this.createLinguisticProcessorObject(docId, lp);
+	    Object id = lpObj.removeField("_id");
+	    writes.add(MongoNafWrite.update(this.lpColl, docId, id, this.stampUpdate(new BasicDBObject("$setOnInsert", lpObj)), this.getWriteConcern("linguisticProcessors")));
+	}
+	return writes;
+    }
+
+    // Insert a given LP into the DB. In the packed layout, an existing LP with the same name is kept.
+    public void insertLinguisticProcessor(String docId, LinguisticProcessor lp) throws MongoNafException {
+	WriteConcern concern = this.getWriteConcern("linguisticProcessors");
 	try {
-	    this.headerColl.save(doc);
+	    if (this.packed) {
+		DBObject query = new BasicDBObject("_id", docId)
+		    .append("lps.name", new BasicDBObject("$ne", lp.getName()));
+		DBObject lpObj = this.createPackedLinguisticProcessorObject(docId, lp);
+		this.documentsColl.update(query, this.stampUpdate(new BasicDBObject("$push", new BasicDBObject("lps", lpObj))), false, concern);
+	    } else {
+		this.lpColl.save(this.createLinguisticProcessorObject(docId, lp), concern);
+	    }
 	} catch(MongoException e) {
-	    System.out.println("Error storing the header");
+	    throw new MongoNafException("Error storing LP " + lp.getName() + " of document " + docId + ".", e);
+	} finally {
+	    this.invalidateCache(docId);
 	}
-	
-	this.insertLinguisticProcessors(docId, naf);
     }
 
-    // Insert LPs from a NAF document into the DB
-    public void insertLinguisticProcessors(String docId, KAFDocument naf) {
-	List<String> existingLps = this.getLinguisticProcessorNames(docId);
-	List<LinguisticProcessor> lps = naf.getLinguisticProcessorList();
-	for (LinguisticProcessor lp : lps) {
-	    if (!existingLps.contains(lp.getName())) {
-		this.insertLinguisticProcessor(docId, lp);
+    private DBObject createLinguisticProcessorObject(String docId, LinguisticProcessor lp) {
+	BasicDBObject doc = new BasicDBObject()
+	    .append("doc_id", docId)
+	    .append("name", lp.getName())
+	    .append("layer", lp.getLayer());
+	String id = docId + "_" + lp.getName();
+	doc.append("_id", id);
+	if (lp.hasTimestamp()) {
+	    doc.append("timestamp", lp.getTimestamp());
+	}
+	if (lp.hasBeginTimestamp()) {
+	    doc.append("beginTimestamp", lp.getBeginTimestamp());
+	}
+	if (lp.hasEndTimestamp()) {
+	    doc.append("endTimestamp", lp.getEndTimestamp());
+	}
+	if (lp.hasVersion()) {
+	    doc.append("version", lp.getVersion());
+	}
+	if (lp.hasHostname()) {
+	    doc.append("hostname", lp.getHostname());
+	}
+	return this.stamp(doc);
+    }
+
+    public void insertLayer(String docId, KAFDocument naf, String layerName)
+	throws MongoNafException
+    {
+	this.insertLayer(docId, naf, layerName, null, null);
+    }
+
+    public void insertLayer(String docId, KAFDocument naf, String layerName, Integer paragraph)
+	throws MongoNafException
+    {
+	this.insertLayer(docId, naf, layerName, paragraph, null);
+    }
+
+    public void insertLayer(String docId, KAFDocument naf, String layerName, Integer paragraph, Integer sentence)
+	throws MongoNafException
+    {
+	try {
+	    List<MongoNafWrite> writes = this.createLayerWrites(docId, naf, layerName, paragraph, sentence);
+	    this.replaceLayerParts(docId, layerName, paragraph);
+	    this.execute(layerName, writes);
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error storing layer " + layerName + " of document " + docId + ".", e);
+	} finally {
+	    this.invalidateCache(docId);
+	}
+    }
+
+    // Appends annotations (kaflib objects of the layer, e.g. Entity for "entities") to a stored layer
+    // with $push/$each, creating the layer if it doesn't exist. A layer stored with the columnar
+    // encoding or compressed is read, extended and stored again.
+    public void appendToLayer(String docId, String layerName, List<?> annotations, Integer paragraph, Integer sentence)
+	throws MongoNafException
+    {
+	MongoNafMetrics metrics = this.metrics;
+	long start = (metrics != null) ? System.nanoTime() : 0;
+	List<DBObject> annDBObjs = new ArrayList<DBObject>();
+	try {
+	    for (Object annotation : annotations) {
+		annDBObjs.add(this.mapAnnotation(layerName, annotation));
+	    }
+	} catch(RuntimeException e) {
+	    if (metrics != null) {
+		metrics.recordError(layerName, MongoNafMetrics.MAP);
+	    }
+	    throw new MongoNafException("Error mapping annotations of layer " + layerName + ".", e);
+	}
+	if (metrics != null) {
+	    metrics.record(layerName, MongoNafMetrics.MAP, System.nanoTime() - start, annDBObjs.size(), 0);
+	}
+	if (annDBObjs.isEmpty()) {
+	    return;
+	}
+	try {
+	    boolean encodable = MongoNafColumnarCodec.supports(layerName) || this.compressionThresholds.containsKey(layerName);
+	    DBObject storedObj = encodable ? this.fetchStoredLayer(docId, layerName, paragraph, sentence) : null;
+	    if (storedObj != null && (storedObj.containsField("columns") || storedObj.containsField("compressed"))) {
+		List<DBObject> allObjs = new ArrayList<DBObject>(this.getAnnotationObjs(layerName, storedObj));
+		allObjs.addAll(annDBObjs);
+		this.execute(layerName, Collections.singletonList(this.createLayerWrite(docId, layerName, allObjs, paragraph, sentence)));
+	    } else {
+		this.execute(layerName, Collections.singletonList(this.createAppendWrite(docId, layerName, annDBObjs, paragraph, sentence)));
+	    }
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error appending to layer " + layerName + " of document " + docId + ".", e);
+	} finally {
+	    this.invalidateCache(docId);
+	}
+    }
+
+    // Stores a layer sending only what changed since it was stored (see createDiffWrites). The whole
+    // layer is stored if it didn't exist, uses the columnar encoding or is compressed.
+    public void updateLayer(String docId, KAFDocument naf, String layerName, Integer paragraph, Integer sentence)
+	throws MongoNafException
+    {
+	if (layerName.equals("raw")) {
+	    this.insertLayer(docId, naf, layerName, paragraph, sentence);
+	    return;
+	}
+	List<DBObject> annDBObjs = this.mapLayer(naf, layerName);
+	try {
+	    // The document level object of a partitioned layer only holds some of its annotations
+	    boolean partitioned = this.replaceLayerParts(docId, layerName, paragraph);
+	    DBObject storedObj = partitioned ? null : this.fetchStoredLayer(docId, layerName, paragraph, sentence);
+	    List<MongoNafWrite> writes = null;
+	    boolean encoded = (this.columnar && MongoNafColumnarCodec.supports(layerName)) || this.compressionThresholds.containsKey(layerName);
+	    if (storedObj != null && storedObj.containsField("annotations") && !encoded) {
+		writes = this.createDiffWrites(docId, layerName, (List<DBObject>) storedObj.get("annotations"), annDBObjs, paragraph, sentence);
+	    }
+	    if (writes == null) {
+		writes = new ArrayList<MongoNafWrite>();
+		if (!annDBObjs.isEmpty()) {
+		    writes.add(this.createLayerWrite(docId, layerName, annDBObjs, paragraph, sentence));
+		}
+	    }
+	    this.execute(layerName, writes);
+	} catch(MongoException e) {
+	    throw new MongoNafException("Error storing layer " + layerName + " of document " + docId + ".", e);
+	} finally {
+	    this.invalidateCache(docId);
+	}
+    }
+
+    // Maps a layer of a NAF document to the object stored in its collection. Returns null if the layer is empty.
+    private DBObject createLayerObject(String docId, KAFDocument naf, String layerName, Integer paragraph, Integer sentence)
+    {
+	List<DBObject> annDBObjs = this.mapLayer(naf, layerName);
+	if (annDBObjs.isEmpty()) {
+	    return null;
+	}
+	return this.createLayerObject(docId, layerName, annDBObjs, paragraph, sentence);
+    }
+
+    private DBObject createLayerObject(String docId, String layerName, List<DBObject> annDBObjs, Integer paragraph, Integer sentence)
+    {
+	DBObject doc = this.createPartObject(docId, paragraph, sentence);
+	doc.putAll(this.encodeLayer(layerName, annDBObjs));
+	return doc;
+    }
+
+    // Returns the stored form of a layer's annotations: {annotations: [...]} or, if the columnar
+    // encoding is enabled and the layer supports it, {columns: {...}}
+    private DBObject encodeLayer(String layerName, List<DBObject> annDBObjs)
+    {
+	DBObject encoded = null;
+	if (this.columnar && MongoNafColumnarCodec.supports(layerName)) {
+	    DBObject columns = MongoNafColumnarCodec.encode(layerName, annDBObjs);
+	    if (columns != null) {
+		encoded = new BasicDBObject("columns", columns);
 	    }
 	}
+	if (encoded == null) {
+	    encoded = new BasicDBObject("annotations", annDBObjs);
+	}
+	return this.compressLayer(layerName, encoded);
     }
 
-    // Insert a given LP into the DB
-    public void insertLinguisticProcessor(String docId, LinguisticProcessor lp) {
-	BasicDBObject doc = new BasicDBObject()
-	    .append("doc_id", docId)
-	    .append("name", lp.getName())
-	    .append("layer", lp.getLayer());
-	String id = docId + "_" + lp.getName();
-	doc.append("_id", id);
-	if (lp.hasTimestamp()) {
-	    doc.append("timestamp", lp.getTimestamp());
-	}
-	if (lp.hasBeginTimestamp()) {
-	    doc.append("beginTimestamp", lp.getBeginTimestamp());
-	}
-	if (lp.hasEndTimestamp()) {
-	    doc.append("endTimestamp", lp.getEndTimestamp());
-	}
-	if (lp.hasVersion()) {
-	    doc.append("version", lp.getVersion());
-	}
-	if (lp.hasHostname()) {
-	    doc.append("hostname", lp.getHostname());
+    // {compressed: <deflated BSON of the encoded layer>} if compression is enabled for the layer and
+    // the layer is large enough
+    private DBObject compressLayer(String layerName, DBObject encoded)
+    {
+	Integer threshold = this.compressionThresholds.get(layerName);
+	if (threshold == null) {
+	    return encoded;
 	}
-	try {
-	    this.lpColl.save(doc);
-	} catch(MongoException e) {
-	    System.out.println("Error storing a LP.");
+	byte[] bson = BSON.encode(encoded);
+	if (bson.length < threshold) {
+	    return encoded;
 	}
+	return new BasicDBObject("compressed", MongoNafCompression.compressObject(bson));
     }
 
-    public void insertLayer(String docId, KAFDocument naf, String layerName)
+    // The raw text as stored: the string, or its compressed bytes
+    private Object encodeRawText(String rawText)
     {
-	this.insertLayer(docId, naf, layerName, null, null);
+	Integer threshold = this.compressionThresholds.get("raw");
+	if (threshold == null || rawText == null || rawText.getBytes(Charset.forName("UTF-8")).length < threshold) {
+	    return rawText;
+	}
+	return MongoNafCompression.compressText(rawText);
     }
 
-    public void insertLayer(String docId, KAFDocument naf, String layerName, Integer paragraph)
+    // Value stored for a layer in the packed layout: the annotation list, or the columns object
+    private Object encodePackedLayer(String layerName, List<DBObject> annDBObjs)
     {
-	this.insertLayer(docId, naf, layerName, paragraph, null);
+	DBObject encoded = this.encodeLayer(layerName, annDBObjs);
+	return encoded.containsField("annotations") ? encoded.get("annotations") : encoded;
     }
 
-    public void insertLayer(String docId, KAFDocument naf, String layerName, Integer paragraph, Integer sentence)
+    private List<DBObject> mapLayer(KAFDocument naf, String layerName)
     {
-	if (layerName.equals("raw")) {
-	    String layer = naf.getRawText();
-	    this.insertRawText(layer, docId);
+	MongoNafMetrics metrics = this.metrics;
+	if (metrics == null) {
+	    return this.mapAnnotations(naf, layerName);
 	}
-	else {
-	    List<DBObject> annDBObjs = new ArrayList<DBObject>();
-	    DBCollection docCollection = null;
-	    if (layerName.equals("text")) {
-		for (WF annotation : naf.getWFs()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.textColl;
-	    }
-	    if (layerName.equals("terms")) {
-	        for (Term annotation : naf.getTerms()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.termsColl;
+	long start = System.nanoTime();
+	List<DBObject> annDBObjs;
+	try {
+	    annDBObjs = this.mapAnnotations(naf, layerName);
+	} catch(RuntimeException e) {
+	    metrics.recordError(layerName, MongoNafMetrics.MAP);
+	    throw e;
+	}
+	metrics.record(layerName, MongoNafMetrics.MAP, System.nanoTime() - start, annDBObjs.size(), 0);
+	return annDBObjs;
+    }
+
+    private List<DBObject> mapAnnotations(KAFDocument naf, String layerName)
+    {
+	List<DBObject> annDBObjs = new ArrayList<DBObject>();
+	if (layerName.equals("text")) {
+	    for (WF annotation : naf.getWFs()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("entities")) {
-		for (Entity annotation : naf.getEntities()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.entitiesColl;
+	}
+	if (layerName.equals("terms")) {
+	    for (Term annotation : naf.getTerms()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("deps")) {
-	        for (Dep annotation : naf.getDeps()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.depsColl;
+	}
+	if (layerName.equals("entities")) {
+	    for (Entity annotation : naf.getEntities()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("constituency")) {
-	        for (Tree annotation : naf.getConstituents()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.constituentsColl;
+	}
+	if (layerName.equals("deps")) {
+	    for (Dep annotation : naf.getDeps()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("chunks")) {
-	        for (Chunk annotation : naf.getChunks()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.chunksColl;
+	}
+	if (layerName.equals("constituency")) {
+	    for (Tree annotation : naf.getConstituents()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("coreferences")) {
-	        for (Coref annotation : naf.getCorefs()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.corefsColl;
+	}
+	if (layerName.equals("chunks")) {
+	    for (Chunk annotation : naf.getChunks()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("opinions")) {
-	        for (Opinion annotation : naf.getOpinions()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.opinionsColl;
+	}
+	if (layerName.equals("coreferences")) {
+	    for (Coref annotation : naf.getCorefs()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("srl")) { 
-	        for (Predicate annotation : naf.getPredicates()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.srlColl;
+	}
+	if (layerName.equals("opinions")) {
+	    for (Opinion annotation : naf.getOpinions()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("factualitylayer")) {
-	        for (Factuality annotation : naf.getFactualities()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.factualityColl;
+	}
+	if (layerName.equals("srl")) {
+	    for (Predicate annotation : naf.getPredicates()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("timeExpressions")) { 
-		for (Timex3 annotation : naf.getTimeExs()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.timeExpressionsColl;
+	}
+	if (layerName.equals("factualitylayer")) {
+	    for (Factuality annotation : naf.getFactualities()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("temporalRelations")) { 
-		for (TLink annotation : naf.getTLinks()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.temporalRelationsColl;
+	}
+	if (layerName.equals("timeExpressions")) {
+	    for (Timex3 annotation : naf.getTimeExs()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (layerName.equals("causalRelations")) { 
-		for (CLink annotation : naf.getCLinks()) {
-		    annDBObjs.add(this.map(annotation));
-		}
-		docCollection = this.causalRelationsColl;
+	}
+	if (layerName.equals("temporalRelations")) {
+	    for (TLink annotation : naf.getTLinks()) {
+		annDBObjs.add(this.map(annotation));
 	    }
-	    if (annDBObjs.size() > 0) {
-		this.insertDocument(annDBObjs, docCollection, docId, paragraph, sentence);
+	}
+	if (layerName.equals("causalRelations")) {
+	    for (CLink annotation : naf.getCLinks()) {
+		annDBObjs.add(this.map(annotation));
 	    }
 	}
+	return annDBObjs;
+    }
+
+    // Maps a single annotation of the given layer
+    private DBObject mapAnnotation(String layerName, Object annotation)
+    {
+	if (layerName.equals("text")) return this.map((WF) annotation);
+	if (layerName.equals("terms")) return this.map((Term) annotation);
+	if (layerName.equals("entities")) return this.map((Entity) annotation);
+	if (layerName.equals("deps")) return this.map((Dep) annotation);
+	if (layerName.equals("constituency")) return this.map((Tree) annotation);
+	if (layerName.equals("chunks")) return this.map((Chunk) annotation);
+	if (layerName.equals("coreferences")) return this.map((Coref) annotation);
+	if (layerName.equals("opinions")) return this.map((Opinion) annotation);
+	if (layerName.equals("srl")) return this.map((Predicate) annotation);
+	if (layerName.equals("factualitylayer")) return this.map((Factuality) annotation);
+	if (layerName.equals("timeExpressions")) return this.map((Timex3) annotation);
+	if (layerName.equals("temporalRelations")) return this.map((TLink) annotation);
+	if (layerName.equals("causalRelations")) return this.map((CLink) annotation);
+	throw new IllegalArgumentException("Unknown layer: " + layerName);
     }
 
-    private void insertRawText(String rawText, String docId)
+    private DBObject createRawTextObject(String rawText, String docId)
     {
 	String id = docId;
 	DBObject doc = new BasicDBObject("_id", id)
 	    .append("doc_id", docId)
-	    .append("raw", rawText);
-	try {
-	    this.rawColl.save(doc);
-	} catch(MongoException e) {
-	}
+	    .append("raw", this.encodeRawText(rawText));
+	return this.stamp(doc);
     }
 
-    private void insertDocument(List<DBObject> annotations, DBCollection collection, String docId, Integer paragraph, Integer sentence) {
+    private BasicDBObject createPartObject(String docId, Integer paragraph, Integer sentence) {
 	BasicDBObject doc = new BasicDBObject()
 	    .append("doc_id", docId);
 	String id = docId;
@@ -357,12 +1736,57 @@ public class MongoNaf {
 	    }
 	}
 	doc.append("_id", id);
-	doc.append("annotations", annotations);
-	try {
-	    collection.save(doc);
-	} catch(MongoException e) {
-	    System.out.println("Error storing a layer.");
+	return this.stamp(doc);
+    }
+
+    // Packed layout: the object of a document holds its header, LPs and raw text, plus the layers
+    // when the whole document is stored at once. Paragraph/sentence parts are stored as separate objects
+    // holding only their layers.
+    private void insertPackedDocument(String docId, KAFDocument naf, Integer paragraph, Integer sentence)
+	throws MongoNafException
+    {
+	Map<String, MongoNafException> errors = new HashMap<String, MongoNafException>();
+	this.bulkWrite(this.createDocumentWrites(docId, naf, paragraph, sentence), errors);
+	this.invalidateCache(docId);
+	if (errors.containsKey(docId)) {
+	    throw errors.get(docId);
+	}
+    }
+
+    private DBObject createPackedObject(String docId, KAFDocument naf, Integer paragraph, Integer sentence, boolean withLayers)
+    {
+	BasicDBObject doc = this.createPartObject(docId, paragraph, sentence);
+	DBObject header = this.createHeaderObject(docId, naf);
+	header.removeField("_id");
+	header.removeField("doc_id");
+	header.removeField(INSERTED_AT);
+	doc.append("header", header);
+	List<DBObject> lps = new ArrayList<DBObject>();
+	for (LinguisticProcessor lp : naf.getLinguisticProcessorList()) {
+	    lps.add(this.createPackedLinguisticProcessorObject(docId, lp));
+	}
+	doc.append("lps", lps);
+	doc.append("raw", this.encodeRawText(naf.getRawText()));
+	if (withLayers) {
+	    BasicDBObject layers = new BasicDBObject();
+	    for (String layerName : LAYER_NAMES) {
+		List<DBObject> annDBObjs = this.mapLayer(naf, layerName);
+		if (!annDBObjs.isEmpty()) {
+		    layers.append(layerName, this.encodePackedLayer(layerName, annDBObjs));
+		}
+	    }
+	    doc.append("layers", layers);
 	}
+	return doc;
+    }
+
+    private DBObject createPackedLinguisticProcessorObject(String docId, LinguisticProcessor lp)
+    {
+	DBObject lpObj = this.createLinguisticProcessorObject(docId, lp);
+	lpObj.removeField("_id");
+	lpObj.removeField("doc_id");
+	lpObj.removeField(INSERTED_AT);
+	return lpObj;
     }
 
     private DBObject map(WF wf) {
@@ -749,191 +2173,653 @@ public class MongoNaf {
     }
 
     public KAFDocument getNaf(String docId, List<String> layerNames, String granularity, Integer part) throws Exception
+    {
+	return this.getNaf(docId, layerNames, granularity, part, part);
+    }
+
+    // Create a NAF document from the paragraphs ("P") or sentences ("S") between from and to (both included).
+    // All the matching parts are merged into one NAF document, in document order. A null limit leaves that side open.
+    public KAFDocument getNaf(String docId, List<String> layerNames, String granularity, Integer from, Integer to) throws Exception
+    {
+	return this.getNaf(docId, layerNames, granularity, from, to, this.nafParameters);
+    }
+
+    // Same as above, using the given NAF parameters instead of the instance's defaults
+    public KAFDocument getNaf(String docId, List<String> layerNames, String granularity, Integer from, Integer to, NafParameters params) throws Exception
     {
 	/*
 	if (!this.validLayerName(layerName)) {
 	    return null;
 	}
 	*/
-	List<String> layerNamesCp = new ArrayList<String>(layerNames);
+	final String id = docId;
+	final BasicDBObject query = this.createQuery(docId, granularity, from, to);
+	MongoNafCache cache = this.cache;
+	// Read before anything else, so that layers read before a write of the document aren't cached after it
+	long generation = (cache != null) ? cache.getGeneration(docId) : 0;
+	Map<String, List<DBObject>> layerObjs = new HashMap<String, List<DBObject>>();
+	List<String> layersToFetch = new ArrayList<String>();
+	for (String layerName : this.getLayersToFetch(layerNames)) {
+	    List<DBObject> cachedObjs = (cache != null) ? cache.get(MongoNafCache.key(docId, layerName, granularity, from, to)) : null;
+	    if (cachedObjs != null) {
+		layerObjs.put(layerName, cachedObjs);
+	    } else {
+		layersToFetch.add(layerName);
+	    }
+	}
+	if (!layersToFetch.isEmpty()) {
+	    Map<String, List<DBObject>> fetchedObjs;
+	    if (this.packed) {
+		DBObject packedQuery = new BasicDBObject("$or", Arrays.asList(new BasicDBObject("_id", docId), query));
+		List<DBObject> packedObjs = this.fetchPacked(packedQuery, this.createPackedProjection(layersToFetch));
+		fetchedObjs = this.unpack(docId, packedObjs, layersToFetch, !granularity.equals("D"));
+	    } else {
+		Map<String, Callable<List<DBObject>>> fetches = new LinkedHashMap<String, Callable<List<DBObject>>>();
+		for (final String layerName : layersToFetch) {
+		    fetches.put(layerName, new Callable<List<DBObject>>() {
+			public List<DBObject> call() {
+			    return fetchLayer(id, query, layerName);
+			}
+		    });
+		}
+		fetchedObjs = this.fetchAll(fetches, "document " + docId, this.readExecutor);
+		if (granularity.equals("D")) {
+		    List<DBObject> headerObjs = fetchedObjs.containsKey("header") ? fetchedObjs.get("header") : layerObjs.get("header");
+		    this.selectDocumentObjs(fetchedObjs, headerObjs);
+		}
+	    }
+	    layerObjs.putAll(fetchedObjs);
+	    if (cache != null) {
+		for (Map.Entry<String, List<DBObject>> entry : fetchedObjs.entrySet()) {
+		    cache.put(docId, MongoNafCache.key(docId, entry.getKey(), granularity, from, to), entry.getValue(), generation);
+		}
+	    }
+	}
+	if (layerObjs.get("header").isEmpty()) {
+	    throw new MongoNafException("Document " + docId + " not found.");
+	}
+	return this.buildNaf(layerObjs, this.isAllLayers(layerNames), params);
+    }
 
-	BasicDBObject headerQuery = new BasicDBObject("doc_id", docId);
-	DBObject headerObj = this.headerColl.findOne(headerQuery);
-	KAFDocument naf = new KAFDocument((String) headerObj.get("lang"), (String) headerObj.get("version"));
+    // Create NAF documents from MongoDB only containing the given layers. Each collection is queried
+    // once for all the documents, and the parts stored for a document are merged into one NAF document.
+    // Documents which don't exist are left out of the returned map.
+    public Map<String, KAFDocument> getNafs(List<String> docIds, List<String> layerNames) throws Exception
+    {
+	return this.getNafs(docIds, layerNames, this.nafParameters);
+    }
 
-	// If full document was requested, return the LPs too
-	if (layerNames.size() == 1 && layerNames.get(0).equals("all")) { 
-	    this.getHeader(naf, headerObj);
-	    this.getLinguisticProcessors(docId, naf);
+    public Map<String, KAFDocument> getNafs(List<String> docIds, List<String> layerNames, NafParameters params) throws Exception
+    {
+	final DBObject query = new BasicDBObject("doc_id", new BasicDBObject("$in", docIds));
+	List<String> layersToFetch = this.getLayersToFetch(layerNames);
+	Map<String, KAFDocument> nafs = new LinkedHashMap<String, KAFDocument>();
+	if (this.packed) {
+	    List<DBObject> packedObjs = this.fetchPacked(query, this.createPackedProjection(layersToFetch));
+	    Map<String, List<DBObject>> docPackedObjs = this.groupByDocument(packedObjs);
+	    for (String docId : docIds) {
+		if (docPackedObjs.containsKey(docId)) {
+		    Map<String, List<DBObject>> layerObjs = this.unpack(docId, docPackedObjs.get(docId), layersToFetch, false);
+		    if (!layerObjs.get("header").isEmpty()) {
+			nafs.put(docId, this.buildNaf(layerObjs, this.isAllLayers(layerNames), params));
+		    }
+		}
+	    }
+	    return nafs;
+	}
+
+	Map<String, Callable<Map<String, List<DBObject>>>> fetches = new LinkedHashMap<String, Callable<Map<String, List<DBObject>>>>();
+	for (final String layerName : layersToFetch) {
+	    fetches.put(layerName, new Callable<Map<String, List<DBObject>>>() {
+		public Map<String, List<DBObject>> call() {
+		    return fetchDocumentsLayer(query, layerName);
+		}
+	    });
 	}
+	Map<String, Map<String, List<DBObject>>> docLayerObjs = this.fetchAll(fetches, "documents " + docIds, this.readExecutor);
 
-	HashMap<String, WF> wfIndex = new HashMap<String, WF>();
-	HashMap<String, Term> termIndex = new HashMap<String, Term>();
-	HashMap<String, Predicate> predicateIndex = new HashMap<String, Predicate>();
-	HashMap<String, Timex3> timexIndex = new HashMap<String, Timex3>();
+	for (String docId : docIds) {
+	    Map<String, List<DBObject>> layerObjs = new HashMap<String, List<DBObject>>();
+	    for (Map.Entry<String, Map<String, List<DBObject>>> entry : docLayerObjs.entrySet()) {
+		List<DBObject> objs = entry.getValue().get(docId);
+		layerObjs.put(entry.getKey(), objs != null ? objs : new ArrayList<DBObject>());
+	    }
+	    this.selectDocumentObjs(layerObjs, layerObjs.get("header"));
+	    if (!layerObjs.get("header").isEmpty()) {
+		nafs.put(docId, this.buildNaf(layerObjs, this.isAllLayers(layerNames), params));
+	    }
+	}
+	return nafs;
+    }
 
-	BasicDBObject query = this.createQuery(docId, granularity, part);
-	DBObject nafObj;
+    // Streams every stored document, in doc_id order, with the given layers. A cursor per collection
+    // (a single one in the packed layout) reads all the stored objects sorted by doc_id, and the cursors
+    // are merged by doc_id as they are read. Documents are rebuilt on the executor in batches of
+    // batchSize documents, keeping up to maxPendingBatches batches in flight (with a null executor,
+    // each batch is rebuilt when the previous one has been consumed). Close the iterator to cancel the
+    // pending batches and close the cursors.
+    public MongoNafCorpusIterator iterateCorpus(List<String> layerNames, int batchSize, ExecutorService executor, int maxPendingBatches)
+    {
+	return new MongoNafCorpusIterator(this, layerNames, this.nafParameters, batchSize, executor, maxPendingBatches);
+    }
 
+    public MongoNafCorpusIterator iterateCorpus(List<String> layerNames)
+    {
+	return this.iterateCorpus(layerNames, this.batchSize, null, 1);
+    }
 
-	// Raw text
-	this.queryRawTextLayer(docId, naf);
-	layerNamesCp.remove("raw");
-	if (layerNamesCp.isEmpty()) return naf;
-	
-	// Text
-	nafObj = this.textColl.findOne(query);
-	if (nafObj != null) {
-	    for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		this.getWf(mongoAnnotation, naf, wfIndex);
+    // Cursors over all the stored objects of the given layers, sorted by doc_id (parts in document
+    // order), for MongoNafCorpusIterator to merge. In the packed layout, a single cursor over the
+    // "documents" collection.
+    Map<String, Iterator<DBObject>> iterateLayers(List<String> layersToFetch)
+    {
+	Map<String, Iterator<DBObject>> cursors = new LinkedHashMap<String, Iterator<DBObject>>();
+	if (this.packed) {
+	    cursors.put("documents", this.documentsColl.iterate(new BasicDBObject(), this.createPackedProjection(layersToFetch), PART_ORDER));
+	    return cursors;
+	}
+	for (String layerName : layersToFetch) {
+	    if (layerName.equals("header")) {
+		cursors.put(layerName, this.headerColl.iterate(new BasicDBObject(), null, PART_ORDER));
+	    } else if (layerName.equals("linguisticProcessors")) {
+		cursors.put(layerName, this.lpColl.iterate(new BasicDBObject(), null, new BasicDBObject("doc_id", 1)));
+	    } else if (layerName.equals("raw")) {
+		cursors.put(layerName, this.rawColl.iterate(new BasicDBObject(), null, PART_ORDER));
+	    } else {
+		cursors.put(layerName, this.getLayerCollection(layerName).iterate(new BasicDBObject(), null, PART_ORDER));
+	    }
+	}
+	return cursors;
+    }
+
+    // Rebuilds a document read by MongoNafCorpusIterator from its objects read from each cursor of
+    // iterateLayers. Returns null if the document has no header (e.g. it's being inserted or removed).
+    KAFDocument buildCorpusNaf(String docId, Map<String, List<DBObject>> cursorObjs, List<String> layerNames, NafParameters params)
+    {
+	List<String> layersToFetch = this.getLayersToFetch(layerNames);
+	Map<String, List<DBObject>> layerObjs;
+	if (this.packed) {
+	    layerObjs = this.unpack(docId, cursorObjs.get("documents"), layersToFetch, false);
+	} else {
+	    layerObjs = new HashMap<String, List<DBObject>>();
+	    for (String layerName : layersToFetch) {
+		List<DBObject> objs = cursorObjs.get(layerName);
+		layerObjs.put(layerName, objs != null ? objs : new ArrayList<DBObject>());
 	    }
+	    this.selectDocumentObjs(layerObjs, layerObjs.get("header"));
+	}
+	if (layerObjs.get("header").isEmpty()) {
+	    return null;
 	}
-	layerNamesCp.remove("text");
-	if (layerNamesCp.isEmpty()) return naf;
+	return this.buildNaf(layerObjs, this.isAllLayers(layerNames), params);
+    }
 
-	// Terms
-	nafObj = this.termsColl.findOne(query);
-	if (nafObj != null) {
-	    for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		this.getTerm(mongoAnnotation, naf, termIndex, wfIndex);
+    // Compares two doc_ids in the order MongoDB sorts strings: by their UTF-8 bytes, that is, by code
+    // points (String.compareTo compares UTF-16 chars, which orders supplementary characters differently)
+    static int compareDocIds(String a, String b)
+    {
+	int i = 0;
+	int j = 0;
+	while (i < a.length() && j < b.length()) {
+	    int codePointA = a.codePointAt(i);
+	    int codePointB = b.codePointAt(j);
+	    if (codePointA != codePointB) {
+		return codePointA - codePointB;
 	    }
+	    i += Character.charCount(codePointA);
+	    j += Character.charCount(codePointB);
 	}
-	layerNamesCp.remove("terms");
-	if (layerNamesCp.isEmpty()) return naf;
+	return (a.length() - i) - (b.length() - j);
+    }
 
-	// Entities
-	if (layerNamesCp.contains("entities") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.entitiesColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getEntity(mongoAnnotation, naf, termIndex);
+    // Keeps the objects of a whole document read (at "D" granularity) from all its stored objects. A layer
+    // stored for the whole document is read from its document object, not merged with parts stored
+    // with insertNafDocument. Layers only stored by parts, and all the layers of a document stored with
+    // insertNafDocumentPartitioned, are merged from all their parts.
+    private void selectDocumentObjs(Map<String, List<DBObject>> layerObjs, List<DBObject> headerObjs)
+    {
+	if (headerObjs.isEmpty() || headerObjs.get(0).containsField("partitioned")) {
+	    return;
+	}
+	for (String layerName : LAYER_NAMES) {
+	    if (layerObjs.containsKey(layerName)) {
+		List<DBObject> docObjs = new ArrayList<DBObject>();
+		for (DBObject obj : layerObjs.get(layerName)) {
+		    if (!obj.containsField("paragraph")) {
+			docObjs.add(obj);
+		    }
+		}
+		if (!docObjs.isEmpty()) {
+		    layerObjs.put(layerName, docObjs);
 		}
 	    }
-	    layerNamesCp.remove("entities");
-	    if (layerNamesCp.isEmpty()) return naf;
 	}
+    }
 
-	// Deps
-	if (layerNamesCp.contains("deps") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.depsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getDep(mongoAnnotation, naf, termIndex);
-		}
+    private boolean isAllLayers(List<String> layerNames)
+    {
+	return layerNames.size() == 1 && layerNames.get(0).equals("all");
+    }
+
+    // Rebuilds a NAF document from the objects read from each collection
+    private KAFDocument buildNaf(Map<String, List<DBObject>> layerObjs, boolean allLayers, NafParameters params)
+    {
+	DBObject headerObj = layerObjs.get("header").get(0);
+	String lang = (headerObj.get("lang") != null) ? (String) headerObj.get("lang") : params.getLang();
+	String version = (headerObj.get("version") != null) ? (String) headerObj.get("version") : params.getVersion();
+	KAFDocument naf = new KAFDocument(lang, version);
+
+	// If full document was requested, return the LPs too
+	if (allLayers) {
+	    this.getHeader(naf, headerObj);
+	    for (DBObject mongoLp : layerObjs.get("linguisticProcessors")) {
+		this.getLp(mongoLp, naf);
+	    }
+	}
+
+	// Raw text
+	if (layerObjs.containsKey("raw")) {
+	    for (DBObject rawTextObj : layerObjs.get("raw")) {
+		naf.setRawText(MongoNafCompression.decompressText(rawTextObj.get("raw")));
 	    }
-	    layerNamesCp.remove("deps");
-	    if (layerNamesCp.isEmpty()) return naf;
 	}
 
-	// Constituents
-	if (layerNamesCp.contains("constituency") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.constituentsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getTree(mongoAnnotation, naf, termIndex);
+	// Annotation layers, rebuilt in dependency order
+	MongoNafIdIndex<WF> wfIndex = new MongoNafIdIndex<WF>("w");
+	MongoNafIdIndex<Term> termIndex = new MongoNafIdIndex<Term>("t");
+	MongoNafIdIndex<Predicate> predicateIndex = new MongoNafIdIndex<Predicate>("pr");
+	MongoNafIdIndex<Timex3> timexIndex = new MongoNafIdIndex<Timex3>("tmx");
+	MongoNafMetrics metrics = this.metrics;
+	for (String layerName : LAYER_NAMES) {
+	    if (layerObjs.containsKey(layerName)) {
+		long start = (metrics != null) ? System.nanoTime() : 0;
+		int annotations = 0;
+		try {
+		    List<List<DBObject>> parts = new ArrayList<List<DBObject>>();
+		    for (DBObject nafObj : layerObjs.get(layerName)) {
+			List<DBObject> partAnnotations = this.getAnnotationObjs(layerName, nafObj);
+			parts.add(partAnnotations);
+			annotations += partAnnotations.size();
+		    }
+		    // Size the index of the layer (if it has one) for all its annotations at once
+		    MongoNafIdIndex<?> index = layerName.equals("text") ? wfIndex
+			: layerName.equals("terms") ? termIndex
+			: layerName.equals("srl") ? predicateIndex
+			: layerName.equals("timeExpressions") ? timexIndex
+			: null;
+		    if (index != null) {
+			index.ensureCapacity(annotations);
+		    }
+		    List<DBObject> sortedAnnotations = (parts.size() > 1) ? this.sortByPosition(layerObjs.get(layerName), parts) : null;
+		    if (sortedAnnotations != null) {
+			for (DBObject mongoAnnotation : sortedAnnotations) {
+			    this.getAnnotation(layerName, mongoAnnotation, naf, wfIndex, termIndex, predicateIndex, timexIndex);
+			}
+		    } else {
+			for (List<DBObject> partAnnotations : parts) {
+			    for (DBObject mongoAnnotation : partAnnotations) {
+				this.getAnnotation(layerName, mongoAnnotation, naf, wfIndex, termIndex, predicateIndex, timexIndex);
+			    }
+			}
+		    }
+		} catch(RuntimeException e) {
+		    if (metrics != null) {
+			metrics.recordError(layerName, MongoNafMetrics.BUILD);
+		    }
+		    throw e;
 		}
+		if (metrics != null) {
+		    metrics.record(layerName, MongoNafMetrics.BUILD, System.nanoTime() - start, annotations, 0);
+		}
+	    }
+	}
+
+	return naf;
+    }
+
+    // Annotations of the objects of a layer stored with insertNafDocumentPartitioned, in their order in
+    // the document layer (e.g. annotations spanning parts, stored at document level, between the ones
+    // of the parts). Annotations appended later to an object (without positions) go at the end.
+    // Returns null if an object has no positions (it was written some other way), so they are taken
+    // in the order of the objects.
+    private List<DBObject> sortByPosition(List<DBObject> layerObjs, List<List<DBObject>> parts)
+    {
+	List<Object[]> positioned = new ArrayList<Object[]>();
+	for (int i = 0; i < parts.size(); i++) {
+	    List<?> positions = (List<?>) layerObjs.get(i).get("positions");
+	    if (positions == null || positions.size() > parts.get(i).size()) {
+		return null;
+	    }
+	    for (int j = 0; j < parts.get(i).size(); j++) {
+		int position = (j < positions.size()) ? ((Number) positions.get(j)).intValue() : Integer.MAX_VALUE;
+		positioned.add(new Object[] {position, parts.get(i).get(j)});
+	    }
+	}
+	Collections.sort(positioned, new Comparator<Object[]>() {
+	    public int compare(Object[] a, Object[] b) {
+		return ((Integer) a[0]).compareTo((Integer) b[0]);
+	    }
+	});
+	List<DBObject> annotations = new ArrayList<DBObject>(positioned.size());
+	for (Object[] annotation : positioned) {
+	    annotations.add((DBObject) annotation[1]);
+	}
+	return annotations;
+    }
+
+    // Returns the collections getNaf has to read for the requested layers: the requested layers plus
+    // the layers they are anchored to. Raw text is only read if requested.
+    List<String> getLayersToFetch(List<String> layerNames)
+    {
+	List<String> layersToFetch = new ArrayList<String>();
+	boolean allLayers = this.isAllLayers(layerNames);
+	layersToFetch.add("header");
+	if (allLayers) {
+	    layersToFetch.add("linguisticProcessors");
+	}
+	if (allLayers || layerNames.contains("raw")) {
+	    layersToFetch.add("raw");
+	}
+	Set<String> neededLayers = new HashSet<String>();
+	for (String layerName : layerNames) {
+	    this.addLayerClosure(layerName, neededLayers);
+	}
+	for (String layerName : LAYER_NAMES) {
+	    if (allLayers || neededLayers.contains(layerName)) {
+		layersToFetch.add(layerName);
+	    }
+	}
+	return layersToFetch;
+    }
+
+    private void addLayerClosure(String layerName, Set<String> neededLayers)
+    {
+	if (LAYER_DEPENDENCIES.containsKey(layerName) && neededLayers.add(layerName)) {
+	    for (String dependency : LAYER_DEPENDENCIES.get(layerName)) {
+		this.addLayerClosure(dependency, neededLayers);
 	    }
-	    layerNamesCp.remove("constituency");
-	    if (layerNamesCp.isEmpty()) return naf;
 	}
+    }
 
-	// Chunks
-	if (layerNamesCp.contains("chunks") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.chunksColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getChunk(mongoAnnotation, naf, termIndex);
+    // Runs the given reads, concurrently when an executor is given
+    private <T> Map<String, T> fetchAll(Map<String, Callable<T>> fetches, String description, ExecutorService executor) throws MongoNafException
+    {
+	Map<String, T> results = new HashMap<String, T>();
+	if (executor == null) {
+	    for (Map.Entry<String, Callable<T>> fetch : fetches.entrySet()) {
+		try {
+		    results.put(fetch.getKey(), fetch.getValue().call());
+		} catch (Exception e) {
+		    throw new MongoNafException("Error reading the " + fetch.getKey() + " layer.", e);
 		}
 	    }
-	    layerNamesCp.remove("chunks");
-	    if (layerNamesCp.isEmpty()) return naf;
+	    return results;
 	}
-	
-	// Coreferences
-	if (layerNamesCp.contains("coreferences") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.corefsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getCoref(mongoAnnotation, naf, termIndex);
+	Map<String, Future<T>> futures = new LinkedHashMap<String, Future<T>>();
+	for (Map.Entry<String, Callable<T>> fetch : fetches.entrySet()) {
+	    futures.put(fetch.getKey(), executor.submit(fetch.getValue()));
+	}
+	try {
+	    for (Map.Entry<String, Future<T>> future : futures.entrySet()) {
+		try {
+		    results.put(future.getKey(), future.getValue().get());
+		} catch (ExecutionException e) {
+		    throw new MongoNafException("Error reading the " + future.getKey() + " layer.", e.getCause());
 		}
 	    }
-	    layerNamesCp.remove("coreferences");
-	    if (layerNamesCp.isEmpty()) return naf;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new MongoNafException("Interrupted while reading " + description + ".", e);
+	} finally {
+	    for (Future<T> future : futures.values()) {
+		future.cancel(true);
+	    }
 	}
+	return results;
+    }
 
-	// Opinions
-	if (layerNamesCp.contains("opinions") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.opinionsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getOpinion(mongoAnnotation, naf, termIndex);
-		}
+    private List<DBObject> fetchLayer(String docId, DBObject query, String layerName)
+    {
+	MongoNafMetrics metrics = this.metrics;
+	long start = (metrics != null) ? System.nanoTime() : 0;
+	List<DBObject> objs;
+	try {
+	    if (layerName.equals("header")) {
+		objs = this.asList(this.headerColl.findOne(new BasicDBObject("doc_id", docId), null));
+	    } else if (layerName.equals("linguisticProcessors")) {
+		objs = this.lpColl.find(new BasicDBObject("doc_id", docId), null, null);
+	    } else if (layerName.equals("raw")) {
+		objs = this.asList(this.rawColl.findOne(new BasicDBObject("_id", docId), null));
+	    } else {
+		// All the stored parts matching the query, in document order
+		objs = this.getLayerCollection(layerName).find(query, null, PART_ORDER);
+	    }
+	} catch(RuntimeException e) {
+	    if (metrics != null) {
+		metrics.recordError(layerName, MongoNafMetrics.FETCH);
 	    }
-	    layerNamesCp.remove("opinions");
-	    if (layerNamesCp.isEmpty()) return naf;
+	    throw e;
 	}
+	if (metrics != null) {
+	    this.recordFetch(metrics, layerName, start, objs);
+	}
+	return objs;
+    }
 
-	// SRL
-	if (layerNamesCp.contains("srl") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.srlColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getPredicate(mongoAnnotation, naf, predicateIndex, termIndex);
-		}
+    private List<DBObject> asList(DBObject obj)
+    {
+	List<DBObject> objs = new ArrayList<DBObject>();
+	if (obj != null) {
+	    objs.add(obj);
+	}
+	return objs;
+    }
+
+    // Reads packed objects (measured as the "documents" layer)
+    private List<DBObject> fetchPacked(DBObject query, DBObject projection)
+    {
+	MongoNafMetrics metrics = this.metrics;
+	if (metrics == null) {
+	    return this.documentsColl.find(query, projection, PART_ORDER);
+	}
+	long start = System.nanoTime();
+	List<DBObject> objs;
+	try {
+	    objs = this.documentsColl.find(query, projection, PART_ORDER);
+	} catch(RuntimeException e) {
+	    metrics.recordError("documents", MongoNafMetrics.FETCH);
+	    throw e;
+	}
+	this.recordFetch(metrics, "documents", start, objs);
+	return objs;
+    }
+
+    // Records the time of a read and the estimated BSON size of the read objects (measured for 1 in
+    // SIZE_SAMPLING reads)
+    private void recordFetch(MongoNafMetrics metrics, String layerName, long start, List<DBObject> objs)
+    {
+	long nanos = System.nanoTime() - start;
+	long bytes = 0;
+	if (metrics.sampleSize()) {
+	    for (DBObject obj : objs) {
+		bytes += BSON.encode(obj).length;
 	    }
-	    layerNamesCp.remove("srl");
-	    if (layerNamesCp.isEmpty()) return naf;
+	    bytes *= MongoNafMetrics.SIZE_SAMPLING;
 	}
+	metrics.record(layerName, MongoNafMetrics.FETCH, nanos, 0, bytes);
+    }
 
-	// Factuality layer
-	if (layerNamesCp.contains("factualitylayer") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.factualityColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getFactuality(mongoAnnotation, naf, wfIndex);
-		}
+    // Reads the objects of several documents from a collection, grouped by document (parts in document order)
+    private Map<String, List<DBObject>> fetchDocumentsLayer(DBObject query, String layerName)
+    {
+	MongoNafMetrics metrics = this.metrics;
+	long start = (metrics != null) ? System.nanoTime() : 0;
+	List<DBObject> objs;
+	try {
+	    if (layerName.equals("header")) {
+		objs = this.headerColl.find(query, null, null);
+	    } else if (layerName.equals("linguisticProcessors")) {
+		objs = this.lpColl.find(query, null, null);
+	    } else if (layerName.equals("raw")) {
+		objs = this.rawColl.find(query, null, null);
+	    } else {
+		objs = this.getLayerCollection(layerName).find(query, null, PART_ORDER);
 	    }
-	    layerNamesCp.remove("factualitylayer");
-	    if (layerNamesCp.isEmpty()) return naf;
+	} catch(RuntimeException e) {
+	    if (metrics != null) {
+		metrics.recordError(layerName, MongoNafMetrics.FETCH);
+	    }
+	    throw e;
+	}
+	if (metrics != null) {
+	    this.recordFetch(metrics, layerName, start, objs);
 	}
+	return this.groupByDocument(objs);
+    }
 
-	// TimeExpressions layer
-	if (layerNamesCp.contains("timeExpressions") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.timeExpressionsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getTimex3(mongoAnnotation, naf, timexIndex, wfIndex, termIndex);
-		}
+    private Map<String, List<DBObject>> groupByDocument(List<DBObject> objs)
+    {
+	Map<String, List<DBObject>> docObjs = new HashMap<String, List<DBObject>>();
+	for (DBObject obj : objs) {
+	    String docId = (String) obj.get("doc_id");
+	    List<DBObject> objsOfDoc = docObjs.get(docId);
+	    if (objsOfDoc == null) {
+		objsOfDoc = new ArrayList<DBObject>();
+		docObjs.put(docId, objsOfDoc);
 	    }
-	    layerNamesCp.remove("timeExpressions");
-	    if (layerNamesCp.isEmpty()) return naf;
+	    objsOfDoc.add(obj);
 	}
+	return docObjs;
+    }
 
-	// TemporalRelations layer
-	if (layerNamesCp.contains("temporalRelations") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.temporalRelationsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getTLink(mongoAnnotation, naf, predicateIndex, timexIndex);
-		}
+    // Only reads the fields of the packed objects corresponding to the given layers
+    private DBObject createPackedProjection(List<String> layerNames)
+    {
+	BasicDBObject projection = new BasicDBObject("doc_id", 1)
+	    .append("paragraph", 1)
+	    .append("sentence", 1)
+	    .append("partitioned", 1);
+	for (String layerName : layerNames) {
+	    if (layerName.equals("header")) {
+		projection.append("header", 1);
+	    } else if (layerName.equals("linguisticProcessors")) {
+		projection.append("lps", 1);
+	    } else if (layerName.equals("raw")) {
+		projection.append("raw", 1);
+	    } else {
+		projection.append("layers." + layerName, 1);
+		projection.append("positions." + layerName, 1);
 	    }
-	    layerNamesCp.remove("temporalRelations");
-	    if (layerNamesCp.isEmpty()) return naf;
 	}
+	return projection;
+    }
 
-	// CausalRelations layer
-	if (layerNamesCp.contains("causalRelations") || layerNamesCp.get(0).equals("all")) {
-	    nafObj = this.causalRelationsColl.findOne(query);
-	    if (nafObj != null) {
-		for (DBObject mongoAnnotation : (List<DBObject>) nafObj.get("annotations")) {
-		    this.getCLink(mongoAnnotation, naf, predicateIndex);
+    // Splits the packed objects of a document into the objects each collection would return.
+    // If onlyParts is true, the layers stored in the object of the whole document are skipped.
+    // Otherwise, the layers the object of the whole document holds are not merged with the ones of its
+    // parts, unless it was stored with insertNafDocumentPartitioned (see selectDocumentObjs).
+    private Map<String, List<DBObject>> unpack(String docId, List<DBObject> packedObjs, List<String> layerNames, boolean onlyParts)
+    {
+	Map<String, List<DBObject>> layerObjs = new HashMap<String, List<DBObject>>();
+	for (String layerName : layerNames) {
+	    layerObjs.put(layerName, new ArrayList<DBObject>());
+	}
+	DBObject docLayers = null;
+	for (DBObject packedObj : packedObjs) {
+	    if (!onlyParts && docId.equals(packedObj.get("_id")) && !packedObj.containsField("partitioned")) {
+		docLayers = (DBObject) packedObj.get("layers");
+	    }
+	}
+	for (DBObject packedObj : packedObjs) {
+	    boolean isDocObj = docId.equals(packedObj.get("_id"));
+	    if (isDocObj) {
+		if (layerObjs.containsKey("header") && packedObj.containsField("header")) {
+		    layerObjs.get("header").add((DBObject) packedObj.get("header"));
+		}
+		if (layerObjs.containsKey("linguisticProcessors") && packedObj.containsField("lps")) {
+		    for (DBObject lpObj : (List<DBObject>) packedObj.get("lps")) {
+			layerObjs.get("linguisticProcessors").add(lpObj);
+		    }
+		}
+		if (layerObjs.containsKey("raw") && packedObj.containsField("raw")) {
+		    layerObjs.get("raw").add(packedObj);
+		}
+		if (onlyParts) continue;
+	    }
+	    DBObject packedLayers = (DBObject) packedObj.get("layers");
+	    if (packedLayers == null) continue;
+	    for (String layerName : LAYER_NAMES) {
+		if (layerObjs.containsKey(layerName) && packedLayers.containsField(layerName)) {
+		    if (!isDocObj && docLayers != null && docLayers.containsField(layerName)) {
+			continue;
+		    }
+		    Object packedLayer = packedLayers.get(layerName);
+		    DBObject layerObj = (packedLayer instanceof List) ? new BasicDBObject("annotations", packedLayer) : (DBObject) packedLayer;
+		    DBObject positions = (DBObject) packedObj.get("positions");
+		    if (positions != null && positions.containsField(layerName)) {
+			// Positions of the annotations of a partitioned document (see sortByPosition)
+			layerObj = new BasicDBObject(layerObj.toMap()).append("positions", positions.get(layerName));
+		    }
+		    layerObjs.get(layerName).add(layerObj);
 		}
 	    }
-	    layerNamesCp.remove("causalRelations");
-	    if (layerNamesCp.isEmpty()) return naf;
 	}
+	return layerObjs;
+    }
 
-	return naf;
+    // Returns the annotations of a stored layer object, decoding them if they use the columnar encoding
+    private List<DBObject> getAnnotationObjs(String layerName, DBObject layerObj)
+    {
+	if (layerObj.containsField("compressed")) {
+	    return this.getAnnotationObjs(layerName, MongoNafCompression.decompressObject((byte[]) layerObj.get("compressed")));
+	}
+	if (layerObj.containsField("columns")) {
+	    return MongoNafColumnarCodec.decode(layerName, (DBObject) layerObj.get("columns"));
+	}
+	return (List<DBObject>) layerObj.get("annotations");
+    }
+
+    private void getAnnotation(String layerName, DBObject mongoAnnotation, KAFDocument naf, MongoNafIdIndex<WF> wfIndex, MongoNafIdIndex<Term> termIndex, MongoNafIdIndex<Predicate> predicateIndex, MongoNafIdIndex<Timex3> timexIndex)
+    {
+	if (layerName.equals("text")) {
+	    this.getWf(mongoAnnotation, naf, wfIndex);
+	}
+	else if (layerName.equals("terms")) {
+	    this.getTerm(mongoAnnotation, naf, termIndex, wfIndex);
+	}
+	else if (layerName.equals("entities")) {
+	    this.getEntity(mongoAnnotation, naf, termIndex);
+	}
+	else if (layerName.equals("deps")) {
+	    this.getDep(mongoAnnotation, naf, termIndex);
+	}
+	else if (layerName.equals("constituency")) {
+	    this.getTree(mongoAnnotation, naf, termIndex);
+	}
+	else if (layerName.equals("chunks")) {
+	    this.getChunk(mongoAnnotation, naf, termIndex);
+	}
+	else if (layerName.equals("coreferences")) {
+	    this.getCoref(mongoAnnotation, naf, termIndex);
+	}
+	else if (layerName.equals("opinions")) {
+	    this.getOpinion(mongoAnnotation, naf, termIndex);
+	}
+	else if (layerName.equals("srl")) {
+	    this.getPredicate(mongoAnnotation, naf, predicateIndex, termIndex);
+	}
+	else if (layerName.equals("factualitylayer")) {
+	    this.getFactuality(mongoAnnotation, naf, wfIndex);
+	}
+	else if (layerName.equals("timeExpressions")) {
+	    this.getTimex3(mongoAnnotation, naf, timexIndex, wfIndex, termIndex);
+	}
+	else if (layerName.equals("temporalRelations")) {
+	    this.getTLink(mongoAnnotation, naf, predicateIndex, timexIndex);
+	}
+	else if (layerName.equals("causalRelations")) {
+	    this.getCLink(mongoAnnotation, naf, predicateIndex);
+	}
     }
 
     public boolean validLayerName(String layerName)
@@ -992,13 +2878,20 @@ public class MongoNaf {
     }
 
     public List<String> getLinguisticProcessorNames(String docId) {
+	if (this.packed) {
+	    List<String> names = new ArrayList<String>();
+	    for (DBObject mongoLp : this.getPackedLinguisticProcessors(docId)) {
+		names.add((String) mongoLp.get("name"));
+	    }
+	    return names;
+	}
 	DBObject query = new BasicDBObject("doc_id", docId);
         return this.lpColl.distinct("name", query);
     }
 
     public void getLinguisticProcessors(String docId, KAFDocument naf) {
 	DBObject query = new BasicDBObject("doc_id", docId);
-        List<DBObject> mongoLps = this.lpColl.find(query).toArray();
+        List<DBObject> mongoLps = this.packed ? this.getPackedLinguisticProcessors(docId) : this.lpColl.find(query, null, null);
 	for (DBObject mongoLp : mongoLps) {
 	    this.getLp(mongoLp, naf);
 	}
@@ -1006,6 +2899,14 @@ public class MongoNaf {
 
 
 
+    private List<DBObject> getPackedLinguisticProcessors(String docId) {
+	DBObject docObj = this.documentsColl.findOne(new BasicDBObject("_id", docId), new BasicDBObject("lps", 1));
+	if (docObj == null || !docObj.containsField("lps")) {
+	    return new ArrayList<DBObject>();
+	}
+	return (List<DBObject>) docObj.get("lps");
+    }
+
     private void getLp(DBObject mongoLp, KAFDocument naf) {
 	String layer = (String) mongoLp.get("layer");
 	String name = (String) mongoLp.get("name");
@@ -1029,7 +2930,7 @@ public class MongoNaf {
 	}
     }
 
-    private void getWf(DBObject mongoWf, KAFDocument naf, HashMap<String, WF> wfIndex)
+    private void getWf(DBObject mongoWf, KAFDocument naf, MongoNafIdIndex<WF> wfIndex)
     {
 	WF wf = naf.newWF((String) mongoWf.get("id"), (String) mongoWf.get("form"), (Integer) mongoWf.get("sent"));
 	if (mongoWf.containsField("para")) wf.setPara((Integer) mongoWf.get("para"));
@@ -1040,7 +2941,7 @@ public class MongoNaf {
 	wfIndex.put(wf.getId(), wf);
     }
 
-    private void getTerm(DBObject mongoTerm, KAFDocument naf, HashMap<String, Term> termIndex, HashMap<String, WF> wfIndex)
+    private void getTerm(DBObject mongoTerm, KAFDocument naf, MongoNafIdIndex<Term> termIndex, MongoNafIdIndex<WF> wfIndex)
     {
 	BasicDBList wfIds = (BasicDBList) mongoTerm.get("anchor");
 	Span<WF> wfs = KAFDocument.newWFSpan();
@@ -1093,7 +2994,7 @@ public class MongoNaf {
 	termIndex.put(term.getId(), term);	
     }
 
-    private void getEntity(DBObject mongoEntity, KAFDocument naf, HashMap<String, Term> termIndex)
+    private void getEntity(DBObject mongoEntity, KAFDocument naf, MongoNafIdIndex<Term> termIndex)
     {
 	Span<Term> terms = this.termSpanMongo2Naf(mongoEntity, termIndex);
 	List<Span<Term>> termSpans = new ArrayList<Span<Term>>();
@@ -1103,7 +3004,7 @@ public class MongoNaf {
 	entity.addExternalRefs(this.externalRefsMongo2Naf(mongoEntity, naf));
     }
 
-    private void getDep(DBObject mongoDep, KAFDocument naf, HashMap<String, Term> termIndex)
+    private void getDep(DBObject mongoDep, KAFDocument naf, MongoNafIdIndex<Term> termIndex)
     {
 	Term from = termIndex.get((String) mongoDep.get("from"));
 	Term to = termIndex.get((String) mongoDep.get("to"));
@@ -1114,7 +3015,7 @@ public class MongoNaf {
 	}	
     }
 
-    private void getTree(DBObject mongoTree, KAFDocument naf, HashMap<String, Term> termIndex)
+    private void getTree(DBObject mongoTree, KAFDocument naf, MongoNafIdIndex<Term> termIndex)
     {
 	HashMap<String, TreeNode> treeNodes = new HashMap<String, TreeNode>();
 	HashMap<String, Boolean> areRoot = new HashMap<String, Boolean>();
@@ -1154,7 +3055,7 @@ public class MongoNaf {
 	}	
     }
 
-    private void getChunk(DBObject mongoChunk, KAFDocument naf, HashMap<String, Term> termIndex)
+    private void getChunk(DBObject mongoChunk, KAFDocument naf, MongoNafIdIndex<Term> termIndex)
     {
 	Span<Term> terms = this.termSpanMongo2Naf(mongoChunk, termIndex);
 	String id = (String) mongoChunk.get("id");
@@ -1167,7 +3068,7 @@ public class MongoNaf {
 	}	
     }
 
-    private void getCoref(DBObject mongoCoref, KAFDocument naf, HashMap<String, Term> termIndex)
+    private void getCoref(DBObject mongoCoref, KAFDocument naf, MongoNafIdIndex<Term> termIndex)
     {
 	List<BasicDBList> mentionObjs = (List<BasicDBList>) mongoCoref.get("anchor");
 	List<Span<Term>> mentions = new ArrayList<Span<Term>>();
@@ -1187,7 +3088,7 @@ public class MongoNaf {
 	}
     }
 
-    private void getOpinion(DBObject mongoOpinion, KAFDocument naf, HashMap<String, Term> termIndex)
+    private void getOpinion(DBObject mongoOpinion, KAFDocument naf, MongoNafIdIndex<Term> termIndex)
     {
 	DBObject mongoOpHolder = (DBObject) mongoOpinion.get("opinion_holder");
 	DBObject mongoOpTarget = (DBObject) mongoOpinion.get("opinion_target");
@@ -1224,7 +3125,7 @@ public class MongoNaf {
 	}
     }
 
-    private void getPredicate(DBObject mongoPredicate, KAFDocument naf, HashMap<String, Predicate> predicateIndex, HashMap<String, Term> termIndex)
+    private void getPredicate(DBObject mongoPredicate, KAFDocument naf, MongoNafIdIndex<Predicate> predicateIndex, MongoNafIdIndex<Term> termIndex)
     {
 	String id = (String) mongoPredicate.get("id");
 	BasicDBList termIds = (BasicDBList) mongoPredicate.get("anchor");
@@ -1239,7 +3140,7 @@ public class MongoNaf {
 	for (DBObject mongoRole : (List<DBObject>) mongoPredicate.get("roles")) {
 	    String roleId = (String) mongoRole.get("id");
 	    String semRole = (String) mongoRole.get("sem_role");
-	    terms = this.termSpanMongo2Naf(mongoPredicate, termIndex);
+	    terms = this.termSpanMongo2Naf(mongoRole, termIndex);
 	    Predicate.Role role = naf.newRole(roleId, predicate, semRole, terms);
 	    role.addExternalRefs(this.externalRefsMongo2Naf(mongoRole, naf));
 	    predicate.addRole(role);
@@ -1248,7 +3149,7 @@ public class MongoNaf {
 	predicateIndex.put(predicate.getId(), predicate);
     }
 
-    private void getFactuality(DBObject mongoFactuality, KAFDocument naf, HashMap<String, WF> wfIndex)
+    private void getFactuality(DBObject mongoFactuality, KAFDocument naf, MongoNafIdIndex<WF> wfIndex)
     {
 	String id = (String) mongoFactuality.get("id");
 	String prediction = (String) mongoFactuality.get("prediction");
@@ -1258,7 +3159,7 @@ public class MongoNaf {
 	}
     }
 
-    private void getTimex3(DBObject mongoTimex3, KAFDocument naf, HashMap<String, Timex3> timexIndex, HashMap<String, WF> wfIndex, HashMap<String, Term> termIndex)
+    private void getTimex3(DBObject mongoTimex3, KAFDocument naf, MongoNafIdIndex<Timex3> timexIndex, MongoNafIdIndex<WF> wfIndex, MongoNafIdIndex<Term> termIndex)
     {
 	String id = (String) mongoTimex3.get("id");
 	String type = (String) mongoTimex3.get("type");
@@ -1310,7 +3211,7 @@ public class MongoNaf {
 	timexIndex.put(timex3.getId(), timex3);
     }
 
-    private void getTLink(DBObject mongoTLink, KAFDocument naf, HashMap<String, Predicate> predicateIndex, HashMap<String, Timex3> timexIndex) {
+    private void getTLink(DBObject mongoTLink, KAFDocument naf, MongoNafIdIndex<Predicate> predicateIndex, MongoNafIdIndex<Timex3> timexIndex) {
 	String id = (String) mongoTLink.get("id");
 	String fromId = (String) mongoTLink.get("from");
 	String toId = (String) mongoTLink.get("to");
@@ -1322,7 +3223,7 @@ public class MongoNaf {
 	TLink tLink = naf.newTLink(id, from, to, relType);
     }
 
-    private void getCLink(DBObject mongoCLink, KAFDocument naf, HashMap<String, Predicate> predicateIndex) {
+    private void getCLink(DBObject mongoCLink, KAFDocument naf, MongoNafIdIndex<Predicate> predicateIndex) {
 	String id = (String) mongoCLink.get("id");
 	String fromId = (String) mongoCLink.get("from");
 	String toId = (String) mongoCLink.get("to");
@@ -1335,29 +3236,34 @@ public class MongoNaf {
 	}
     }
 
-    private void queryRawTextLayer(String docId, KAFDocument naf)
+    private BasicDBObject createQuery(String docId, String granularity, Integer part)
     {
-	String id = docId;
-	DBObject query = new BasicDBObject("_id", id);
-	DBObject rawTextObj = this.rawColl.findOne(query);
-	if (rawTextObj != null) {
-	    String raw = (String) rawTextObj.get("raw");
-	    naf.setRawText(raw);
-	}
+	return this.createQuery(docId, granularity, part, part);
     }
 
-    private BasicDBObject createQuery(String docId, String granularity, Integer part)
+    private BasicDBObject createQuery(String docId, String granularity, Integer from, Integer to)
     {
 	BasicDBObject query = new BasicDBObject("doc_id", docId);
-	if (granularity == "P") {
-	    query.append("paragraph", part);
-	} else if (granularity == "S") {
-	    query.append("sentence", part);
+	String partField = null;
+	if (granularity.equals("P")) {
+	    partField = "paragraph";
+	} else if (granularity.equals("S")) {
+	    partField = "sentence";
+	}
+	if (partField != null) {
+	    if (from == null ? to == null : from.equals(to)) {
+		query.append(partField, from);
+	    } else {
+		BasicDBObject range = new BasicDBObject();
+		if (from != null) range.append("$gte", from);
+		if (to != null) range.append("$lte", to);
+		query.append(partField, range);
+	    }
 	}
 	return query;
     }
 
-    private Span<Term> termSpanMongo2Naf(DBObject obj, Map<String, Term> termIndex)
+    private Span<Term> termSpanMongo2Naf(DBObject obj, MongoNafIdIndex<Term> termIndex)
     {
 	BasicDBList termIds = (BasicDBList) obj.get("anchor");
 	Span<Term> terms = KAFDocument.newTermSpan();
@@ -1420,7 +3326,7 @@ public class MongoNaf {
 
     private void writeLogEntry(DBObject entry) throws Exception
     {
-	this.logColl.insert(entry);
+	this.logColl.insert(this.stamp(entry), this.getWriteConcern("log"));
     }
 
 }
@@ -0,0 +1,277 @@
+package ixa.storm;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+// Write-behind queue for MongoNaf. Each writer thread has its own bounded queue, and the writes of
+// a document always go to the same writer, so they are stored in the order they were submitted.
+// A writer takes up to flushSize documents (or as many as arrive within flushInterval), coalesces
+// the writes of the same objects and stores them with one bulk operation per collection.
+// Submitting blocks while the queue of the writer is full. Every submitted document is completed:
+// documents left in the queue of a writer which stops (e.g. interrupted) fail.
+public class MongoNafAsyncWriter {
+
+    // Notified from the writer thread once the writes of a document have been stored (or have failed)
+    public interface Callback {
+	void onSuccess(String docId);
+	void onFailure(String docId, MongoNafException e);
+    }
+
+    private static final PendingDocument STOP = new PendingDocument(null, null, null);
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final Logger LOGGER = Logger.getLogger(MongoNafAsyncWriter.class.getName());
+
+    private final MongoNaf mongoNaf;
+    private final List<Writer> writers;
+    private final int flushSize;
+    private final long flushIntervalNanos;
+    // Submits hold the read lock while queueing, so that nothing is queued once close has taken the write lock
+    private final ReadWriteLock lock;
+    private boolean closed;
+
+    // A writer thread and its queue. Once it has stopped, no document is left pending in the queue.
+    private class Writer implements Runnable {
+	final BlockingQueue<PendingDocument> queue;
+	final Thread thread;
+	volatile boolean stopped;
+
+	Writer(int queueSize, String name) {
+	    this.queue = new ArrayBlockingQueue<PendingDocument>(queueSize);
+	    this.thread = new Thread(this, name);
+	    this.thread.setDaemon(true);
+	}
+
+	public void run() {
+	    try {
+		write(this.queue);
+	    } finally {
+		this.stopped = true;
+		// Documents queued after the writer stopped (it was interrupted) are never stored
+		List<PendingDocument> leftovers = new ArrayList<PendingDocument>();
+		this.queue.drainTo(leftovers);
+		for (PendingDocument pending : leftovers) {
+		    if (pending != STOP) {
+			pending.complete(new MongoNafException("Asynchronous writer stopped before storing document " + pending.docId + "."));
+		    }
+		}
+	    }
+	}
+
+	// Queues a document, waiting for room in the queue while the writer is running
+	boolean offer(PendingDocument pending) throws InterruptedException {
+	    while (!this.queue.offer(pending, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+		if (this.stopped) {
+		    return false;
+		}
+	    }
+	    // If the writer stopped meanwhile, the document is completed either by it or here
+	    return !(this.stopped && this.queue.remove(pending));
+	}
+    }
+
+
+    MongoNafAsyncWriter(MongoNaf mongoNaf, int queueSize, int writerCount, int flushSize, long flushIntervalMillis) {
+	this.mongoNaf = mongoNaf;
+	this.flushSize = flushSize;
+	this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+	this.lock = new ReentrantReadWriteLock();
+	this.writers = new ArrayList<Writer>();
+	for (int i = 0; i < writerCount; i++) {
+	    Writer writer = new Writer(queueSize, "mongonaf-writer-" + i);
+	    this.writers.add(writer);
+	    writer.thread.start();
+	}
+    }
+
+    Future<Void> submit(String docId, List<MongoNafWrite> writes, Callback callback) throws InterruptedException {
+	this.lock.readLock().lockInterruptibly();
+	try {
+	    if (this.closed) {
+		throw new IllegalStateException("Asynchronous writer is closed.");
+	    }
+	    PendingDocument pending = new PendingDocument(docId, writes, callback);
+	    Writer writer = this.writers.get((docId.hashCode() & Integer.MAX_VALUE) % this.writers.size());
+	    if (!writer.offer(pending)) {
+		throw new IllegalStateException("Asynchronous writer is stopped.");
+	    }
+	    return pending.future;
+	} finally {
+	    this.lock.readLock().unlock();
+	}
+    }
+
+    // Stores the queued writes and stops the writer threads
+    void close() throws InterruptedException {
+	this.lock.writeLock().lockInterruptibly();
+	try {
+	    if (this.closed) {
+		return;
+	    }
+	    this.closed = true;
+	} finally {
+	    this.lock.writeLock().unlock();
+	}
+	// No document can be queued after STOP
+	for (Writer writer : this.writers) {
+	    writer.offer(STOP);
+	}
+	for (Writer writer : this.writers) {
+	    writer.thread.join();
+	}
+    }
+
+    private void write(BlockingQueue<PendingDocument> queue) {
+	List<PendingDocument> batch = new ArrayList<PendingDocument>();
+	boolean stop = false;
+	while (!stop) {
+	    try {
+		PendingDocument pending = queue.take();
+		long deadline = System.nanoTime() + this.flushIntervalNanos;
+		while (pending != null && pending != STOP) {
+		    batch.add(pending);
+		    if (batch.size() >= this.flushSize) break;
+		    pending = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+		stop = pending == STOP;
+	    } catch (InterruptedException e) {
+		stop = true;
+	    }
+	    if (!batch.isEmpty()) {
+		this.flush(batch);
+		batch.clear();
+	    }
+	}
+    }
+
+    // Writes of the same object are coalesced into one. Those which can't be merged exactly with the
+    // previous write of their object go to a later round, so each round is one unordered bulk write.
+    private void flush(List<PendingDocument> batch) {
+	List<Map<String, MongoNafWrite>> rounds = new ArrayList<Map<String, MongoNafWrite>>();
+	// Object -> last round writing it
+	Map<String, Integer> lastRounds = new HashMap<String, Integer>();
+	for (PendingDocument pending : batch) {
+	    for (MongoNafWrite write : pending.writes) {
+		String object = write.collection.getName() + "\u0000" + write.id;
+		Integer last = lastRounds.get(object);
+		int round = 0;
+		if (last != null) {
+		    MongoNafWrite previous = rounds.get(last).get(write.key());
+		    MongoNafWrite coalesced = (previous != null) ? previous.coalesce(write) : null;
+		    if (coalesced != null) {
+			rounds.get(last).put(write.key(), coalesced);
+			continue;
+		    }
+		    round = last + 1;
+		}
+		if (round == rounds.size()) {
+		    rounds.add(new LinkedHashMap<String, MongoNafWrite>());
+		}
+		rounds.get(round).put(write.key(), write);
+		lastRounds.put(object, round);
+	    }
+	}
+	Map<String, MongoNafException> errors = new HashMap<String, MongoNafException>();
+	for (Map<String, MongoNafWrite> writes : rounds) {
+	    try {
+		this.mongoNaf.bulkWrite(new ArrayList<MongoNafWrite>(writes.values()), errors);
+	    } catch (RuntimeException e) {
+		for (PendingDocument pending : batch) {
+		    if (!errors.containsKey(pending.docId)) {
+			errors.put(pending.docId, new MongoNafException("Error storing document " + pending.docId + ".", e));
+		    }
+		}
+	    }
+	}
+	for (PendingDocument pending : batch) {
+	    this.mongoNaf.invalidateCache(pending.docId);
+	    pending.complete(errors.get(pending.docId));
+	}
+    }
+
+
+    private static class PendingDocument {
+	final String docId;
+	final List<MongoNafWrite> writes;
+	final Callback callback;
+	final WriteFuture future;
+
+	PendingDocument(String docId, List<MongoNafWrite> writes, Callback callback) {
+	    this.docId = docId;
+	    this.writes = writes;
+	    this.callback = callback;
+	    this.future = new WriteFuture();
+	}
+
+	void complete(MongoNafException error) {
+	    this.future.complete(error);
+	    if (this.callback != null) {
+		try {
+		    if (error == null) {
+			this.callback.onSuccess(this.docId);
+		    } else {
+			this.callback.onFailure(this.docId, error);
+		    }
+		} catch (RuntimeException e) {
+		    LOGGER.log(Level.WARNING, "Error in write callback of document " + this.docId + ".", e);
+		}
+	    }
+	}
+    }
+
+    private static class WriteFuture implements Future<Void> {
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile MongoNafException error;
+
+	void complete(MongoNafException error) {
+	    this.error = error;
+	    this.done.countDown();
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+	    return false;
+	}
+
+	public boolean isCancelled() {
+	    return false;
+	}
+
+	public boolean isDone() {
+	    return this.done.getCount() == 0;
+	}
+
+	public Void get() throws InterruptedException, ExecutionException {
+	    this.done.await();
+	    return this.result();
+	}
+
+	public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+	    if (!this.done.await(timeout, unit)) {
+		throw new TimeoutException();
+	    }
+	    return this.result();
+	}
+
+	private Void result() throws ExecutionException {
+	    if (this.error != null) {
+		throw new ExecutionException(this.error);
+	    }
+	    return null;
+	}
+    }
+
+}
@@ -0,0 +1,184 @@
+package ixa.storm;
+
+import com.mongodb.DBObject;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Bounded LRU cache of the objects read for each layer of a document, keyed by
+// (docId, layer, granularity, part). Bounded by number of entries and/or by an estimation
+// of the size of the cached objects (0 means no limit). Cached lists are unmodifiable, and the objects
+// in them are shared by all the readers, so they must not be modified either.
+public class MongoNafCache {
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    // Document -> keys of its cached layers, used for invalidation
+    private final Map<String, Set<String>> docKeys;
+    private long bytes;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final AtomicLong evictions;
+    // Number of invalidations of the documents (striped by docId hash). A layer read before an
+    // invalidation of its document isn't cached after it.
+    private final AtomicLongArray generations;
+
+    private static class Entry {
+	String docId;
+	List<DBObject> objs;
+	long bytes;
+    }
+
+
+    MongoNafCache(int maxEntries, long maxBytes) {
+	this.maxEntries = maxEntries;
+	this.maxBytes = maxBytes;
+	this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	this.docKeys = new HashMap<String, Set<String>>();
+	this.hits = new AtomicLong();
+	this.misses = new AtomicLong();
+	this.evictions = new AtomicLong();
+	this.generations = new AtomicLongArray(GENERATION_STRIPES);
+    }
+
+    static String key(String docId, String layerName, String granularity, Integer from, Integer to) {
+	return docId + "\u0000" + layerName + "\u0000" + granularity + "\u0000" + from + "\u0000" + to;
+    }
+
+    synchronized List<DBObject> get(String key) {
+	Entry entry = this.entries.get(key);
+	if (entry == null) {
+	    this.misses.incrementAndGet();
+	    return null;
+	}
+	this.hits.incrementAndGet();
+	return entry.objs;
+    }
+
+    // Generation of a document, to be read before reading the layers to be cached
+    long getGeneration(String docId) {
+	return this.generations.get(stripe(docId));
+    }
+
+    // Caches the layer objects read since the given generation of the document. Nothing is cached if
+    // the document was invalidated meanwhile, as the objects may have been read before the write.
+    synchronized void put(String docId, String key, List<DBObject> objs, long generation) {
+	if (this.generations.get(stripe(docId)) != generation) {
+	    return;
+	}
+	Entry entry = new Entry();
+	entry.docId = docId;
+	entry.objs = Collections.unmodifiableList(objs);
+	entry.bytes = estimateSize(objs);
+	this.remove(key);
+	this.entries.put(key, entry);
+	this.bytes += entry.bytes;
+	Set<String> keys = this.docKeys.get(docId);
+	if (keys == null) {
+	    keys = new HashSet<String>();
+	    this.docKeys.put(docId, keys);
+	}
+	keys.add(key);
+	// Evict least recently used entries
+	Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+	while (it.hasNext() && ((this.maxEntries > 0 && this.entries.size() > this.maxEntries)
+				|| (this.maxBytes > 0 && this.bytes > this.maxBytes))) {
+	    Map.Entry<String, Entry> eldest = it.next();
+	    it.remove();
+	    this.bytes -= eldest.getValue().bytes;
+	    this.removeDocKey(eldest.getValue().docId, eldest.getKey());
+	    this.evictions.incrementAndGet();
+	}
+    }
+
+    // Drops all the cached layers of a document
+    synchronized void invalidate(String docId) {
+	this.generations.incrementAndGet(stripe(docId));
+	Set<String> keys = this.docKeys.remove(docId);
+	if (keys != null) {
+	    for (String key : keys) {
+		Entry entry = this.entries.remove(key);
+		this.bytes -= entry.bytes;
+	    }
+	}
+    }
+
+    private static int stripe(String docId) {
+	return (docId.hashCode() & 0x7fffffff) % GENERATION_STRIPES;
+    }
+
+    private void remove(String key) {
+	Entry entry = this.entries.remove(key);
+	if (entry != null) {
+	    this.bytes -= entry.bytes;
+	    this.removeDocKey(entry.docId, key);
+	}
+    }
+
+    private void removeDocKey(String docId, String key) {
+	Set<String> keys = this.docKeys.get(docId);
+	if (keys != null) {
+	    keys.remove(key);
+	    if (keys.isEmpty()) {
+		this.docKeys.remove(docId);
+	    }
+	}
+    }
+
+    public long getHits() {
+	return this.hits.get();
+    }
+
+    public long getMisses() {
+	return this.misses.get();
+    }
+
+    public long getEvictions() {
+	return this.evictions.get();
+    }
+
+    public synchronized int getSize() {
+	return this.entries.size();
+    }
+
+    public synchronized long getEstimatedBytes() {
+	return this.bytes;
+    }
+
+    // Rough estimation of the heap used by the decoded objects
+    static long estimateSize(Object obj) {
+	if (obj instanceof String) {
+	    return 40 + 2 * ((String) obj).length();
+	}
+	if (obj instanceof byte[]) {
+	    return 16 + ((byte[]) obj).length;
+	}
+	if (obj instanceof List) {
+	    long size = 24;
+	    for (Object item : (List<?>) obj) {
+		size += 8 + estimateSize(item);
+	    }
+	    return size;
+	}
+	if (obj instanceof DBObject) {
+	    long size = 48;
+	    for (String key : ((DBObject) obj).keySet()) {
+		size += 32 + estimateSize(key) + estimateSize(((DBObject) obj).get(key));
+	    }
+	    return size;
+	}
+	return 16;
+    }
+
+}
@@ -0,0 +1,60 @@
+package ixa.storm;
+
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+
+// Collection of a MongoNafStorage. Queries, updates, projections and sorts use MongoDB's syntax,
+// limited to what MongoNaf uses: equality, $in, $gt, $gte, $lte, $ne, $exists and $or in queries, and
+// $set, $setOnInsert, $unset and $push (with $each) in updates.
+public interface MongoNafCollection {
+
+    String getName();
+
+    // Inserts or replaces the object with the same _id
+    void save(DBObject obj, WriteConcern concern);
+
+    // Inserts a new object, giving it an _id if it has none
+    void insert(DBObject obj, WriteConcern concern);
+
+    // Updates the first object matching query (or inserts one if upsert is true and none matches)
+    void update(DBObject query, DBObject update, boolean upsert, WriteConcern concern);
+
+    // Runs the writes as an unordered bulk operation. Returns the errors of the failed writes by their index.
+    Map<Integer, String> bulkWrite(List<MongoNafWrite> writes, WriteConcern concern);
+
+    // Removes the objects matching query
+    void remove(DBObject query, WriteConcern concern);
+
+    // Returns the first object matching query, with only the fields in projection (all of them if null)
+    DBObject findOne(DBObject query, DBObject projection);
+
+    // Returns the objects matching query sorted by the fields in sort (if not null)
+    List<DBObject> find(DBObject query, DBObject projection, DBObject sort);
+
+    // Same as above, returning at most limit objects (0 means no limit)
+    List<DBObject> find(DBObject query, DBObject projection, DBObject sort, int limit);
+
+    // Same as find, reading the objects as they are iterated (from a cursor)
+    Iterator<DBObject> iterate(DBObject query, DBObject projection, DBObject sort);
+
+    // Elements of the array at arrayPath, in the objects matching query, which match elementQuery (on
+    // the fields of the element), read with a single query
+    List<DBObject> findElements(DBObject query, String arrayPath, DBObject elementQuery);
+
+    List distinct(String field, DBObject query);
+
+    // Keys of the existing indexes
+    List<DBObject> getIndexKeys();
+
+    void createIndex(DBObject keys, DBObject options);
+
+    void dropIndex(DBObject keys);
+
+    // Changes the expiration of an existing TTL index
+    void setExpireAfterSeconds(DBObject keys, long expireAfterSeconds);
+
+}
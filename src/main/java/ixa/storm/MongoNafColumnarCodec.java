@@ -0,0 +1,333 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.ByteArrayOutputStream;
+
+
+// Compact encoding of the text and terms layers. Instead of one object per annotation, the layer
+// is stored as parallel arrays ("columns"): strings as plain arrays, integers as packed varints
+// (offsets and anchors delta encoded, sentences and paragraphs run-length encoded). Ids are not
+// stored when they can be derived from the position (w1, w2... / t1, t2...).
+// Layers which don't fit the encoding are left as they are (encode returns null).
+class MongoNafColumnarCodec {
+
+    private static final String[] TERM_STRING_FIELDS = {"type", "lemma", "pos", "morphofeat", "case"};
+    private static final String[] TERM_EXTRA_FIELDS = {"sentiment", "components", "external_references"};
+
+
+    static boolean supports(String layerName) {
+	return layerName.equals("text") || layerName.equals("terms");
+    }
+
+    static DBObject encode(String layerName, List<DBObject> annotations) {
+	if (layerName.equals("text")) {
+	    return encodeWfs(annotations);
+	}
+	if (layerName.equals("terms")) {
+	    return encodeTerms(annotations);
+	}
+	return null;
+    }
+
+    // Path of an annotation field (e.g. "lemma" or "external_references.reference") in the columns
+    // of a layer, or null if the encoding doesn't keep it searchable
+    static String getColumnPath(String layerName, String field) {
+	if (layerName.equals("terms")) {
+	    if (Arrays.asList(TERM_STRING_FIELDS).contains(field)) {
+		return field;
+	    }
+	    if (Arrays.asList(TERM_EXTRA_FIELDS).contains(field.split("\\.")[0])) {
+		return "extras." + field;
+	    }
+	}
+	return null;
+    }
+
+    static List<DBObject> decode(String layerName, DBObject columns) {
+	if (layerName.equals("text")) {
+	    return decodeWfs(columns);
+	}
+	return decodeTerms(columns);
+    }
+
+    private static DBObject encodeWfs(List<DBObject> wfObjs) {
+	int n = wfObjs.size();
+	List<String> ids = new ArrayList<String>();
+	List<String> forms = new ArrayList<String>();
+	int[] sents = new int[n];
+	int[] paras = new int[n];
+	int[] offsets = new int[n];
+	int[] lengths = new int[n];
+	boolean derivedIds = true;
+	for (int i = 0; i < n; i++) {
+	    DBObject wfObj = wfObjs.get(i);
+	    // Page and xpath are rare, and optional integers must be present in all the WFs or in none
+	    if (wfObj.containsField("page") || wfObj.containsField("xpath")
+		|| wfObj.containsField("para") != wfObjs.get(0).containsField("para")
+		|| wfObj.containsField("offset") != wfObjs.get(0).containsField("offset")
+		|| wfObj.containsField("length") != wfObjs.get(0).containsField("length")) {
+		return null;
+	    }
+	    String id = (String) wfObj.get("id");
+	    derivedIds &= id.equals("w" + (i + 1));
+	    ids.add(id);
+	    forms.add((String) wfObj.get("form"));
+	    sents[i] = (Integer) wfObj.get("sent");
+	    if (wfObj.containsField("para")) paras[i] = (Integer) wfObj.get("para");
+	    if (wfObj.containsField("offset")) offsets[i] = (Integer) wfObj.get("offset");
+	    if (wfObj.containsField("length")) lengths[i] = (Integer) wfObj.get("length");
+	}
+	BasicDBObject columns = new BasicDBObject("count", n);
+	if (!derivedIds) columns.append("ids", ids);
+	columns.append("forms", forms);
+	columns.append("sents", packRunLengths(sents));
+	if (n > 0 && wfObjs.get(0).containsField("para")) columns.append("paras", packRunLengths(paras));
+	if (n > 0 && wfObjs.get(0).containsField("offset")) columns.append("offsets", packDeltas(offsets));
+	if (n > 0 && wfObjs.get(0).containsField("length")) columns.append("lengths", pack(lengths));
+	return columns;
+    }
+
+    private static List<DBObject> decodeWfs(DBObject columns) {
+	int n = (Integer) columns.get("count");
+	List<String> ids = (List<String>) columns.get("ids");
+	List<String> forms = (List<String>) columns.get("forms");
+	int[] sents = unpackRunLengths((byte[]) columns.get("sents"), n);
+	int[] paras = columns.containsField("paras") ? unpackRunLengths((byte[]) columns.get("paras"), n) : null;
+	int[] offsets = columns.containsField("offsets") ? unpackDeltas((byte[]) columns.get("offsets"), n) : null;
+	int[] lengths = columns.containsField("lengths") ? unpack((byte[]) columns.get("lengths"), n) : null;
+	List<DBObject> wfObjs = new ArrayList<DBObject>(n);
+	for (int i = 0; i < n; i++) {
+	    String id = (ids != null) ? ids.get(i) : "w" + (i + 1);
+	    BasicDBObject wfObj = new BasicDBObject("id", id).
+		append("form", forms.get(i)).
+		append("sent", sents[i]);
+	    if (paras != null) wfObj.append("para", paras[i]);
+	    if (offsets != null) wfObj.append("offset", offsets[i]);
+	    if (lengths != null) wfObj.append("length", lengths[i]);
+	    wfObjs.add(wfObj);
+	}
+	return wfObjs;
+    }
+
+    private static DBObject encodeTerms(List<DBObject> termObjs) {
+	int n = termObjs.size();
+	List<String> ids = new ArrayList<String>();
+	boolean derivedIds = true;
+	List<List<String>> stringColumns = new ArrayList<List<String>>();
+	boolean[] usedColumns = new boolean[TERM_STRING_FIELDS.length];
+	for (int f = 0; f < TERM_STRING_FIELDS.length; f++) {
+	    stringColumns.add(new ArrayList<String>());
+	}
+	List<List<String>> anchors = new ArrayList<List<String>>();
+	int[] anchorLengths = new int[n];
+	List<Integer> anchorWfs = new ArrayList<Integer>();
+	boolean numericAnchors = true;
+	List<DBObject> extras = new ArrayList<DBObject>();
+	for (int i = 0; i < n; i++) {
+	    DBObject termObj = termObjs.get(i);
+	    String id = (String) termObj.get("id");
+	    derivedIds &= id.equals("t" + (i + 1));
+	    ids.add(id);
+	    for (int f = 0; f < TERM_STRING_FIELDS.length; f++) {
+		String value = (String) termObj.get(TERM_STRING_FIELDS[f]);
+		usedColumns[f] |= value != null;
+		stringColumns.get(f).add(value);
+	    }
+	    List<String> anchor = (List<String>) termObj.get("anchor");
+	    anchors.add(anchor);
+	    anchorLengths[i] = anchor.size();
+	    for (String wfId : anchor) {
+		Integer wfNumber = parseNumber(wfId, "w");
+		if (wfNumber == null) {
+		    numericAnchors = false;
+		} else {
+		    anchorWfs.add(wfNumber);
+		}
+	    }
+	    BasicDBObject extra = null;
+	    for (String field : TERM_EXTRA_FIELDS) {
+		if (termObj.containsField(field)) {
+		    if (extra == null) extra = new BasicDBObject("i", i);
+		    extra.append(field, termObj.get(field));
+		}
+	    }
+	    if (extra != null) extras.add(extra);
+	}
+	BasicDBObject columns = new BasicDBObject("count", n);
+	if (!derivedIds) columns.append("ids", ids);
+	for (int f = 0; f < TERM_STRING_FIELDS.length; f++) {
+	    if (usedColumns[f]) columns.append(TERM_STRING_FIELDS[f], stringColumns.get(f));
+	}
+	if (numericAnchors) {
+	    int[] wfNumbers = new int[anchorWfs.size()];
+	    for (int i = 0; i < wfNumbers.length; i++) {
+		wfNumbers[i] = anchorWfs.get(i);
+	    }
+	    columns.append("anchorLengths", pack(anchorLengths));
+	    columns.append("anchorWfs", packDeltas(wfNumbers));
+	} else {
+	    columns.append("anchors", anchors);
+	}
+	if (!extras.isEmpty()) columns.append("extras", extras);
+	return columns;
+    }
+
+    private static List<DBObject> decodeTerms(DBObject columns) {
+	int n = (Integer) columns.get("count");
+	List<String> ids = (List<String>) columns.get("ids");
+	List<List<String>> stringColumns = new ArrayList<List<String>>();
+	for (String field : TERM_STRING_FIELDS) {
+	    stringColumns.add((List<String>) columns.get(field));
+	}
+	List<List<String>> anchors = (List<List<String>>) columns.get("anchors");
+	int[] anchorLengths = null;
+	int[] anchorWfs = null;
+	if (anchors == null) {
+	    anchorLengths = unpack((byte[]) columns.get("anchorLengths"), n);
+	    int total = 0;
+	    for (int length : anchorLengths) total += length;
+	    anchorWfs = unpackDeltas((byte[]) columns.get("anchorWfs"), total);
+	}
+	List<DBObject> termObjs = new ArrayList<DBObject>(n);
+	int anchorPos = 0;
+	for (int i = 0; i < n; i++) {
+	    String id = (ids != null) ? ids.get(i) : "t" + (i + 1);
+	    BasicDBObject termObj = new BasicDBObject("id", id);
+	    for (int f = 0; f < TERM_STRING_FIELDS.length; f++) {
+		List<String> column = stringColumns.get(f);
+		if (column != null && column.get(i) != null) {
+		    termObj.append(TERM_STRING_FIELDS[f], column.get(i));
+		}
+	    }
+	    if (anchors != null) {
+		termObj.append("anchor", anchors.get(i));
+	    } else {
+		List<String> anchor = new ArrayList<String>(anchorLengths[i]);
+		for (int j = 0; j < anchorLengths[i]; j++) {
+		    anchor.add("w" + anchorWfs[anchorPos++]);
+		}
+		termObj.append("anchor", anchor);
+	    }
+	    termObjs.add(termObj);
+	}
+	List<DBObject> extras = (List<DBObject>) columns.get("extras");
+	if (extras != null) {
+	    for (DBObject extra : extras) {
+		DBObject termObj = termObjs.get((Integer) extra.get("i"));
+		for (String field : TERM_EXTRA_FIELDS) {
+		    if (extra.containsField(field)) termObj.put(field, extra.get(field));
+		}
+	    }
+	}
+	return termObjs;
+    }
+
+    // Returns N for ids like <prefix>N, null for any other id
+    static Integer parseNumber(String id, String prefix) {
+	if (!id.startsWith(prefix) || id.length() == prefix.length() || id.length() > prefix.length() + 9) {
+	    return null;
+	}
+	int number = 0;
+	for (int i = prefix.length(); i < id.length(); i++) {
+	    char c = id.charAt(i);
+	    if (c < '0' || c > '9') return null;
+	    number = number * 10 + (c - '0');
+	}
+	// Leading zeros would not survive the round trip
+	if (id.charAt(prefix.length()) == '0') return null;
+	return number;
+    }
+
+    private static byte[] pack(int[] values) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(values.length);
+	for (int value : values) {
+	    writeVarint(out, value);
+	}
+	return out.toByteArray();
+    }
+
+    private static int[] unpack(byte[] bytes, int n) {
+	int[] values = new int[n];
+	int[] pos = {0};
+	for (int i = 0; i < n; i++) {
+	    values[i] = readVarint(bytes, pos);
+	}
+	return values;
+    }
+
+    private static byte[] packDeltas(int[] values) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream(values.length);
+	int previous = 0;
+	for (int value : values) {
+	    writeVarint(out, value - previous);
+	    previous = value;
+	}
+	return out.toByteArray();
+    }
+
+    private static int[] unpackDeltas(byte[] bytes, int n) {
+	int[] values = new int[n];
+	int[] pos = {0};
+	int previous = 0;
+	for (int i = 0; i < n; i++) {
+	    previous += readVarint(bytes, pos);
+	    values[i] = previous;
+	}
+	return values;
+    }
+
+    // (value, count) pairs
+    private static byte[] packRunLengths(int[] values) {
+	ByteArrayOutputStream out = new ByteArrayOutputStream();
+	int i = 0;
+	while (i < values.length) {
+	    int j = i + 1;
+	    while (j < values.length && values[j] == values[i]) j++;
+	    writeVarint(out, values[i]);
+	    writeVarint(out, j - i);
+	    i = j;
+	}
+	return out.toByteArray();
+    }
+
+    private static int[] unpackRunLengths(byte[] bytes, int n) {
+	int[] values = new int[n];
+	int[] pos = {0};
+	int i = 0;
+	while (i < n) {
+	    int value = readVarint(bytes, pos);
+	    int count = readVarint(bytes, pos);
+	    for (int j = 0; j < count; j++) {
+		values[i++] = value;
+	    }
+	}
+	return values;
+    }
+
+    // Zigzag varint, so that small negative deltas stay small too
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+	int zigzag = (value << 1) ^ (value >> 31);
+	while ((zigzag & ~0x7F) != 0) {
+	    out.write((zigzag & 0x7F) | 0x80);
+	    zigzag >>>= 7;
+	}
+	out.write(zigzag);
+    }
+
+    private static int readVarint(byte[] bytes, int[] pos) {
+	int zigzag = 0;
+	int shift = 0;
+	byte b;
+	do {
+	    b = bytes[pos[0]++];
+	    zigzag |= (b & 0x7F) << shift;
+	    shift += 7;
+	} while ((b & 0x80) != 0);
+	return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+}
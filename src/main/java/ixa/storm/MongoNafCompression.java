@@ -0,0 +1,86 @@
+package ixa.storm;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+// Deflate (zlib) compression of raw texts and layer objects. A compressed raw text is stored as binary
+// instead of a string, and a compressed layer as {compressed: <BSON of {annotations: [...]} or
+// {columns: {...}}>}. Compression favours speed, as payloads are compressed on every write.
+class MongoNafCompression {
+
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+
+    static byte[] compressText(String text) {
+	try {
+	    return deflate(text.getBytes("UTF-8"));
+	} catch(UnsupportedEncodingException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    // The stored raw text: a string, or the compressed bytes
+    static String decompressText(Object raw) {
+	if (!(raw instanceof byte[])) {
+	    return (String) raw;
+	}
+	try {
+	    return new String(inflate((byte[]) raw), "UTF-8");
+	} catch(UnsupportedEncodingException e) {
+	    throw new IllegalStateException(e);
+	}
+    }
+
+    static byte[] compressObject(byte[] bson) {
+	return deflate(bson);
+    }
+
+    static DBObject decompressObject(byte[] compressed) {
+	return new DefaultDBDecoder().decode(inflate(compressed), (DBCollection) null);
+    }
+
+    private static byte[] deflate(byte[] data) {
+	Deflater deflater = new Deflater(LEVEL);
+	try {
+	    deflater.setInput(data);
+	    deflater.finish();
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(data.length / 4, 64));
+	    byte[] buffer = new byte[8192];
+	    while (!deflater.finished()) {
+		out.write(buffer, 0, deflater.deflate(buffer));
+	    }
+	    return out.toByteArray();
+	} finally {
+	    deflater.end();
+	}
+    }
+
+    private static byte[] inflate(byte[] data) {
+	Inflater inflater = new Inflater();
+	try {
+	    inflater.setInput(data);
+	    ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+	    byte[] buffer = new byte[8192];
+	    while (!inflater.finished()) {
+		int n = inflater.inflate(buffer);
+		if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+		    throw new IllegalStateException("Truncated compressed data");
+		}
+		out.write(buffer, 0, n);
+	    }
+	    return out.toByteArray();
+	} catch(DataFormatException e) {
+	    throw new IllegalStateException("Invalid compressed data", e);
+	} finally {
+	    inflater.end();
+	}
+    }
+
+}
@@ -0,0 +1,209 @@
+package ixa.storm;
+
+import ixa.kaflib.KAFDocument;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+
+// Iterates over the stored documents in doc_id order (see MongoNaf.iterateCorpus). Each collection
+// (the "documents" collection in the packed layout) is read with one cursor sorted by doc_id, and the
+// cursors are merged by doc_id: the objects of the smallest doc_id at the head of the cursors are the
+// objects of the next document. Objects without a header (e.g. of a document being removed) are
+// skipped. The objects of each batch of batchSize documents are read on the calling thread (cursors
+// aren't thread-safe) and a task on the executor rebuilds its documents. Up to maxPendingBatches
+// batches are read ahead of the consumer, so at most (maxPendingBatches + 1) * batchSize documents
+// are held in memory. Errors are thrown as MongoNafUncheckedException.
+public class MongoNafCorpusIterator implements Iterator<KAFDocument>, Closeable {
+
+    private final MongoNaf mongoNaf;
+    private final List<String> layerNames;
+    private final MongoNaf.NafParameters params;
+    private final int batchSize;
+    private final ExecutorService executor;
+    private final int maxPendingBatches;
+    // Cursor of each collection (opened by the first read) and the object read from it which hasn't
+    // been merged yet (left out once the cursor is exhausted)
+    private Map<String, Iterator<DBObject>> cursors;
+    private final Map<String, DBObject> heads;
+    // Batches being rebuilt, in order
+    private final LinkedList<Future<Map<String, KAFDocument>>> pending;
+    private Iterator<Map.Entry<String, KAFDocument>> current;
+    private boolean exhausted;
+    // Id of the document returned by the last call to next
+    private String docId;
+
+
+    MongoNafCorpusIterator(MongoNaf mongoNaf, List<String> layerNames, MongoNaf.NafParameters params, int batchSize, ExecutorService executor, int maxPendingBatches) {
+	this.mongoNaf = mongoNaf;
+	this.layerNames = layerNames;
+	this.params = params;
+	this.batchSize = Math.max(batchSize, 1);
+	this.executor = executor;
+	this.maxPendingBatches = (executor != null) ? Math.max(maxPendingBatches, 1) : 1;
+	this.heads = new HashMap<String, DBObject>();
+	this.pending = new LinkedList<Future<Map<String, KAFDocument>>>();
+    }
+
+    public boolean hasNext() {
+	while (this.current == null || !this.current.hasNext()) {
+	    this.schedule();
+	    if (this.pending.isEmpty()) {
+		return false;
+	    }
+	    this.current = this.await(this.pending.removeFirst()).entrySet().iterator();
+	}
+	return true;
+    }
+
+    public KAFDocument next() {
+	if (!this.hasNext()) {
+	    throw new NoSuchElementException();
+	}
+	Map.Entry<String, KAFDocument> entry = this.current.next();
+	this.docId = entry.getKey();
+	return entry.getValue();
+    }
+
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+
+    // Id of the document returned by the last call to next
+    public String getDocId() {
+	return this.docId;
+    }
+
+    // Cancels the batches read ahead and closes the cursors
+    public void close() {
+	for (Future<Map<String, KAFDocument>> batch : this.pending) {
+	    batch.cancel(true);
+	}
+	this.pending.clear();
+	this.current = null;
+	this.exhausted = true;
+	this.closeCursors();
+    }
+
+    private void closeCursors() {
+	if (this.cursors != null) {
+	    for (Iterator<DBObject> cursor : this.cursors.values()) {
+		if (cursor instanceof Closeable) {
+		    try {
+			((Closeable) cursor).close();
+		    } catch(IOException e) {
+			// Nothing else to do with it
+		    }
+		}
+	    }
+	}
+	this.heads.clear();
+    }
+
+    // Schedules the following batches, up to maxPendingBatches
+    private void schedule() {
+	while (!this.exhausted && this.pending.size() < this.maxPendingBatches) {
+	    final Map<String, Map<String, List<DBObject>>> batch = this.readBatch();
+	    if (this.heads.isEmpty()) {
+		this.exhausted = true;
+		this.closeCursors();
+	    }
+	    if (batch.isEmpty()) {
+		return;
+	    }
+	    Callable<Map<String, KAFDocument>> build = new Callable<Map<String, KAFDocument>>() {
+		public Map<String, KAFDocument> call() {
+		    Map<String, KAFDocument> nafs = new LinkedHashMap<String, KAFDocument>();
+		    for (Map.Entry<String, Map<String, List<DBObject>>> entry : batch.entrySet()) {
+			KAFDocument naf = mongoNaf.buildCorpusNaf(entry.getKey(), entry.getValue(), layerNames, params);
+			if (naf != null) {
+			    nafs.put(entry.getKey(), naf);
+			}
+		    }
+		    return nafs;
+		}
+	    };
+	    if (this.executor != null) {
+		this.pending.add(this.executor.submit(build));
+	    } else {
+		// Run by await on the calling thread
+		this.pending.add(new FutureTask<Map<String, KAFDocument>>(build));
+	    }
+	}
+    }
+
+    // Reads the objects of the following batchSize documents from the cursors (by document, the
+    // objects read from each cursor)
+    private Map<String, Map<String, List<DBObject>>> readBatch() {
+	Map<String, Map<String, List<DBObject>>> batch = new LinkedHashMap<String, Map<String, List<DBObject>>>();
+	try {
+	    if (this.cursors == null) {
+		this.cursors = this.mongoNaf.iterateLayers(this.mongoNaf.getLayersToFetch(this.layerNames));
+		for (String name : this.cursors.keySet()) {
+		    this.advance(name);
+		}
+	    }
+	    while (batch.size() < this.batchSize && !this.heads.isEmpty()) {
+		String nextDocId = null;
+		for (DBObject head : this.heads.values()) {
+		    String headDocId = (String) head.get("doc_id");
+		    if (nextDocId == null || MongoNaf.compareDocIds(headDocId, nextDocId) < 0) {
+			nextDocId = headDocId;
+		    }
+		}
+		Map<String, List<DBObject>> docObjs = new HashMap<String, List<DBObject>>();
+		for (String name : this.cursors.keySet()) {
+		    List<DBObject> objs = new ArrayList<DBObject>();
+		    while (this.heads.containsKey(name) && nextDocId.equals(this.heads.get(name).get("doc_id"))) {
+			objs.add(this.heads.get(name));
+			this.advance(name);
+		    }
+		    docObjs.put(name, objs);
+		}
+		batch.put(nextDocId, docObjs);
+	    }
+	} catch(MongoException e) {
+	    throw new MongoNafUncheckedException(new MongoNafException("Error reading the stored documents.", e));
+	}
+	return batch;
+    }
+
+    // Reads the next object of a cursor
+    private void advance(String name) {
+	Iterator<DBObject> cursor = this.cursors.get(name);
+	if (cursor.hasNext()) {
+	    this.heads.put(name, cursor.next());
+	} else {
+	    this.heads.remove(name);
+	}
+    }
+
+    private Map<String, KAFDocument> await(Future<Map<String, KAFDocument>> batch) {
+	if (this.executor == null) {
+	    ((FutureTask<Map<String, KAFDocument>>) batch).run();
+	}
+	try {
+	    return batch.get();
+	} catch(ExecutionException e) {
+	    throw new MongoNafUncheckedException(new MongoNafException("Error rebuilding a batch of documents.", e.getCause()));
+	} catch(InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new MongoNafUncheckedException(new MongoNafException("Interrupted while reading the corpus.", e));
+	}
+    }
+
+}
@@ -4,4 +4,8 @@ public class MongoNafException extends Exception {
     public MongoNafException(String message) {
         super(message);
     }
+
+    public MongoNafException(String message, Throwable cause) {
+        super(message, cause);
+    }
 }
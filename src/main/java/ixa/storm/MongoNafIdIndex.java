@@ -0,0 +1,82 @@
+package ixa.storm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+
+// Annotations of a document by id, used to resolve the anchors of the layers being rebuilt. Almost
+// all NAF ids are <prefix>N (w1, t25, pr3, tmx2...): those are kept in an array by N, without hashing
+// or boxing. Other ids, and numbers too far beyond the annotations indexed so far, go to a HashMap.
+class MongoNafIdIndex<T> {
+
+    // Numbers up to SPARSE_FACTOR times the number of annotations (plus MIN_DENSE) use the array
+    private static final int SPARSE_FACTOR = 4;
+    private static final int MIN_DENSE = 1024;
+
+    private final String prefix;
+    private Object[] byNumber;
+    private int size;
+    private Map<String, T> others;
+
+
+    MongoNafIdIndex(String prefix) {
+	this.prefix = prefix;
+	this.byNumber = new Object[0];
+    }
+
+    // Makes room for the annotations of a layer before adding them (ids are usually numbered from 1)
+    void ensureCapacity(int annotations) {
+	if (this.byNumber.length < this.size + annotations + 1) {
+	    this.byNumber = Arrays.copyOf(this.byNumber, this.size + annotations + 1);
+	}
+    }
+
+    void put(String id, T annotation) {
+	int number = parseIndex(id, this.prefix);
+	if (number >= 0 && number < this.byNumber.length) {
+	    this.byNumber[number] = annotation;
+	} else if (number >= 0 && number < SPARSE_FACTOR * (this.size + 1) + MIN_DENSE) {
+	    this.byNumber = Arrays.copyOf(this.byNumber, Math.max(number + 1, this.byNumber.length * 2));
+	    this.byNumber[number] = annotation;
+	} else {
+	    if (this.others == null) {
+		this.others = new HashMap<String, T>();
+	    }
+	    this.others.put(id, annotation);
+	}
+	this.size++;
+    }
+
+    T get(String id) {
+	if (id == null) {
+	    return null;
+	}
+	int number = parseIndex(id, this.prefix);
+	if (number >= 0 && number < this.byNumber.length && this.byNumber[number] != null) {
+	    return (T) this.byNumber[number];
+	}
+	return (this.others != null) ? this.others.get(id) : null;
+    }
+
+    // Returns N for ids like <prefix>N, -1 for any other id. Numbers with leading zeros (t01) are
+    // other ids, so they don't collide with the same number without them (t1).
+    static int parseIndex(String id, String prefix) {
+	if (!id.startsWith(prefix) || id.length() == prefix.length() || id.length() > prefix.length() + 9) {
+	    return -1;
+	}
+	if (id.charAt(prefix.length()) == '0') {
+	    return -1;
+	}
+	int number = 0;
+	for (int i = prefix.length(); i < id.length(); i++) {
+	    char c = id.charAt(i);
+	    if (c < '0' || c > '9') {
+		return -1;
+	    }
+	    number = number * 10 + (c - '0');
+	}
+	return number;
+    }
+
+}
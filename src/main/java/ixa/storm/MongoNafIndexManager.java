@@ -0,0 +1,114 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+
+// Keeps track of the indexes needed by the queries MongoNaf runs on each collection
+// and builds the ones which are missing.
+class MongoNafIndexManager {
+
+    private MongoNafStorage storage;
+    // Collection name -> index keys
+    private Map<String, List<DBObject>> indexes;
+
+
+    MongoNafIndexManager(MongoNafStorage storage, List<String> partCollections) {
+	this.storage = storage;
+	this.indexes = new LinkedHashMap<String, List<DBObject>>();
+	// Layers are queried by doc_id and, when stored by parts, by paragraph and sentence
+	DBObject partKeys = new BasicDBObject("doc_id", 1).append("paragraph", 1).append("sentence", 1);
+	for (String collName : partCollections) {
+	    this.addIndex(collName, partKeys);
+	}
+	this.addIndex("linguisticProcessors", new BasicDBObject("doc_id", 1).append("name", 1));
+    }
+
+    // Adds a collection no query needs an index on (it still gets the TTL index of the retention)
+    void addCollection(String collName) {
+	if (!this.indexes.containsKey(collName)) {
+	    this.indexes.put(collName, new ArrayList<DBObject>());
+	}
+    }
+
+    void addIndex(String collName, DBObject keys) {
+	this.addCollection(collName);
+	List<DBObject> collIndexes = this.indexes.get(collName);
+	if (!collIndexes.contains(keys)) {
+	    collIndexes.add(keys);
+	}
+    }
+
+    // Returns the missing indexes as "collection(key1, key2...)" strings
+    List<String> getMissingIndexes() {
+	List<String> missing = new ArrayList<String>();
+	for (Map.Entry<String, List<DBObject>> entry : this.indexes.entrySet()) {
+	    for (DBObject keys : this.getMissingIndexes(entry.getKey())) {
+		missing.add(entry.getKey() + keys.keySet().toString().replace('[', '(').replace(']', ')'));
+	    }
+	}
+	return missing;
+    }
+
+    // Builds the missing indexes in the background, so that the collections stay available meanwhile
+    void ensureIndexes() {
+	for (String collName : this.indexes.keySet()) {
+	    MongoNafCollection coll = this.storage.getCollection(collName);
+	    for (DBObject keys : this.getMissingIndexes(collName)) {
+		coll.createIndex(keys, new BasicDBObject("background", true));
+	    }
+	}
+    }
+
+    // Creates a TTL index on field in every collection, removing objects expireAfterSeconds after the
+    // time in that field. Existing TTL indexes are changed to the new expiration.
+    void ensureTtlIndexes(String field, long expireAfterSeconds) {
+	DBObject keys = new BasicDBObject(field, 1);
+	for (String collName : this.indexes.keySet()) {
+	    MongoNafCollection coll = this.storage.getCollection(collName);
+	    if (this.hasIndex(coll, keys)) {
+		coll.setExpireAfterSeconds(keys, expireAfterSeconds);
+	    } else {
+		coll.createIndex(keys, new BasicDBObject("background", true).append("expireAfterSeconds", expireAfterSeconds));
+	    }
+	}
+    }
+
+    void dropTtlIndexes(String field) {
+	DBObject keys = new BasicDBObject(field, 1);
+	for (String collName : this.indexes.keySet()) {
+	    MongoNafCollection coll = this.storage.getCollection(collName);
+	    if (this.hasIndex(coll, keys)) {
+		coll.dropIndex(keys);
+	    }
+	}
+    }
+
+    private boolean hasIndex(MongoNafCollection coll, DBObject keys) {
+	for (DBObject indexKeys : coll.getIndexKeys()) {
+	    if (new ArrayList<String>(indexKeys.keySet()).equals(new ArrayList<String>(keys.keySet()))) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    private List<DBObject> getMissingIndexes(String collName) {
+	List<List<String>> existing = new ArrayList<List<String>>();
+	for (DBObject keys : this.storage.getCollection(collName).getIndexKeys()) {
+	    existing.add(new ArrayList<String>(keys.keySet()));
+	}
+	List<DBObject> missing = new ArrayList<DBObject>();
+	for (DBObject keys : this.indexes.get(collName)) {
+	    if (!existing.contains(new ArrayList<String>(keys.keySet()))) {
+		missing.add(keys);
+	    }
+	}
+	return missing;
+    }
+
+}
@@ -0,0 +1,150 @@
+package ixa.storm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+// Statistics of one phase ("map", "encode", "store", "fetch" or "build") of the reads or writes of
+// a layer: operation and error counts, annotations and serialized bytes, and a latency histogram.
+// The histogram has 4 buckets per power of two of nanoseconds, so percentiles are within ~12%.
+// Recording doesn't lock: it only updates atomic counters.
+public class MongoNafLayerStats implements MongoNafLayerStatsMXBean {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final String layerName;
+    private final String phase;
+    private final AtomicLongArray histogram;
+    private final AtomicLong count;
+    private final AtomicLong errors;
+    private final AtomicLong annotations;
+    private final AtomicLong bytes;
+    private final AtomicLong totalNanos;
+    private final AtomicLong maxNanos;
+
+
+    MongoNafLayerStats(String layerName, String phase) {
+	this.layerName = layerName;
+	this.phase = phase;
+	this.histogram = new AtomicLongArray(BUCKETS);
+	this.count = new AtomicLong();
+	this.errors = new AtomicLong();
+	this.annotations = new AtomicLong();
+	this.bytes = new AtomicLong();
+	this.totalNanos = new AtomicLong();
+	this.maxNanos = new AtomicLong();
+    }
+
+    void record(long nanos, long annotations, long bytes) {
+	nanos = Math.max(nanos, 0);
+	this.histogram.incrementAndGet(bucket(nanos));
+	this.count.incrementAndGet();
+	this.annotations.addAndGet(annotations);
+	this.bytes.addAndGet(bytes);
+	this.totalNanos.addAndGet(nanos);
+	long max = this.maxNanos.get();
+	while (nanos > max && !this.maxNanos.compareAndSet(max, nanos)) {
+	    max = this.maxNanos.get();
+	}
+    }
+
+    void recordError() {
+	this.errors.incrementAndGet();
+    }
+
+    public String getLayerName() {
+	return this.layerName;
+    }
+
+    public String getPhase() {
+	return this.phase;
+    }
+
+    public long getCount() {
+	return this.count.get();
+    }
+
+    public long getErrors() {
+	return this.errors.get();
+    }
+
+    public long getAnnotations() {
+	return this.annotations.get();
+    }
+
+    public long getBytes() {
+	return this.bytes.get();
+    }
+
+    public double getMeanMicros() {
+	long count = this.count.get();
+	return (count == 0) ? 0 : this.totalNanos.get() / 1000.0 / count;
+    }
+
+    public double getP50Micros() {
+	return this.getPercentileNanos(0.5) / 1000.0;
+    }
+
+    public double getP99Micros() {
+	return this.getPercentileNanos(0.99) / 1000.0;
+    }
+
+    public double getMaxMicros() {
+	return this.maxNanos.get() / 1000.0;
+    }
+
+    // Latency below which the given fraction of the operations fall (middle of the bucket)
+    public long getPercentileNanos(double fraction) {
+	long[] counts = new long[BUCKETS];
+	long total = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts[i] = this.histogram.get(i);
+	    total += counts[i];
+	}
+	if (total == 0) {
+	    return 0;
+	}
+	long rank = (long) Math.ceil(fraction * total);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= rank && counts[i] > 0) {
+		return Math.min((lowerBound(i) + lowerBound(i + 1)) / 2, this.maxNanos.get());
+	    }
+	}
+	return this.maxNanos.get();
+    }
+
+    public void reset() {
+	for (int i = 0; i < BUCKETS; i++) {
+	    this.histogram.set(i, 0);
+	}
+	this.count.set(0);
+	this.errors.set(0);
+	this.annotations.set(0);
+	this.bytes.set(0);
+	this.totalNanos.set(0);
+	this.maxNanos.set(0);
+    }
+
+    // Values below 2*SUB_BUCKETS get a bucket each, the rest SUB_BUCKETS buckets per power of two
+    private static int bucket(long nanos) {
+	if (nanos < 2 * SUB_BUCKETS) {
+	    return (int) nanos;
+	}
+	int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+	int sub = (int) (nanos >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+	return Math.min((exponent - 1) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    private static long lowerBound(int bucket) {
+	if (bucket < 2 * SUB_BUCKETS) {
+	    return bucket;
+	}
+	int exponent = bucket / SUB_BUCKETS + 1;
+	int sub = bucket % SUB_BUCKETS;
+	return (1L << exponent) + ((long) sub << (exponent - 2));
+    }
+
+}
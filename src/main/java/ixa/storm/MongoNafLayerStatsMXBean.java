@@ -0,0 +1,29 @@
+package ixa.storm;
+
+
+// JMX view of the statistics of one layer and phase (see MongoNafMetrics). Times are in microseconds.
+public interface MongoNafLayerStatsMXBean {
+
+    String getLayerName();
+
+    String getPhase();
+
+    long getCount();
+
+    long getErrors();
+
+    long getAnnotations();
+
+    long getBytes();
+
+    double getMeanMicros();
+
+    double getP50Micros();
+
+    double getP99Micros();
+
+    double getMaxMicros();
+
+    void reset();
+
+}
@@ -0,0 +1,504 @@
+package ixa.storm;
+
+import ixa.kaflib.KAFDocument;
+import com.mongodb.MongoClientOptions;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+
+// Bulk loader of NAF files (the entry point of the jar-with-dependencies):
+//
+//   java -jar mongo-naf-manager.jar <directory|file.tar[.gz]> --db <name> [options]
+//
+// The NAF files (*.naf, *.kaf, *.xml, optionally gzipped) of a directory tree or tarball are read in
+// order and sent in batches to a thread pool, where each batch is parsed with kaflib and stored with
+// insertNafDocuments (one bulk operation per collection). The id of each document is its path in the
+// directory or tarball without the extension. With --checkpoint, the number of files stored so far
+// (all the batches before it are done) is saved after each batch, and a later run with the same
+// input and checkpoint skips them.
+public class MongoNafManager {
+
+    private static final String USAGE =
+	"Usage: java -jar mongo-naf-manager.jar <directory|file.tar[.gz]> --db <name> [options]\n"
+	+ "  --server <host>       MongoDB server (default localhost)\n"
+	+ "  --port <port>         MongoDB port (default 27017)\n"
+	+ "  --db <name>           database\n"
+	+ "  --packed              use the packed layout\n"
+	+ "  --threads <n>         parsing/writing threads (default: number of cores)\n"
+	+ "  --batch <n>           documents per bulk write (default 100)\n"
+	+ "  --checkpoint <file>   resume from (and save progress to) this file\n";
+
+    // Seconds between progress reports
+    private static final long REPORT_INTERVAL = 10;
+
+    private final MongoNaf mongoNaf;
+    private final int threads;
+    private final int batchSize;
+    private final File checkpoint;
+    // Progress
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final TreeSet<Long> doneBatches = new TreeSet<Long>();
+    private long firstPendingBatch;
+    private long skipped;
+    private long start;
+    private long lastReport;
+
+
+    MongoNafManager(MongoNaf mongoNaf, int threads, int batchSize, File checkpoint) {
+	this.mongoNaf = mongoNaf;
+	this.threads = threads;
+	this.batchSize = batchSize;
+	this.checkpoint = checkpoint;
+    }
+
+    public static void main(String[] args) {
+	String input = null;
+	String server = "localhost";
+	int port = 27017;
+	String dbName = null;
+	boolean packed = false;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int batchSize = 100;
+	File checkpoint = null;
+	try {
+	    for (int i = 0; i < args.length; i++) {
+		if (args[i].equals("--server")) server = args[++i];
+		else if (args[i].equals("--port")) port = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--db")) dbName = args[++i];
+		else if (args[i].equals("--packed")) packed = true;
+		else if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--batch")) batchSize = Integer.parseInt(args[++i]);
+		else if (args[i].equals("--checkpoint")) checkpoint = new File(args[++i]);
+		else if (!args[i].startsWith("--") && input == null) input = args[i];
+		else throw new IllegalArgumentException(args[i]);
+	    }
+	} catch(RuntimeException e) {
+	    System.err.print(USAGE);
+	    System.exit(2);
+	}
+	if (input == null || dbName == null || threads < 1 || batchSize < 1) {
+	    System.err.print(USAGE);
+	    System.exit(2);
+	}
+	try {
+	    MongoClientOptions options = MongoClientOptions.builder().connectionsPerHost(Math.max(100, threads)).build();
+	    MongoNaf mongoNaf = MongoNaf.instance(server, port, dbName, packed, options);
+	    MongoNafManager manager = new MongoNafManager(mongoNaf, threads, batchSize, checkpoint);
+	    manager.load(new File(input));
+	    System.exit(manager.getFailed() > 0 ? 1 : 0);
+	} catch(Exception e) {
+	    System.err.println("Error loading " + input + ": " + e.getMessage());
+	    e.printStackTrace();
+	    System.exit(2);
+	}
+    }
+
+    void load(File input) throws Exception {
+	this.skipped = this.readCheckpoint();
+	if (this.skipped > 0) {
+	    System.out.println("Resuming after " + this.skipped + " files.");
+	}
+	NafSource source = input.isDirectory() ? new DirectorySource(input) : new TarSource(input);
+	ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+	// Batches read but not stored yet, so that reading doesn't get too far ahead of the writes
+	final Semaphore pendingBatches = new Semaphore(2 * this.threads);
+	this.start = System.nanoTime();
+	this.lastReport = this.start;
+	try {
+	    for (long i = 0; i < this.skipped; i++) {
+		if (!source.skip()) break;
+	    }
+	    long batchNumber = 0;
+	    boolean more = true;
+	    while (more) {
+		final Map<String, byte[]> batch = new LinkedHashMap<String, byte[]>();
+		while (batch.size() < this.batchSize && (more = source.next())) {
+		    batch.put(source.getDocId(), source.getContent());
+		}
+		if (batch.isEmpty()) break;
+		pendingBatches.acquire();
+		final long number = batchNumber++;
+		pool.execute(new Runnable() {
+		    public void run() {
+			try {
+			    store(batch);
+			    done(number);
+			} catch(RuntimeException e) {
+			    // Not marked as done, so the checkpoint stays before it
+			    failed.addAndGet(batch.size());
+			    System.err.println("Error storing batch " + number + ": " + e.getMessage());
+			} finally {
+			    pendingBatches.release();
+			}
+		    }
+		});
+	    }
+	    pool.shutdown();
+	    pool.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+	} finally {
+	    pool.shutdownNow();
+	    source.close();
+	}
+	this.report(true);
+    }
+
+    long getStored() {
+	return this.stored.get();
+    }
+
+    long getFailed() {
+	return this.failed.get();
+    }
+
+    // Parses and stores a batch of files. Its files are only counted once it has been stored, so
+    // that a batch which can't be stored is counted as failed as a whole by the caller.
+    private void store(Map<String, byte[]> batch) {
+	Map<String, KAFDocument> nafs = new LinkedHashMap<String, KAFDocument>();
+	for (Map.Entry<String, byte[]> file : batch.entrySet()) {
+	    this.bytes.addAndGet(file.getValue().length);
+	    try {
+		InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(decompress(file.getValue())), "UTF-8");
+		nafs.put(file.getKey(), KAFDocument.createFromStream(reader));
+	    } catch(Exception e) {
+		System.err.println("Error parsing " + file.getKey() + ": " + e.getMessage());
+	    }
+	}
+	Map<String, MongoNafException> errors = this.mongoNaf.insertNafDocuments(nafs);
+	for (Map.Entry<String, MongoNafException> error : errors.entrySet()) {
+	    System.err.println("Error storing " + error.getKey() + ": " + error.getValue().getMessage());
+	}
+	this.failed.addAndGet(batch.size() - nafs.size() + errors.size());
+	this.stored.addAndGet(nafs.size() - errors.size());
+    }
+
+    // Marks a batch as done, saving the checkpoint and reporting the progress
+    private synchronized void done(long batchNumber) {
+	this.doneBatches.add(batchNumber);
+	while (this.doneBatches.remove(this.firstPendingBatch)) {
+	    this.firstPendingBatch++;
+	}
+	// Failed files are also done: they are reported, and skipped when resuming
+	long doneFiles = Math.min(this.skipped + this.firstPendingBatch * this.batchSize, this.skipped + this.stored.get() + this.failed.get());
+	try {
+	    this.writeCheckpoint(doneFiles);
+	} catch(IOException e) {
+	    System.err.println("Error saving the checkpoint: " + e.getMessage());
+	}
+	this.report(false);
+    }
+
+    private synchronized void report(boolean last) {
+	long now = System.nanoTime();
+	if (!last && now - this.lastReport < TimeUnit.SECONDS.toNanos(REPORT_INTERVAL)) {
+	    return;
+	}
+	this.lastReport = now;
+	double seconds = Math.max((now - this.start) / 1e9, 1e-3);
+	System.out.println(String.format("%s%d documents stored, %d failed in %.0f s: %.1f docs/s, %.2f MB/s",
+					 last ? "Done. " : "", this.stored.get(), this.failed.get(), seconds,
+					 this.stored.get() / seconds, this.bytes.get() / seconds / (1024 * 1024)));
+    }
+
+    private long readCheckpoint() throws IOException {
+	if (this.checkpoint == null || !this.checkpoint.exists()) {
+	    return 0;
+	}
+	return Long.parseLong(new String(readAll(new FileInputStream(this.checkpoint)), "UTF-8").trim());
+    }
+
+    // Written to a temporary file first, so that a crash doesn't leave a truncated checkpoint
+    private void writeCheckpoint(long doneFiles) throws IOException {
+	if (this.checkpoint == null) {
+	    return;
+	}
+	File tmp = new File(this.checkpoint.getPath() + ".tmp");
+	Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+	try {
+	    writer.write(doneFiles + "\n");
+	} finally {
+	    writer.close();
+	}
+	if (!tmp.renameTo(this.checkpoint)) {
+	    this.checkpoint.delete();
+	    if (!tmp.renameTo(this.checkpoint)) {
+		throw new IOException("Can't rename " + tmp + " to " + this.checkpoint);
+	    }
+	}
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+	try {
+	    ByteArrayOutputStream out = new ByteArrayOutputStream();
+	    byte[] buffer = new byte[65536];
+	    int n;
+	    while ((n = in.read(buffer)) > 0) {
+		out.write(buffer, 0, n);
+	    }
+	    return out.toByteArray();
+	} finally {
+	    in.close();
+	}
+    }
+
+    static boolean isNafFile(String name) {
+	String lower = name.toLowerCase();
+	if (lower.endsWith(".gz")) {
+	    lower = lower.substring(0, lower.length() - 3);
+	}
+	return lower.endsWith(".naf") || lower.endsWith(".kaf") || lower.endsWith(".xml");
+    }
+
+    // Path without the .gz and NAF extensions
+    static String getDocId(String path) {
+	String docId = path.replace(File.separatorChar, '/');
+	if (docId.toLowerCase().endsWith(".gz")) {
+	    docId = docId.substring(0, docId.length() - 3);
+	}
+	int dot = docId.lastIndexOf('.');
+	return (dot > docId.lastIndexOf('/')) ? docId.substring(0, dot) : docId;
+    }
+
+    // Gunzips the content of .gz files (recognized by their magic number)
+    static byte[] decompress(byte[] content) throws IOException {
+	if (content.length < 2 || content[0] != (byte) 0x1f || content[1] != (byte) 0x8b) {
+	    return content;
+	}
+	return readAll(new GZIPInputStream(new ByteArrayInputStream(content)));
+    }
+
+
+    // The NAF files of the input, always in the same order
+    interface NafSource {
+	// Moves to the next file, returning false at the end
+	boolean next() throws IOException;
+	// Moves to the next file without reading it
+	boolean skip() throws IOException;
+	String getDocId();
+	// Content of the file (still gzipped if it was)
+	byte[] getContent() throws IOException;
+	void close() throws IOException;
+    }
+
+    // Files of a directory tree, in depth-first order of the sorted names
+    private static class DirectorySource implements NafSource {
+	private final int rootLength;
+	private final LinkedList<File> files;
+	private File current;
+
+	DirectorySource(File root) {
+	    this.rootLength = root.getPath().length() + 1;
+	    this.files = new LinkedList<File>();
+	    this.expand(root);
+	}
+
+	private void expand(File dir) {
+	    File[] children = dir.listFiles();
+	    if (children != null) {
+		Arrays.sort(children);
+		for (int i = children.length - 1; i >= 0; i--) {
+		    this.files.addFirst(children[i]);
+		}
+	    }
+	}
+
+	public boolean next() {
+	    while (!this.files.isEmpty()) {
+		File file = this.files.removeFirst();
+		if (file.isDirectory()) {
+		    this.expand(file);
+		} else if (isNafFile(file.getName())) {
+		    this.current = file;
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	public boolean skip() {
+	    return this.next();
+	}
+
+	public String getDocId() {
+	    return MongoNafManager.getDocId(this.current.getPath().substring(this.rootLength));
+	}
+
+	public byte[] getContent() throws IOException {
+	    return readAll(new FileInputStream(this.current));
+	}
+
+	public void close() {
+	}
+    }
+
+    // Entries of a (optionally gzipped) tar file, in the order they are stored. Reads ustar and GNU
+    // headers, including GNU long names and pax paths.
+    static class TarSource implements NafSource {
+	private final InputStream in;
+	private final byte[] header = new byte[512];
+	private String name;
+	private long size;
+	private boolean read;
+
+	TarSource(File file) throws IOException {
+	    InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+	    String lower = file.getName().toLowerCase();
+	    if (lower.endsWith(".gz") || lower.endsWith(".tgz")) {
+		in = new BufferedInputStream(new GZIPInputStream(in, 1 << 16), 1 << 16);
+	    }
+	    this.in = in;
+	    this.read = true;
+	}
+
+	public boolean next() throws IOException {
+	    if (!this.read) {
+		this.skipBytes(padded(this.size));
+	    }
+	    String longName = null;
+	    while (this.readFully(this.header)) {
+		if (isZero(this.header)) {
+		    return false;
+		}
+		long size = parseOctal(this.header, 124, 12);
+		char type = (char) this.header[156];
+		if (type == 'L' || type == 'x') {
+		    byte[] data = new byte[(int) size];
+		    if (!this.readFully(data)) break;
+		    this.skipBytes(padded(size) - size);
+		    longName = (type == 'L') ? parseString(data, 0, data.length) : parsePaxPath(data, longName);
+		    continue;
+		}
+		String name = (longName != null) ? longName : this.parseName();
+		longName = null;
+		if ((type == '0' || type == '\0') && isNafFile(name)) {
+		    this.name = name;
+		    this.size = size;
+		    this.read = false;
+		    return true;
+		}
+		this.skipBytes(padded(size));
+	    }
+	    return false;
+	}
+
+	public boolean skip() throws IOException {
+	    return this.next();
+	}
+
+	public String getDocId() {
+	    String name = this.name.startsWith("./") ? this.name.substring(2) : this.name;
+	    return MongoNafManager.getDocId(name);
+	}
+
+	public byte[] getContent() throws IOException {
+	    byte[] content = new byte[(int) this.size];
+	    if (!this.readFully(content)) {
+		throw new IOException("Truncated tar entry " + this.name);
+	    }
+	    this.skipBytes(padded(this.size) - this.size);
+	    this.read = true;
+	    return content;
+	}
+
+	public void close() throws IOException {
+	    this.in.close();
+	}
+
+	private String parseName() {
+	    String name = parseString(this.header, 0, 100);
+	    String prefix = parseString(this.header, 345, 155);
+	    boolean ustar = parseString(this.header, 257, 6).startsWith("ustar");
+	    return (ustar && !prefix.isEmpty()) ? prefix + "/" + name : name;
+	}
+
+	private boolean readFully(byte[] buffer) throws IOException {
+	    int offset = 0;
+	    while (offset < buffer.length) {
+		int n = this.in.read(buffer, offset, buffer.length - offset);
+		if (n < 0) {
+		    if (offset == 0) return false;
+		    throw new IOException("Truncated tar file");
+		}
+		offset += n;
+	    }
+	    return true;
+	}
+
+	private void skipBytes(long count) throws IOException {
+	    while (count > 0) {
+		long n = this.in.skip(count);
+		if (n <= 0) {
+		    if (this.in.read() < 0) return;
+		    n = 1;
+		}
+		count -= n;
+	    }
+	}
+
+	private static long padded(long size) {
+	    return (size + 511) / 512 * 512;
+	}
+
+	private static boolean isZero(byte[] block) {
+	    for (byte b : block) {
+		if (b != 0) return false;
+	    }
+	    return true;
+	}
+
+	private static long parseOctal(byte[] buffer, int offset, int length) {
+	    long value = 0;
+	    for (int i = offset; i < offset + length && buffer[i] != 0; i++) {
+		if (buffer[i] >= '0' && buffer[i] <= '7') {
+		    value = value * 8 + (buffer[i] - '0');
+		}
+	    }
+	    return value;
+	}
+
+	private static String parseString(byte[] buffer, int offset, int length) {
+	    int end = offset;
+	    while (end < offset + length && buffer[end] != 0) {
+		end++;
+	    }
+	    try {
+		return new String(buffer, offset, end - offset, "UTF-8");
+	    } catch(IOException e) {
+		throw new IllegalStateException(e);
+	    }
+	}
+
+	// "<length> path=<path>\n" record of a pax header, or the given name if there is none
+	private static String parsePaxPath(byte[] data, String name) {
+	    for (String record : parseString(data, 0, data.length).split("\n")) {
+		int space = record.indexOf(' ');
+		if (space >= 0 && record.startsWith("path=", space + 1)) {
+		    return record.substring(space + 6);
+		}
+	    }
+	    return name;
+	}
+    }
+
+}
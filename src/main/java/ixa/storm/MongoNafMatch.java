@@ -0,0 +1,36 @@
+package ixa.storm;
+
+
+// Stored document (or paragraph/sentence part) containing an annotation matched by MongoNaf.findAnnotations
+public class MongoNafMatch {
+
+    private final String docId;
+    private final Integer paragraph;
+    private final Integer sentence;
+
+
+    MongoNafMatch(String docId, Integer paragraph, Integer sentence) {
+	this.docId = docId;
+	this.paragraph = paragraph;
+	this.sentence = sentence;
+    }
+
+    public String getDocId() {
+	return this.docId;
+    }
+
+    // Paragraph of the matching part, or null if the layer was stored for the whole document
+    public Integer getParagraph() {
+	return this.paragraph;
+    }
+
+    // Sentence of the matching part, or null if the layer wasn't stored by sentences
+    public Integer getSentence() {
+	return this.sentence;
+    }
+
+    public String toString() {
+	return this.docId + (this.paragraph != null ? " P" + this.paragraph : "") + (this.sentence != null ? " S" + this.sentence : "");
+    }
+
+}
@@ -0,0 +1,543 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import org.bson.BSON;
+import org.bson.types.ObjectId;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+// In-memory collection. Objects are stored as they would be read back from MongoDB (through BSON)
+// and are never modified once stored: updates store a modified copy, so reads don't need locks.
+// Writes are serialized. Objects are also indexed by doc_id, as most queries select documents.
+class MongoNafMemoryCollection implements MongoNafCollection {
+
+    // Minimum time between two removals of expired objects
+    private static final long EXPIRATION_INTERVAL = 1000;
+
+    private final String name;
+    // _id -> object
+    private final ConcurrentMap<Object, DBObject> objs;
+    // doc_id -> _ids of its objects
+    private final ConcurrentMap<Object, Set<Object>> docIds;
+    private final List<DBObject> indexKeys;
+    // TTL index
+    private volatile String ttlField;
+    private volatile long ttlMillis;
+    private volatile long lastExpiration;
+
+
+    MongoNafMemoryCollection(String name) {
+	this.name = name;
+	this.objs = new ConcurrentHashMap<Object, DBObject>();
+	this.docIds = new ConcurrentHashMap<Object, Set<Object>>();
+	this.indexKeys = new CopyOnWriteArrayList<DBObject>();
+    }
+
+    public String getName() {
+	return this.name;
+    }
+
+    public synchronized void save(DBObject obj, WriteConcern concern) {
+	if (obj.get("_id") == null) {
+	    obj.put("_id", new ObjectId());
+	}
+	this.store(normalize(obj));
+    }
+
+    public synchronized void insert(DBObject obj, WriteConcern concern) {
+	if (obj.get("_id") == null) {
+	    obj.put("_id", new ObjectId());
+	}
+	if (this.objs.containsKey(obj.get("_id"))) {
+	    throw new MongoException(11000, "E11000 duplicate key error in " + this.name + ": " + obj.get("_id"));
+	}
+	this.store(normalize(obj));
+    }
+
+    public synchronized void update(DBObject query, DBObject update, boolean upsert, WriteConcern concern) {
+	List<DBObject> matches = this.match(query);
+	if (!matches.isEmpty()) {
+	    DBObject obj = matches.get(0);
+	    this.store(this.applyUpdate(copy(obj), obj.get("_id"), update, false));
+	} else if (upsert) {
+	    // The new object gets the fields compared by equality in the query
+	    BasicDBObject obj = new BasicDBObject();
+	    for (String key : query.keySet()) {
+		Object value = query.get(key);
+		if (!key.startsWith("$") && !key.contains(".") && !isOperatorObject(value)) {
+		    obj.put(key, value);
+		}
+	    }
+	    Object id = (obj.get("_id") != null) ? obj.get("_id") : new ObjectId();
+	    this.store(normalize(this.applyUpdate(obj, id, update, true)));
+	}
+    }
+
+    public synchronized Map<Integer, String> bulkWrite(List<MongoNafWrite> writes, WriteConcern concern) {
+	Map<Integer, String> errors = new HashMap<Integer, String>();
+	for (int i = 0; i < writes.size(); i++) {
+	    MongoNafWrite write = writes.get(i);
+	    try {
+		if (write.isUpdate()) {
+		    this.update(write.getQuery(), write.getObject(), write.isUpsert(), concern);
+		} else {
+		    this.save(write.getObject(), concern);
+		}
+	    } catch(MongoException e) {
+		errors.put(i, e.getMessage());
+	    }
+	}
+	return errors;
+    }
+
+    public synchronized void remove(DBObject query, WriteConcern concern) {
+	for (DBObject obj : this.match(query)) {
+	    this.delete(obj.get("_id"));
+	}
+    }
+
+    public DBObject findOne(DBObject query, DBObject projection) {
+	this.expire();
+	List<DBObject> matches = this.match(query);
+	return matches.isEmpty() ? null : project(matches.get(0), projection);
+    }
+
+    public List<DBObject> find(DBObject query, DBObject projection, DBObject sort) {
+	return this.find(query, projection, sort, 0);
+    }
+
+    public List<DBObject> find(DBObject query, DBObject projection, DBObject sort, int limit) {
+	this.expire();
+	List<DBObject> matches = this.match(query);
+	if (sort != null) {
+	    Collections.sort(matches, new SortComparator(sort));
+	}
+	if (limit > 0 && matches.size() > limit) {
+	    matches = matches.subList(0, limit);
+	}
+	List<DBObject> results = new ArrayList<DBObject>();
+	for (DBObject obj : matches) {
+	    results.add(project(obj, projection));
+	}
+	return results;
+    }
+
+    public Iterator<DBObject> iterate(DBObject query, DBObject projection, DBObject sort) {
+	return this.find(query, projection, sort).iterator();
+    }
+
+    public List<DBObject> findElements(DBObject query, String arrayPath, DBObject elementQuery) {
+	this.expire();
+	List<DBObject> elements = new ArrayList<DBObject>();
+	for (DBObject obj : this.match(query)) {
+	    Object array = getPath(obj, arrayPath);
+	    if (!(array instanceof List)) {
+		continue;
+	    }
+	    for (Object element : (List<?>) array) {
+		if (element instanceof DBObject && matches((DBObject) element, elementQuery)) {
+		    elements.add(copy((DBObject) element));
+		}
+	    }
+	}
+	return elements;
+    }
+
+    public List distinct(String field, DBObject query) {
+	this.expire();
+	List<Object> values = new ArrayList<Object>();
+	for (DBObject obj : this.match(query)) {
+	    for (Object value : getValues(obj, field)) {
+		if (!values.contains(value)) {
+		    values.add(value);
+		}
+	    }
+	}
+	return values;
+    }
+
+    public List<DBObject> getIndexKeys() {
+	List<DBObject> keys = new ArrayList<DBObject>();
+	keys.add(new BasicDBObject("_id", 1));
+	keys.addAll(this.indexKeys);
+	return keys;
+    }
+
+    // Indexes are only recorded (queries scan the objects of the selected documents), except TTL indexes
+    public synchronized void createIndex(DBObject keys, DBObject options) {
+	if (!this.indexKeys.contains(keys)) {
+	    this.indexKeys.add(keys);
+	}
+	if (options != null && options.containsField("expireAfterSeconds")) {
+	    this.setExpireAfterSeconds(keys, ((Number) options.get("expireAfterSeconds")).longValue());
+	}
+    }
+
+    public synchronized void dropIndex(DBObject keys) {
+	this.indexKeys.remove(keys);
+	if (keys.keySet().iterator().next().equals(this.ttlField)) {
+	    this.ttlField = null;
+	}
+    }
+
+    public synchronized void setExpireAfterSeconds(DBObject keys, long expireAfterSeconds) {
+	this.ttlMillis = expireAfterSeconds * 1000;
+	this.ttlField = keys.keySet().iterator().next();
+    }
+
+    synchronized void clear() {
+	this.objs.clear();
+	this.docIds.clear();
+	this.indexKeys.clear();
+	this.ttlField = null;
+    }
+
+    private void store(DBObject obj) {
+	Object id = obj.get("_id");
+	DBObject previous = this.objs.put(id, obj);
+	if (previous != null) {
+	    this.removeDocId(previous.get("doc_id"), id);
+	}
+	Object docId = obj.get("doc_id");
+	if (docId != null) {
+	    Set<Object> ids = this.docIds.get(docId);
+	    if (ids == null) {
+		ids = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+		this.docIds.put(docId, ids);
+	    }
+	    ids.add(id);
+	}
+    }
+
+    private void delete(Object id) {
+	DBObject obj = this.objs.remove(id);
+	if (obj != null) {
+	    this.removeDocId(obj.get("doc_id"), id);
+	}
+    }
+
+    private void removeDocId(Object docId, Object id) {
+	if (docId != null) {
+	    Set<Object> ids = this.docIds.get(docId);
+	    if (ids != null) {
+		ids.remove(id);
+		if (ids.isEmpty()) {
+		    this.docIds.remove(docId);
+		}
+	    }
+	}
+    }
+
+    // Removes the objects whose TTL field is older than the expiration, as MongoDB's TTL monitor does
+    private void expire() {
+	String field = this.ttlField;
+	long now = System.currentTimeMillis();
+	if (field == null || now - this.lastExpiration < EXPIRATION_INTERVAL) {
+	    return;
+	}
+	synchronized (this) {
+	    this.lastExpiration = now;
+	    for (DBObject obj : this.objs.values()) {
+		Object time = obj.get(field);
+		if (time instanceof Date && ((Date) time).getTime() + this.ttlMillis < now) {
+		    this.delete(obj.get("_id"));
+		}
+	    }
+	}
+    }
+
+    // Objects matching the query, looked up by _id or doc_id when the query selects them
+    private List<DBObject> match(DBObject query) {
+	Collection<?> ids = null;
+	Object id = query.get("_id");
+	Object docId = query.get("doc_id");
+	if (id != null && !isOperatorObject(id)) {
+	    ids = Collections.singletonList(id);
+	} else if (docId instanceof String) {
+	    ids = this.getDocIds(Collections.singletonList(docId));
+	} else if (isOperatorObject(docId) && ((DBObject) docId).containsField("$in")) {
+	    ids = this.getDocIds((List<?>) ((DBObject) docId).get("$in"));
+	}
+	List<DBObject> matches = new ArrayList<DBObject>();
+	if (ids == null) {
+	    for (DBObject obj : this.objs.values()) {
+		if (matches(obj, query)) {
+		    matches.add(obj);
+		}
+	    }
+	} else {
+	    for (Object objId : ids) {
+		DBObject obj = this.objs.get(objId);
+		if (obj != null && matches(obj, query)) {
+		    matches.add(obj);
+		}
+	    }
+	}
+	return matches;
+    }
+
+    private List<Object> getDocIds(List<?> docIds) {
+	List<Object> ids = new ArrayList<Object>();
+	for (Object docId : docIds) {
+	    Set<Object> docObjIds = this.docIds.get(docId);
+	    if (docObjIds != null) {
+		ids.addAll(docObjIds);
+	    }
+	}
+	return ids;
+    }
+
+    private DBObject applyUpdate(DBObject obj, Object id, DBObject update, boolean inserting) {
+	boolean operators = false;
+	for (String key : update.keySet()) {
+	    operators = operators || key.startsWith("$");
+	}
+	if (!operators) {
+	    DBObject replacement = copy(update);
+	    replacement.put("_id", id);
+	    return replacement;
+	}
+	obj.put("_id", id);
+	for (String operator : update.keySet()) {
+	    DBObject fields = (DBObject) update.get(operator);
+	    for (String path : fields.keySet()) {
+		Object value = fields.get(path);
+		if (operator.equals("$set") || (operator.equals("$setOnInsert") && inserting)) {
+		    setPath(obj, path, value);
+		}
+		else if (operator.equals("$push")) {
+		    List<Object> items = new ArrayList<Object>();
+		    if (isOperatorObject(value) && ((DBObject) value).containsField("$each")) {
+			items.addAll((List<?>) ((DBObject) value).get("$each"));
+		    } else {
+			items.add(value);
+		    }
+		    Object list = getPath(obj, path);
+		    if (list == null) {
+			list = new BasicDBList();
+			setPath(obj, path, list);
+		    } else if (!(list instanceof List)) {
+			throw new MongoException("The field " + path + " must be an array.");
+		    }
+		    ((List<Object>) list).addAll(items);
+		}
+		else if (operator.equals("$unset")) {
+		    Object parent = path.contains(".") ? getPath(obj, path.substring(0, path.lastIndexOf('.'))) : obj;
+		    if (parent instanceof DBObject && !(parent instanceof List)) {
+			((DBObject) parent).removeField(path.substring(path.lastIndexOf('.') + 1));
+		    }
+		}
+		else if (!operator.equals("$setOnInsert")) {
+		    throw new MongoException("Unsupported update operator: " + operator);
+		}
+	    }
+	}
+	return normalize(obj);
+    }
+
+    private static boolean matches(DBObject obj, DBObject query) {
+	for (String key : query.keySet()) {
+	    Object condition = query.get(key);
+	    if (key.equals("$or")) {
+		boolean any = false;
+		for (Object subquery : (List<?>) condition) {
+		    any = any || matches(obj, (DBObject) subquery);
+		}
+		if (!any) return false;
+	    }
+	    else if (isOperatorObject(condition)) {
+		List<Object> values = getValues(obj, key);
+		DBObject operators = (DBObject) condition;
+		for (String operator : operators.keySet()) {
+		    if (!matchesOperator(values, operator, operators.get(operator))) return false;
+		}
+	    }
+	    else if (!containsEqual(getValues(obj, key), condition)) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private static boolean matchesOperator(List<Object> values, String operator, Object argument) {
+	if (operator.equals("$in")) {
+	    for (Object item : (List<?>) argument) {
+		if (containsEqual(values, item)) return true;
+	    }
+	    return false;
+	}
+	if (operator.equals("$ne")) {
+	    return !containsEqual(values, argument);
+	}
+	if (operator.equals("$exists")) {
+	    return !values.isEmpty() == (Boolean) argument;
+	}
+	if (operator.equals("$gte") || operator.equals("$lte") || operator.equals("$gt") || operator.equals("$lt")) {
+	    for (Object value : values) {
+		if (rank(value) != rank(argument) || value == null) continue;
+		int comparison = compareValues(value, argument);
+		if ((operator.equals("$gte") && comparison >= 0) || (operator.equals("$lte") && comparison <= 0)
+		    || (operator.equals("$gt") && comparison > 0) || (operator.equals("$lt") && comparison < 0)) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+	throw new MongoException("Unsupported query operator: " + operator);
+    }
+
+    // Whether one of the values (or an element of a value which is an array) equals the given one
+    private static boolean containsEqual(List<Object> values, Object expected) {
+	for (Object value : values) {
+	    if (equalValues(value, expected)) return true;
+	    if (value instanceof List && !(expected instanceof List)) {
+		for (Object item : (List<?>) value) {
+		    if (equalValues(item, expected)) return true;
+		}
+	    }
+	}
+	return false;
+    }
+
+    private static boolean equalValues(Object a, Object b) {
+	if (a instanceof Number && b instanceof Number) {
+	    return ((Number) a).doubleValue() == ((Number) b).doubleValue();
+	}
+	return (a == null) ? b == null : a.equals(b);
+    }
+
+    // Values of a dotted path, going through arrays as MongoDB does (e.g. "lps.name")
+    private static List<Object> getValues(Object obj, String path) {
+	List<Object> values = new ArrayList<Object>();
+	collectValues(obj, path.split("\\."), 0, values);
+	return values;
+    }
+
+    private static void collectValues(Object obj, String[] parts, int i, List<Object> values) {
+	if (i == parts.length) {
+	    values.add(obj);
+	    return;
+	}
+	if (obj instanceof List && !isIndex(parts[i])) {
+	    for (Object item : (List<?>) obj) {
+		collectValues(item, parts, i, values);
+	    }
+	}
+	else if (obj instanceof DBObject && ((DBObject) obj).containsField(parts[i])) {
+	    collectValues(((DBObject) obj).get(parts[i]), parts, i + 1, values);
+	}
+    }
+
+    private static Object getPath(DBObject obj, String path) {
+	Object value = obj;
+	for (String part : path.split("\\.")) {
+	    if (!(value instanceof DBObject)) return null;
+	    value = ((DBObject) value).get(part);
+	}
+	return value;
+    }
+
+    // Sets a dotted path (e.g. layers.terms or annotations.3), creating the missing objects
+    private static void setPath(DBObject obj, String path, Object value) {
+	String[] parts = path.split("\\.");
+	DBObject parent = obj;
+	for (int i = 0; i < parts.length - 1; i++) {
+	    Object child = parent.get(parts[i]);
+	    if (!(child instanceof DBObject)) {
+		child = new BasicDBObject();
+		parent.put(parts[i], child);
+	    }
+	    parent = (DBObject) child;
+	}
+	parent.put(parts[parts.length - 1], value);
+    }
+
+    private static boolean isIndex(String part) {
+	return !part.isEmpty() && part.matches("[0-9]+");
+    }
+
+    private static boolean isOperatorObject(Object value) {
+	if (!(value instanceof DBObject) || value instanceof List) return false;
+	Set<String> keys = ((DBObject) value).keySet();
+	return !keys.isEmpty() && keys.iterator().next().startsWith("$");
+    }
+
+    // Copy of the object with only the fields of the projection (and _id)
+    private static DBObject project(DBObject obj, DBObject projection) {
+	if (projection == null) {
+	    return copy(obj);
+	}
+	DBObject projected = new BasicDBObject("_id", obj.get("_id"));
+	for (String path : projection.keySet()) {
+	    Object value = getPath(obj, path);
+	    if (value != null) {
+		setPath(projected, path, value);
+	    }
+	}
+	return copy(projected);
+    }
+
+    // Order of the values of different types when sorting, as in MongoDB
+    private static int rank(Object value) {
+	if (value == null) return 0;
+	if (value instanceof Number) return 1;
+	if (value instanceof String) return 2;
+	return 3;
+    }
+
+    private static int compareValues(Object a, Object b) {
+	int rankA = rank(a);
+	int rankB = rank(b);
+	if (rankA != rankB) return rankA - rankB;
+	if (rankA == 1) return Double.compare(((Number) a).doubleValue(), ((Number) b).doubleValue());
+	if (rankA == 2) return MongoNaf.compareDocIds((String) a, (String) b);
+	if (a instanceof Date && b instanceof Date) return ((Date) a).compareTo((Date) b);
+	return 0;
+    }
+
+    private static class SortComparator implements Comparator<DBObject> {
+	private final DBObject sort;
+
+	SortComparator(DBObject sort) {
+	    this.sort = sort;
+	}
+
+	public int compare(DBObject a, DBObject b) {
+	    for (String field : this.sort.keySet()) {
+		int comparison = compareValues(getPath(a, field), getPath(b, field));
+		if (comparison != 0) {
+		    return ((Number) this.sort.get(field)).intValue() < 0 ? -comparison : comparison;
+		}
+	    }
+	    return 0;
+	}
+    }
+
+    // The object as read back from MongoDB: BasicDBObject and BasicDBList, copied from the caller's
+    private static DBObject normalize(DBObject obj) {
+	return new DefaultDBDecoder().decode(BSON.encode(obj), (DBCollection) null);
+    }
+
+    private static DBObject copy(DBObject obj) {
+	return normalize(obj);
+    }
+
+}
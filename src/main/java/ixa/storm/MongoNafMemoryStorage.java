@@ -0,0 +1,42 @@
+package ixa.storm;
+
+import com.mongodb.WriteConcern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+
+// Storage keeping the collections in memory, for local pipelines and tests which don't need a
+// MongoDB server. It is thread-safe. Nothing is persisted.
+public class MongoNafMemoryStorage implements MongoNafStorage {
+
+    private final ConcurrentMap<String, MongoNafMemoryCollection> collections;
+
+
+    public MongoNafMemoryStorage() {
+	this.collections = new ConcurrentHashMap<String, MongoNafMemoryCollection>();
+    }
+
+    public MongoNafCollection getCollection(String name) {
+	MongoNafMemoryCollection collection = this.collections.get(name);
+	if (collection == null) {
+	    MongoNafMemoryCollection newCollection = new MongoNafMemoryCollection(name);
+	    collection = this.collections.putIfAbsent(name, newCollection);
+	    if (collection == null) {
+		collection = newCollection;
+	    }
+	}
+	return collection;
+    }
+
+    // Writes are applied before returning, so every write concern is the same
+    public WriteConcern getDefaultWriteConcern() {
+	return WriteConcern.ACKNOWLEDGED;
+    }
+
+    public void drop() {
+	for (MongoNafMemoryCollection collection : this.collections.values()) {
+	    collection.clear();
+	}
+    }
+
+}
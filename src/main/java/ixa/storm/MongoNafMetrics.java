@@ -0,0 +1,163 @@
+package ixa.storm;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+// Latency, annotation, size and error statistics of the reads and writes of a MongoNaf instance,
+// by layer and phase:
+//   map:    NAF annotations -> DBObjects (annotations = mapped annotations)
+//   encode: BSON encoding of the written objects (bytes = their serialized size)
+//   store:  write to the database, including the driver's encoding and the network
+//   fetch:  read from the database, including the driver's decoding (bytes = size of the read objects)
+// Measuring sizes means encoding the objects once more, so only 1 in SIZE_SAMPLING writes and reads
+// is measured: "encode" counts only those, and the bytes of "store" and "fetch" are estimates (the
+// sampled sizes times SIZE_SAMPLING).
+//   build:  DBObjects -> NAF annotations (annotations = rebuilt annotations)
+// Writes of whole documents in the packed layout are reported under the "documents" layer.
+// Statistics can be read here, through JMX (registerMBeans) and/or forwarded to another metrics
+// registry with a Listener. MongoNaf only measures anything while metrics are enabled.
+public class MongoNafMetrics {
+
+    public static final String MAP = "map";
+    public static final String ENCODE = "encode";
+    public static final String STORE = "store";
+    public static final String FETCH = "fetch";
+    public static final String BUILD = "build";
+
+    public static final int SIZE_SAMPLING = 16;
+
+    private static final Logger LOGGER = Logger.getLogger(MongoNafMetrics.class.getName());
+
+    // Receives every measurement, e.g. to update the timers of an application's metrics registry
+    public interface Listener {
+	void record(String layerName, String phase, long nanos, long annotations, long bytes);
+	void recordError(String layerName, String phase);
+    }
+
+    private final ConcurrentMap<String, MongoNafLayerStats> stats;
+    private volatile Listener listener;
+    private final AtomicLong sizeSamples;
+    // Name the statistics are registered under in JMX, or null
+    private String jmxName;
+
+
+    MongoNafMetrics() {
+	this.stats = new ConcurrentHashMap<String, MongoNafLayerStats>();
+	this.sizeSamples = new AtomicLong();
+    }
+
+    // Whether the size of the objects of the current write or read is to be measured
+    boolean sampleSize() {
+	return this.sizeSamples.getAndIncrement() % SIZE_SAMPLING == 0;
+    }
+
+    void record(String layerName, String phase, long nanos, long annotations, long bytes) {
+	this.getStats(layerName, phase).record(nanos, annotations, bytes);
+	Listener listener = this.listener;
+	if (listener != null) {
+	    listener.record(layerName, phase, nanos, annotations, bytes);
+	}
+    }
+
+    void recordError(String layerName, String phase) {
+	this.getStats(layerName, phase).recordError();
+	Listener listener = this.listener;
+	if (listener != null) {
+	    listener.recordError(layerName, phase);
+	}
+    }
+
+    public void setListener(Listener listener) {
+	this.listener = listener;
+    }
+
+    // Statistics of a layer and phase (created empty if nothing was recorded for them yet)
+    public MongoNafLayerStats getStats(String layerName, String phase) {
+	String key = layerName + "\u0000" + phase;
+	MongoNafLayerStats layerStats = this.stats.get(key);
+	if (layerStats == null) {
+	    MongoNafLayerStats newStats = new MongoNafLayerStats(layerName, phase);
+	    layerStats = this.stats.putIfAbsent(key, newStats);
+	    if (layerStats == null) {
+		layerStats = newStats;
+		try {
+		    this.register(newStats);
+		} catch(JMException e) {
+		    // Measuring goes on without the MBean
+		    LOGGER.log(Level.WARNING, "Error registering the MBean of " + layerName + "/" + phase, e);
+		}
+	    }
+	}
+	return layerStats;
+    }
+
+    public List<MongoNafLayerStats> getAllStats() {
+	return new ArrayList<MongoNafLayerStats>(this.stats.values());
+    }
+
+    public void reset() {
+	for (MongoNafLayerStats layerStats : this.stats.values()) {
+	    layerStats.reset();
+	}
+    }
+
+    // Registers the statistics in the platform MBean server as
+    // ixa.storm:type=MongoNaf,name=<name>,layer=<layer>,phase=<phase> (also the ones created later)
+    public synchronized void registerMBeans(String name) throws MongoNafException {
+	this.unregisterMBeans();
+	this.jmxName = name;
+	try {
+	    for (MongoNafLayerStats layerStats : this.stats.values()) {
+		this.register(layerStats);
+	    }
+	} catch(JMException e) {
+	    throw new MongoNafException("Error registering the MongoNaf MBeans.", e);
+	}
+    }
+
+    public synchronized void unregisterMBeans() throws MongoNafException {
+	if (this.jmxName == null) {
+	    return;
+	}
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    for (MongoNafLayerStats layerStats : this.stats.values()) {
+		ObjectName objectName = this.getObjectName(layerStats);
+		if (server.isRegistered(objectName)) {
+		    server.unregisterMBean(objectName);
+		}
+	    }
+	} catch(JMException e) {
+	    throw new MongoNafException("Error unregistering the MongoNaf MBeans.", e);
+	} finally {
+	    this.jmxName = null;
+	}
+    }
+
+    private synchronized void register(MongoNafLayerStats layerStats) throws JMException {
+	if (this.jmxName == null) {
+	    return;
+	}
+	MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	ObjectName objectName = this.getObjectName(layerStats);
+	if (!server.isRegistered(objectName)) {
+	    server.registerMBean(layerStats, objectName);
+	}
+    }
+
+    private ObjectName getObjectName(MongoNafLayerStats layerStats) throws JMException {
+	return new ObjectName("ixa.storm:type=MongoNaf,name=" + ObjectName.quote(this.jmxName)
+			      + ",layer=" + layerStats.getLayerName() + ",phase=" + layerStats.getPhase());
+    }
+
+}
@@ -0,0 +1,170 @@
+package ixa.storm;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+
+
+// Collection of a MongoDB database
+class MongoNafMongoCollection implements MongoNafCollection {
+
+    private DBCollection collection;
+
+
+    MongoNafMongoCollection(DBCollection collection) {
+	this.collection = collection;
+    }
+
+    public String getName() {
+	return this.collection.getName();
+    }
+
+    public void save(DBObject obj, WriteConcern concern) {
+	this.collection.save(obj, concern);
+    }
+
+    public void insert(DBObject obj, WriteConcern concern) {
+	this.collection.insert(obj, concern);
+    }
+
+    public void update(DBObject query, DBObject update, boolean upsert, WriteConcern concern) {
+	this.collection.update(query, update, upsert, false, concern);
+    }
+
+    public Map<Integer, String> bulkWrite(List<MongoNafWrite> writes, WriteConcern concern) {
+	Map<Integer, String> errors = new HashMap<Integer, String>();
+	BulkWriteOperation bulk = this.collection.initializeUnorderedBulkOperation();
+	for (MongoNafWrite write : writes) {
+	    BulkWriteRequestBuilder request = bulk.find(write.getQuery());
+	    if (!write.isUpdate()) {
+		request.upsert().replaceOne(write.getObject());
+	    } else if (write.isUpsert()) {
+		request.upsert().updateOne(write.getObject());
+	    } else {
+		request.updateOne(write.getObject());
+	    }
+	}
+	try {
+	    bulk.execute(concern);
+	} catch(BulkWriteException e) {
+	    for (BulkWriteError error : e.getWriteErrors()) {
+		errors.put(error.getIndex(), error.getMessage());
+	    }
+	    // A write concern error (e.g. a journal failure or a wtimeout) isn't tied to any write, so
+	    // none of them can be taken as stored
+	    if (e.getWriteConcernError() != null || e.getWriteErrors().isEmpty()) {
+		String message = (e.getWriteConcernError() != null) ? e.getWriteConcernError().getMessage() : e.getMessage();
+		for (int i = 0; i < writes.size(); i++) {
+		    if (!errors.containsKey(i)) {
+			errors.put(i, message);
+		    }
+		}
+	    }
+	}
+	return errors;
+    }
+
+    public void remove(DBObject query, WriteConcern concern) {
+	this.collection.remove(query, concern);
+    }
+
+    public DBObject findOne(DBObject query, DBObject projection) {
+	return this.collection.findOne(query, projection);
+    }
+
+    public List<DBObject> find(DBObject query, DBObject projection, DBObject sort) {
+	return this.find(query, projection, sort, 0);
+    }
+
+    public List<DBObject> find(DBObject query, DBObject projection, DBObject sort, int limit) {
+	DBCursor cursor = this.collection.find(query, projection);
+	if (sort != null) {
+	    cursor.sort(sort);
+	}
+	if (limit > 0) {
+	    cursor.limit(limit);
+	}
+	List<DBObject> objs = new ArrayList<DBObject>();
+	try {
+	    while (cursor.hasNext()) {
+		objs.add(cursor.next());
+	    }
+	} finally {
+	    cursor.close();
+	}
+	return objs;
+    }
+
+    // The cursor is closed once it has been read to the end
+    public Iterator<DBObject> iterate(DBObject query, DBObject projection, DBObject sort) {
+	DBCursor cursor = this.collection.find(query, projection);
+	if (sort != null) {
+	    cursor.sort(sort);
+	}
+	return cursor;
+    }
+
+    // Aggregation unwinding the array of the matching objects: $match, $unwind, $match, $project
+    public List<DBObject> findElements(DBObject query, String arrayPath, DBObject elementQuery) {
+	DBObject elementMatch = new BasicDBObject();
+	for (String field : elementQuery.keySet()) {
+	    elementMatch.put(arrayPath + "." + field, elementQuery.get(field));
+	}
+	List<DBObject> pipeline = Arrays.<DBObject>asList(new BasicDBObject("$match", query),
+							  new BasicDBObject("$unwind", "$" + arrayPath),
+							  new BasicDBObject("$match", elementMatch),
+							  new BasicDBObject("$project", new BasicDBObject("_id", 0).append("element", "$" + arrayPath)));
+	AggregationOptions options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build();
+	Cursor cursor = this.collection.aggregate(pipeline, options);
+	List<DBObject> elements = new ArrayList<DBObject>();
+	try {
+	    while (cursor.hasNext()) {
+		elements.add((DBObject) cursor.next().get("element"));
+	    }
+	} finally {
+	    cursor.close();
+	}
+	return elements;
+    }
+
+    public List distinct(String field, DBObject query) {
+	return this.collection.distinct(field, query);
+    }
+
+    public List<DBObject> getIndexKeys() {
+	List<DBObject> keys = new ArrayList<DBObject>();
+	for (DBObject indexInfo : this.collection.getIndexInfo()) {
+	    keys.add((DBObject) indexInfo.get("key"));
+	}
+	return keys;
+    }
+
+    public void createIndex(DBObject keys, DBObject options) {
+	this.collection.createIndex(keys, options);
+    }
+
+    public void dropIndex(DBObject keys) {
+	this.collection.dropIndex(keys);
+    }
+
+    public void setExpireAfterSeconds(DBObject keys, long expireAfterSeconds) {
+	DBObject index = new BasicDBObject("keyPattern", keys).append("expireAfterSeconds", expireAfterSeconds);
+	DBObject command = new BasicDBObject("collMod", this.collection.getName()).append("index", index);
+	this.collection.getDB().command(command).throwOnError();
+    }
+
+}
@@ -0,0 +1,29 @@
+package ixa.storm;
+
+import com.mongodb.DB;
+import com.mongodb.WriteConcern;
+
+
+// Storage in a MongoDB database
+class MongoNafMongoStorage implements MongoNafStorage {
+
+    private DB db;
+
+
+    MongoNafMongoStorage(DB db) {
+	this.db = db;
+    }
+
+    public MongoNafCollection getCollection(String name) {
+	return new MongoNafMongoCollection(this.db.getCollection(name));
+    }
+
+    public WriteConcern getDefaultWriteConcern() {
+	return this.db.getWriteConcern();
+    }
+
+    public void drop() {
+	this.db.dropDatabase();
+    }
+
+}
@@ -0,0 +1,19 @@
+package ixa.storm;
+
+import com.mongodb.WriteConcern;
+
+
+// Storage used by MongoNaf: a set of named collections of DBObjects supporting the queries and
+// updates MongoNaf runs. MongoNafMongoStorage stores them in a MongoDB database and
+// MongoNafMemoryStorage keeps them in memory.
+public interface MongoNafStorage {
+
+    MongoNafCollection getCollection(String name);
+
+    // Write concern used when none is set for a layer
+    WriteConcern getDefaultWriteConcern();
+
+    // Removes all the collections
+    void drop();
+
+}
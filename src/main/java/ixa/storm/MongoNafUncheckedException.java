@@ -0,0 +1,14 @@
+package ixa.storm;
+
+// MongoNafException thrown where checked exceptions can't be, e.g. by the java.util.Iterator
+// methods of MongoNafCorpusIterator
+public class MongoNafUncheckedException extends RuntimeException {
+    public MongoNafUncheckedException(MongoNafException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public MongoNafException getCause() {
+        return (MongoNafException) super.getCause();
+    }
+}
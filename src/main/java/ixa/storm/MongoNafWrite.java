@@ -0,0 +1,263 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import java.util.ArrayList;
+import java.util.List;
+
+
+// A write of a mapped object: either the replacement of the object with the same _id,
+// or an update ($set / $setOnInsert / $push) of it. Both are upserts, acknowledged as set by concern.
+// Conditional updates (updateIf) only update the object if it matches their query.
+public class MongoNafWrite {
+
+    final MongoNafCollection collection;
+    final String docId;
+    final Object id;
+    final DBObject query;
+    final DBObject obj;
+    final boolean update;
+    final boolean upsert;
+    final WriteConcern concern;
+
+
+    private MongoNafWrite(MongoNafCollection collection, String docId, DBObject query, DBObject obj, boolean update, boolean upsert, WriteConcern concern) {
+	this.collection = collection;
+	this.docId = docId;
+	this.id = query.get("_id");
+	this.query = query;
+	this.obj = obj;
+	this.update = update;
+	this.upsert = upsert;
+	this.concern = concern;
+    }
+
+    static MongoNafWrite replace(MongoNafCollection collection, String docId, DBObject obj, WriteConcern concern) {
+	return new MongoNafWrite(collection, docId, new BasicDBObject("_id", obj.get("_id")), obj, false, true, concern);
+    }
+
+    static MongoNafWrite update(MongoNafCollection collection, String docId, Object id, DBObject update, WriteConcern concern) {
+	return new MongoNafWrite(collection, docId, new BasicDBObject("_id", id), update, true, true, concern);
+    }
+
+    // Update of the object matching query (which includes its _id), if any
+    static MongoNafWrite updateIf(MongoNafCollection collection, String docId, DBObject query, DBObject update, WriteConcern concern) {
+	return new MongoNafWrite(collection, docId, query, update, true, false, concern);
+    }
+
+    // _id of the written object
+    public Object getId() {
+	return this.id;
+    }
+
+    // Query selecting the written object: its _id, plus the conditions of conditional updates
+    public DBObject getQuery() {
+	return this.query;
+    }
+
+    // The replacement object, or the update operators
+    public DBObject getObject() {
+	return this.obj;
+    }
+
+    public boolean isUpdate() {
+	return this.update;
+    }
+
+    public boolean isUpsert() {
+	return this.upsert;
+    }
+
+    void execute() {
+	if (this.update) {
+	    this.collection.update(this.query, this.obj, this.upsert, this.concern);
+	} else {
+	    this.collection.save(this.obj, this.concern);
+	}
+    }
+
+    // Key identifying the written object. Conditional updates are only coalesced with the same condition.
+    String key() {
+	return this.collection.getName() + "\u0000" + (this.upsert ? this.id : this.query);
+    }
+
+    // Combines this write with a later write of the same object into a single write with exactly the
+    // same effect as applying both in order, or returns null if they can't be merged that way (they
+    // have to be applied one after the other). The write concern of a merged update is the first one's.
+    //   - A replacement overrides any previous write.
+    //   - $setOnInsert has no effect after a previous upsert (the object exists): the first one wins.
+    //   - Values pushed to the same array ($push/$each) are concatenated.
+    //   - Conditional updates, operators other than $set, $setOnInsert and $push and updates of
+    //     overlapping paths (e.g. a $set of an array item and a $push to the array) are not merged.
+    MongoNafWrite coalesce(MongoNafWrite later) {
+	if (!this.upsert || !later.upsert) {
+	    // Whether a conditional update applies depends on the writes before it
+	    return null;
+	}
+	if (!later.update) {
+	    return later;
+	}
+	DBObject merged = this.update ? mergeUpdates(this.obj, later.obj) : applyUpdate(this.obj, later.obj);
+	if (merged == null) {
+	    return null;
+	}
+	return new MongoNafWrite(this.collection, this.docId, this.query, merged, this.update, this.upsert, this.concern);
+    }
+
+    // Update with the effect of two updates of an existing object, or null
+    private static DBObject mergeUpdates(DBObject first, DBObject later) {
+	BasicDBObject merged = new BasicDBObject();
+	for (String operator : first.keySet()) {
+	    merged.put(operator, new BasicDBObject(((DBObject) first.get(operator)).toMap()));
+	}
+	for (String operator : later.keySet()) {
+	    if (operator.equals("$setOnInsert")) {
+		continue;
+	    }
+	    if (!operator.equals("$set") && !operator.equals("$push")) {
+		return null;
+	    }
+	    DBObject fields = (DBObject) later.get(operator);
+	    for (String path : fields.keySet()) {
+		for (String mergedOperator : merged.keySet()) {
+		    for (String mergedPath : ((DBObject) merged.get(mergedOperator)).keySet()) {
+			boolean samePath = mergedOperator.equals(operator) && mergedPath.equals(path);
+			if (!samePath && overlaps(mergedPath, path)) {
+			    return null;
+			}
+		    }
+		}
+		BasicDBObject mergedFields = (BasicDBObject) merged.get(operator);
+		if (mergedFields == null) {
+		    mergedFields = new BasicDBObject();
+		    merged.put(operator, mergedFields);
+		}
+		Object value = fields.get(path);
+		if (operator.equals("$push")) {
+		    List<Object> values = getPushedValues(value);
+		    if (values == null) {
+			return null;
+		    }
+		    if (mergedFields.containsField(path)) {
+			List<Object> previous = getPushedValues(mergedFields.get(path));
+			if (previous == null) {
+			    return null;
+			}
+			values.addAll(0, previous);
+		    }
+		    value = new BasicDBObject("$each", values);
+		}
+		mergedFields.put(path, value);
+	    }
+	}
+	return merged;
+    }
+
+    // Replacement object with an update applied, or null
+    private static DBObject applyUpdate(DBObject replacement, DBObject update) {
+	Object obj = replacement;
+	for (String operator : update.keySet()) {
+	    if (operator.equals("$setOnInsert")) {
+		// The object exists after the replacement
+		continue;
+	    }
+	    if (!operator.equals("$set") && !operator.equals("$push")) {
+		return null;
+	    }
+	    boolean push = operator.equals("$push");
+	    DBObject fields = (DBObject) update.get(operator);
+	    for (String path : fields.keySet()) {
+		Object value = fields.get(path);
+		if (push) {
+		    value = getPushedValues(value);
+		    if (value == null) {
+			return null;
+		    }
+		}
+		obj = applyPath(obj, path, value, push);
+		if (obj == null) {
+		    return null;
+		}
+	    }
+	}
+	return (DBObject) obj;
+    }
+
+    // Copy of an object (or array) with a value set, or values pushed to the array, at a dotted path
+    // (e.g. layers.terms or annotations.3). Objects and arrays on the path are copied and the rest is
+    // shared. Returns null if the database wouldn't apply it the same way (or would fail): the path
+    // goes through a value which isn't an object, an index out of the array, or pushes to a non array.
+    private static Object applyPath(Object container, String path, Object value, boolean push) {
+	int dot = path.indexOf('.');
+	String field = (dot < 0) ? path : path.substring(0, dot);
+	String rest = (dot < 0) ? null : path.substring(dot + 1);
+	if (container instanceof List) {
+	    List<Object> list = new ArrayList<Object>((List<?>) container);
+	    int index;
+	    try {
+		index = Integer.parseInt(field);
+	    } catch (NumberFormatException e) {
+		return null;
+	    }
+	    if (index < 0 || index >= list.size()) {
+		return null;
+	    }
+	    Object updated = (rest == null) ? applyValue(list.get(index), value, push) : applyPath(list.get(index), rest, value, push);
+	    if (updated == null) {
+		return null;
+	    }
+	    list.set(index, updated);
+	    return list;
+	}
+	if (container instanceof DBObject) {
+	    BasicDBObject obj = new BasicDBObject(((DBObject) container).toMap());
+	    Object child = obj.get(field);
+	    Object updated;
+	    if (rest == null) {
+		updated = applyValue(child, value, push);
+	    } else {
+		// Missing objects on the path are created
+		updated = applyPath((child != null) ? child : new BasicDBObject(), rest, value, push);
+	    }
+	    if (updated == null) {
+		return null;
+	    }
+	    obj.put(field, updated);
+	    return obj;
+	}
+	return null;
+    }
+
+    private static Object applyValue(Object current, Object value, boolean push) {
+	if (!push) {
+	    return value;
+	}
+	if (current != null && !(current instanceof List)) {
+	    return null;
+	}
+	List<Object> list = (current != null) ? new ArrayList<Object>((List<?>) current) : new ArrayList<Object>();
+	list.addAll((List<?>) value);
+	return list;
+    }
+
+    // Values of a $push: the list of {$each: [...]} or the single value, or null for other modifiers
+    private static List<Object> getPushedValues(Object value) {
+	List<Object> values = new ArrayList<Object>();
+	if (value instanceof DBObject && !(value instanceof List) && ((DBObject) value).containsField("$each")) {
+	    if (((DBObject) value).keySet().size() > 1) {
+		return null;
+	    }
+	    values.addAll((List<?>) ((DBObject) value).get("$each"));
+	} else {
+	    values.add(value);
+	}
+	return values;
+    }
+
+    // Whether two dotted paths are the same or one contains the other
+    private static boolean overlaps(String path, String other) {
+	return path.equals(other) || path.startsWith(other + ".") || other.startsWith(path + ".");
+    }
+
+}
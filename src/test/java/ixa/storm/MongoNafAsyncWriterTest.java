@@ -0,0 +1,113 @@
+package ixa.storm;
+
+import ixa.kaflib.*;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MongoNafAsyncWriterTest {
+
+    private MongoNaf mongoNaf;
+
+
+    @Before
+    public void setUp() throws Exception {
+	this.mongoNaf = MongoNaf.newInstance(new MongoNafMemoryStorage(), false);
+	this.mongoNaf.enableAsyncWrites(4, 2, 8, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+	this.mongoNaf.disableAsyncWrites();
+    }
+
+    @Test
+    public void queuedDocumentsAreStoredOnClose() throws Exception {
+	KAFDocument naf = NafDocuments.create(1);
+	List<Future<Void>> futures = new ArrayList<Future<Void>>();
+	for (int i = 0; i < 20; i++) {
+	    futures.add(this.mongoNaf.insertNafDocumentAsync("doc" + i, naf, null));
+	}
+	this.mongoNaf.disableAsyncWrites();
+	for (int i = 0; i < 20; i++) {
+	    assertTrue(futures.get(i).isDone());
+	    futures.get(i).get();
+	    assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(this.mongoNaf.getNaf("doc" + i)));
+	}
+    }
+
+    @Test
+    public void writesOfTheSameDocumentAreAppliedInOrder() throws Exception {
+	KAFDocument naf = NafDocuments.create(1);
+	this.mongoNaf.insertNafDocumentAsync("doc1", naf, null);
+	naf.getTerms().get(0).setLemma("first");
+	this.mongoNaf.insertLayerAsync("doc1", naf, "terms", null, null, null);
+	naf.getTerms().get(0).setLemma("last");
+	Future<Void> future = this.mongoNaf.insertLayerAsync("doc1", naf, "terms", null, null, null);
+	future.get(10, TimeUnit.SECONDS);
+	assertEquals("last", this.mongoNaf.getNaf("doc1", Arrays.asList("terms")).getTerms().get(0).getLemma());
+    }
+
+    @Test
+    public void callbacksAreNotifiedAndTheirErrorsDontStopTheWriter() throws Exception {
+	final List<String> stored = new ArrayList<String>();
+	MongoNafAsyncWriter.Callback callback = new MongoNafAsyncWriter.Callback() {
+	    public void onSuccess(String docId) {
+		synchronized (stored) {
+		    stored.add(docId);
+		}
+		throw new RuntimeException("Callback error");
+	    }
+	    public void onFailure(String docId, MongoNafException e) {
+	    }
+	};
+	this.mongoNaf.insertNafDocumentAsync("doc1", NafDocuments.create(1), callback).get(10, TimeUnit.SECONDS);
+	this.mongoNaf.insertNafDocumentAsync("doc1", NafDocuments.create(1), callback);
+	// Waits for the writers, so that the callbacks have run
+	this.mongoNaf.disableAsyncWrites();
+	assertEquals(Arrays.asList("doc1", "doc1"), stored);
+    }
+
+    @Test(expected = MongoNafException.class)
+    public void submittingAfterCloseFails() throws Exception {
+	this.mongoNaf.disableAsyncWrites();
+	this.mongoNaf.insertNafDocumentAsync("doc1", NafDocuments.create(1), null);
+    }
+
+    @Test
+    public void documentsSubmittedWhileClosingAreCompleted() throws Exception {
+	final KAFDocument naf = NafDocuments.create(1);
+	final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+	Thread submitter = new Thread(new Runnable() {
+	    public void run() {
+		try {
+		    for (int i = 0; i < 200; i++) {
+			Future<Void> future = mongoNaf.insertNafDocumentAsync("doc" + i, naf, null);
+			synchronized (futures) {
+			    futures.add(future);
+			}
+		    }
+		} catch (MongoNafException e) {
+		    // Closed
+		}
+	    }
+	});
+	submitter.start();
+	this.mongoNaf.disableAsyncWrites();
+	submitter.join();
+	synchronized (futures) {
+	    for (Future<Void> future : futures) {
+		assertTrue(future.isDone());
+	    }
+	}
+    }
+
+}
@@ -0,0 +1,83 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MongoNafCacheTest {
+
+    private static List<DBObject> objs(String id) {
+	List<DBObject> objs = new ArrayList<DBObject>();
+	objs.add(new BasicDBObject("_id", id));
+	return objs;
+    }
+
+    @Test
+    public void putAndGet() {
+	MongoNafCache cache = new MongoNafCache(0, 0);
+	String key = MongoNafCache.key("doc1", "terms", "D", null, null);
+	assertNull(cache.get(key));
+	cache.put("doc1", key, objs("doc1"), cache.getGeneration("doc1"));
+	assertEquals(objs("doc1"), cache.get(key));
+	assertEquals(1, cache.getHits());
+	assertEquals(1, cache.getMisses());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void cachedListsAreUnmodifiable() {
+	MongoNafCache cache = new MongoNafCache(0, 0);
+	String key = MongoNafCache.key("doc1", "terms", "D", null, null);
+	cache.put("doc1", key, objs("doc1"), cache.getGeneration("doc1"));
+	cache.get(key).clear();
+    }
+
+    @Test
+    public void invalidateDropsTheLayersOfTheDocument() {
+	MongoNafCache cache = new MongoNafCache(0, 0);
+	String terms = MongoNafCache.key("doc1", "terms", "D", null, null);
+	String text = MongoNafCache.key("doc1", "text", "D", null, null);
+	String other = MongoNafCache.key("doc2", "terms", "D", null, null);
+	cache.put("doc1", terms, objs("doc1"), cache.getGeneration("doc1"));
+	cache.put("doc1", text, objs("doc1"), cache.getGeneration("doc1"));
+	cache.put("doc2", other, objs("doc2"), cache.getGeneration("doc2"));
+	cache.invalidate("doc1");
+	assertNull(cache.get(terms));
+	assertNull(cache.get(text));
+	assertNotNull(cache.get(other));
+	assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    public void layersReadBeforeAnInvalidationAreNotCached() {
+	MongoNafCache cache = new MongoNafCache(0, 0);
+	String key = MongoNafCache.key("doc1", "terms", "D", null, null);
+	long generation = cache.getGeneration("doc1");
+	// A write of the document completes while the layer is being read
+	cache.invalidate("doc1");
+	cache.put("doc1", key, objs("doc1"), generation);
+	assertNull(cache.get(key));
+	cache.put("doc1", key, objs("doc1"), cache.getGeneration("doc1"));
+	assertNotNull(cache.get(key));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntries() {
+	MongoNafCache cache = new MongoNafCache(2, 0);
+	for (String docId : Arrays.asList("doc1", "doc2")) {
+	    cache.put(docId, MongoNafCache.key(docId, "terms", "D", null, null), objs(docId), cache.getGeneration(docId));
+	}
+	cache.get(MongoNafCache.key("doc1", "terms", "D", null, null));
+	cache.put("doc3", MongoNafCache.key("doc3", "terms", "D", null, null), objs("doc3"), cache.getGeneration("doc3"));
+	assertNotNull(cache.get(MongoNafCache.key("doc1", "terms", "D", null, null)));
+	assertNull(cache.get(MongoNafCache.key("doc2", "terms", "D", null, null)));
+	assertEquals(1, cache.getEvictions());
+	assertEquals(2, cache.getSize());
+    }
+
+}
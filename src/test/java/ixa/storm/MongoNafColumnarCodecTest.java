@@ -0,0 +1,130 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+// Encoded columns of the text and terms layers, and their round trips
+public class MongoNafColumnarCodecTest {
+
+    @Test
+    public void wfsRoundTrip() {
+	List<DBObject> wfObjs = Arrays.asList(wf("w1", "The", 1, 1, 0, 3), wf("w2", "house", 1, 1, 4, 5), wf("w3", ".", 2, 2, 9, 1));
+	DBObject columns = MongoNafColumnarCodec.encode("text", wfObjs);
+	// Ids derived from the positions are not stored
+	assertFalse(columns.containsField("ids"));
+	assertEquals(wfObjs, MongoNafColumnarCodec.decode("text", columns));
+    }
+
+    @Test
+    public void sentencesAndParagraphsAreRunLengthEncoded() {
+	List<DBObject> wfObjs = new ArrayList<DBObject>();
+	int[] sents = {1, 1, 1, 2, 2};
+	for (int i = 0; i < sents.length; i++) {
+	    wfObjs.add(wf("w" + (i + 1), "form", sents[i], 1, i, 4));
+	}
+	DBObject columns = MongoNafColumnarCodec.encode("text", wfObjs);
+	// (1, 3) and (2, 2) as zigzag varints
+	assertArrayEquals(new byte[] {2, 6, 4, 4}, (byte[]) columns.get("sents"));
+	assertArrayEquals(new byte[] {2, 10}, (byte[]) columns.get("paras"));
+	assertEquals(wfObjs, MongoNafColumnarCodec.decode("text", columns));
+    }
+
+    @Test
+    public void offsetsAreDeltaEncodedWithZigzagVarints() {
+	List<DBObject> wfObjs = Arrays.asList(wf("w1", "a", 1, 1, 0, 200), wf("w2", "b", 1, 1, 5, 1), wf("w3", "c", 1, 1, 3, 1));
+	DBObject columns = MongoNafColumnarCodec.encode("text", wfObjs);
+	// Deltas 0, 5 and -2
+	assertArrayEquals(new byte[] {0, 10, 3}, (byte[]) columns.get("offsets"));
+	// 200 takes two bytes: 7 bits with the continuation bit, then the rest
+	assertArrayEquals(new byte[] {(byte) 0x90, 3, 2, 2}, (byte[]) columns.get("lengths"));
+	assertEquals(wfObjs, MongoNafColumnarCodec.decode("text", columns));
+    }
+
+    @Test
+    public void extremeValuesRoundTrip() {
+	List<DBObject> wfObjs = Arrays.asList(wf("w1", "a", 1, 1, Integer.MAX_VALUE, Integer.MAX_VALUE),
+					      wf("w2", "b", Integer.MAX_VALUE, 1, Integer.MIN_VALUE, 0),
+					      wf("w3", "c", -1, 1, 0, -1));
+	assertEquals(wfObjs, MongoNafColumnarCodec.decode("text", MongoNafColumnarCodec.encode("text", wfObjs)));
+    }
+
+    @Test
+    public void irregularIdsAreStored() {
+	List<DBObject> wfObjs = Arrays.asList(wf("w1", "a", 1, 1, 0, 1), wf("w3", "b", 1, 1, 2, 1));
+	DBObject columns = MongoNafColumnarCodec.encode("text", wfObjs);
+	assertEquals(Arrays.asList("w1", "w3"), columns.get("ids"));
+	assertEquals(wfObjs, MongoNafColumnarCodec.decode("text", columns));
+    }
+
+    @Test
+    public void wfsWhichDontFitAreNotEncoded() {
+	DBObject page = wf("w2", "b", 1, 1, 2, 1);
+	page.put("page", 1);
+	assertNull(MongoNafColumnarCodec.encode("text", Arrays.asList(wf("w1", "a", 1, 1, 0, 1), page)));
+	DBObject withoutOffset = wf("w2", "b", 1, 1, 2, 1);
+	withoutOffset.removeField("offset");
+	assertNull(MongoNafColumnarCodec.encode("text", Arrays.asList(wf("w1", "a", 1, 1, 0, 1), withoutOffset)));
+	assertNull(MongoNafColumnarCodec.encode("entities", new ArrayList<DBObject>()));
+    }
+
+    @Test
+    public void termsRoundTrip() {
+	DBObject extra = term("t2", "red", "w2", "w3");
+	extra.put("external_references", Arrays.asList(new BasicDBObject("resource", "WordNet").append("reference", "red.a.01")));
+	List<DBObject> termObjs = Arrays.asList(term("t1", "house", "w1"), extra, term("t3", null, "w5"));
+	DBObject columns = MongoNafColumnarCodec.encode("terms", termObjs);
+	assertFalse(columns.containsField("ids"));
+	assertFalse(columns.containsField("anchors"));
+	assertFalse(columns.containsField("pos"));
+	// Anchor lengths 1, 2 and 1, and WFs 1, 2, 3 and 5 as deltas
+	assertArrayEquals(new byte[] {2, 4, 2}, (byte[]) columns.get("anchorLengths"));
+	assertArrayEquals(new byte[] {2, 2, 2, 4}, (byte[]) columns.get("anchorWfs"));
+	assertEquals(termObjs, MongoNafColumnarCodec.decode("terms", columns));
+    }
+
+    @Test
+    public void termsWithIrregularAnchorsKeepThem() {
+	List<DBObject> termObjs = Arrays.asList(term("t1", "a", "w1"), term("t7", "b", "w02"), term("t8", "c", "wx"));
+	DBObject columns = MongoNafColumnarCodec.encode("terms", termObjs);
+	assertEquals(Arrays.asList("t1", "t7", "t8"), columns.get("ids"));
+	assertTrue(columns.containsField("anchors"));
+	assertEquals(termObjs, MongoNafColumnarCodec.decode("terms", columns));
+    }
+
+    @Test
+    public void columnPaths() {
+	assertEquals("lemma", MongoNafColumnarCodec.getColumnPath("terms", "lemma"));
+	assertEquals("extras.external_references.reference", MongoNafColumnarCodec.getColumnPath("terms", "external_references.reference"));
+	assertNull(MongoNafColumnarCodec.getColumnPath("terms", "id"));
+	assertNull(MongoNafColumnarCodec.getColumnPath("text", "form"));
+    }
+
+    @Test
+    public void parseNumber() {
+	assertEquals(Integer.valueOf(12), MongoNafColumnarCodec.parseNumber("w12", "w"));
+	assertNull(MongoNafColumnarCodec.parseNumber("w012", "w"));
+	assertNull(MongoNafColumnarCodec.parseNumber("w", "w"));
+	assertNull(MongoNafColumnarCodec.parseNumber("t12", "w"));
+    }
+
+    private static DBObject wf(String id, String form, int sent, int para, int offset, int length) {
+	return new BasicDBObject("id", id).append("form", form).append("sent", sent).append("para", para)
+	    .append("offset", offset).append("length", length);
+    }
+
+    private static DBObject term(String id, String lemma, String... anchor) {
+	BasicDBObject termObj = new BasicDBObject("id", id).append("type", "open");
+	if (lemma != null) {
+	    termObj.append("lemma", lemma);
+	}
+	return termObj.append("anchor", Arrays.asList(anchor));
+    }
+
+}
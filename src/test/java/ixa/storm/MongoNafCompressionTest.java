@@ -0,0 +1,52 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MongoNafCompressionTest {
+
+    @Test
+    public void textRoundTrip() {
+	StringBuilder text = new StringBuilder();
+	for (int i = 0; i < 1000; i++) {
+	    text.append("Kaixo, mundua! \u00f1 \uD83D\uDE00 ");
+	}
+	byte[] compressed = MongoNafCompression.compressText(text.toString());
+	assertTrue(compressed.length < text.length() / 10);
+	assertEquals(text.toString(), MongoNafCompression.decompressText(compressed));
+	// Empty texts are compressed too with a threshold of 0
+	assertEquals("", MongoNafCompression.decompressText(MongoNafCompression.compressText("")));
+    }
+
+    @Test
+    public void uncompressedTextIsReturnedAsItIs() {
+	assertEquals("plain", MongoNafCompression.decompressText("plain"));
+	assertNull(MongoNafCompression.decompressText(null));
+    }
+
+    @Test
+    public void objectRoundTrip() {
+	DBObject obj = new BasicDBObject("annotations", Arrays.asList(new BasicDBObject("id", "t1").append("lemma", "house"),
+								      new BasicDBObject("id", "t2").append("lemma", "red")));
+	DBObject decompressed = MongoNafCompression.decompressObject(MongoNafCompression.compressObject(BSON.encode(obj)));
+	assertEquals(obj.toString(), decompressed.toString());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void truncatedDataFails() {
+	byte[] compressed = MongoNafCompression.compressText("some text which is long enough to be truncated");
+	MongoNafCompression.decompressText(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void invalidDataFails() {
+	MongoNafCompression.decompressText(new byte[] {1, 2, 3, 4, 5});
+    }
+
+}
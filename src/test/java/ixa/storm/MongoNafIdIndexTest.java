@@ -0,0 +1,57 @@
+package ixa.storm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+public class MongoNafIdIndexTest {
+
+    @Test
+    public void parseIndexOfNumberedIds() {
+	assertEquals(1, MongoNafIdIndex.parseIndex("t1", "t"));
+	assertEquals(25, MongoNafIdIndex.parseIndex("t25", "t"));
+	assertEquals(3, MongoNafIdIndex.parseIndex("pr3", "pr"));
+	assertEquals(999999999, MongoNafIdIndex.parseIndex("w999999999", "w"));
+    }
+
+    @Test
+    public void parseIndexOfOtherIds() {
+	// Only the prefix, another prefix, other characters
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t", "t"));
+	assertEquals(-1, MongoNafIdIndex.parseIndex("w1", "t"));
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t1a", "t"));
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t_1", "t"));
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t-1", "t"));
+	// Leading zeros
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t0", "t"));
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t01", "t"));
+	// Numbers which could overflow an int
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t1000000000", "t"));
+	assertEquals(-1, MongoNafIdIndex.parseIndex("t99999999999", "t"));
+    }
+
+    @Test
+    public void getReturnsTheAnnotationOfEveryKindOfId() {
+	MongoNafIdIndex<String> index = new MongoNafIdIndex<String>("t");
+	index.ensureCapacity(2);
+	index.put("t1", "first");
+	index.put("t2", "second");
+	index.put("t01", "leading zero");
+	index.put("term_a", "irregular");
+	index.put("t500000000", "far");
+	// Beyond the capacity, but close to the annotations indexed so far
+	index.put("t40", "grown");
+	assertEquals("first", index.get("t1"));
+	assertEquals("second", index.get("t2"));
+	assertEquals("leading zero", index.get("t01"));
+	assertEquals("irregular", index.get("term_a"));
+	assertEquals("far", index.get("t500000000"));
+	assertEquals("grown", index.get("t40"));
+	assertNull(index.get("t3"));
+	assertNull(index.get("t600000000"));
+	assertNull(index.get("missing"));
+	assertNull(index.get(null));
+    }
+
+}
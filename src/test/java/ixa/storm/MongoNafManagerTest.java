@@ -0,0 +1,231 @@
+package ixa.storm;
+
+import ixa.kaflib.KAFDocument;
+import com.mongodb.WriteConcern;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+
+// Tar entries and checkpoints of the bulk loader
+public class MongoNafManagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private MongoNaf mongoNaf;
+
+
+    @Before
+    public void setUp() {
+	this.mongoNaf = MongoNaf.newInstance(new MongoNafMemoryStorage(), false);
+    }
+
+    @Test
+    public void tarEntriesWithUstarPrefixesGnuLongNamesAndPaxPaths() throws Exception {
+	String longName = "corpus/" + repeat("long", 40) + ".naf";
+	ByteArrayOutputStream tar = new ByteArrayOutputStream();
+	entry(tar, "a.naf", "corpus", '0', "a");
+	entry(tar, "corpus/", "", '5', "");
+	entry(tar, "README", "", '0', "not a NAF file");
+	// GNU long name, followed by the entry with its name truncated
+	entry(tar, "././@LongLink", "", 'L', longName + "\0");
+	entry(tar, longName.substring(0, 100), "", '0', "long");
+	// Pax header with other records before the path
+	entry(tar, "PaxHeaders/c.naf", "", 'x', paxRecord("mtime", "1") + paxRecord("path", "corpus/\u00e7.naf.gz"));
+	entry(tar, "c.naf.gz", "", '0', "c");
+	entry(tar, "./d.kaf", "", '0', "d");
+	tar.write(new byte[1024]);
+	MongoNafManager.TarSource source = new MongoNafManager.TarSource(this.write("corpus.tar", tar.toByteArray(), false));
+	List<String> entries = new ArrayList<String>();
+	while (source.next()) {
+	    entries.add(source.getDocId() + "=" + new String(source.getContent(), "UTF-8"));
+	}
+	source.close();
+	assertEquals(Arrays.asList("corpus/a=a", longName.substring(0, longName.length() - 4) + "=long", "corpus/\u00e7=c", "d=d"), entries);
+    }
+
+    @Test
+    public void entriesCanBeSkippedWithoutReadingThem() throws Exception {
+	ByteArrayOutputStream tar = new ByteArrayOutputStream();
+	entry(tar, "a.naf", "", '0', repeat("a", 600));
+	entry(tar, "b.naf", "", '0', "b");
+	tar.write(new byte[1024]);
+	MongoNafManager.TarSource source = new MongoNafManager.TarSource(this.write("corpus.tgz", tar.toByteArray(), true));
+	assertTrue(source.skip());
+	assertTrue(source.next());
+	assertEquals("b", source.getDocId());
+	assertEquals("b", new String(source.getContent(), "UTF-8"));
+	assertFalse(source.next());
+	source.close();
+    }
+
+    @Test
+    public void tarFilesWithoutEndBlocksEndAfterTheLastEntry() throws Exception {
+	ByteArrayOutputStream tar = new ByteArrayOutputStream();
+	entry(tar, "a.naf", "", '0', "a");
+	MongoNafManager.TarSource source = new MongoNafManager.TarSource(this.write("corpus.tar", tar.toByteArray(), false));
+	assertTrue(source.next());
+	assertEquals("a", new String(source.getContent(), "UTF-8"));
+	assertFalse(source.next());
+	source.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedEntriesFail() throws Exception {
+	ByteArrayOutputStream tar = new ByteArrayOutputStream();
+	tar.write(header("a.naf", "", 1000, '0'));
+	tar.write(new byte[100]);
+	MongoNafManager.TarSource source = new MongoNafManager.TarSource(this.write("corpus.tar", tar.toByteArray(), false));
+	assertTrue(source.next());
+	source.getContent();
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedHeadersFail() throws Exception {
+	ByteArrayOutputStream tar = new ByteArrayOutputStream();
+	entry(tar, "a.naf", "", '0', "a");
+	tar.write(header("b.naf", "", 1, '0'), 0, 100);
+	MongoNafManager.TarSource source = new MongoNafManager.TarSource(this.write("corpus.tar", tar.toByteArray(), false));
+	assertTrue(source.next());
+	source.next();
+    }
+
+    @Test
+    public void theCheckpointCountsTheStoredAndFailedFiles() throws Exception {
+	File dir = this.folder.newFolder("corpus");
+	this.writeNaf(dir, "a.naf");
+	this.writeNaf(dir, "b.naf");
+	this.write("corpus/c.naf", "not NAF".getBytes("UTF-8"), false);
+	this.writeNaf(dir, "d.naf");
+	this.writeNaf(dir, "e.naf");
+	File checkpoint = new File(this.folder.getRoot(), "corpus.ckpt");
+	new MongoNafManager(this.mongoNaf, 2, 2, checkpoint).load(dir);
+	assertEquals("5", readCheckpoint(checkpoint));
+	assertFalse(new File(checkpoint.getPath() + ".tmp").exists());
+	assertEquals(Arrays.asList("a", "b", "d", "e"), this.getStoredDocIds());
+    }
+
+    @Test
+    public void loadingAgainSkipsTheFilesOfTheCheckpoint() throws Exception {
+	File dir = this.folder.newFolder("corpus");
+	for (String name : Arrays.asList("a.naf", "b.naf", "c.naf")) {
+	    this.writeNaf(dir, name);
+	}
+	File checkpoint = new File(this.folder.getRoot(), "corpus.ckpt");
+	this.write("corpus.ckpt", "2\n".getBytes("UTF-8"), false);
+	new MongoNafManager(this.mongoNaf, 1, 2, checkpoint).load(dir);
+	assertEquals(Arrays.asList("c"), this.getStoredDocIds());
+	assertEquals("3", readCheckpoint(checkpoint));
+    }
+
+    @Test
+    public void filesOfBatchesWhichCantBeStoredAreCountedOnce() throws Exception {
+	File dir = this.folder.newFolder("corpus");
+	this.writeNaf(dir, "a.naf");
+	this.write("corpus/b.naf", "not NAF".getBytes("UTF-8"), false);
+	MongoNafStorage storage = new MongoNafMemoryStorage() {
+	    public MongoNafCollection getCollection(String name) {
+		if (!name.equals("header")) {
+		    return super.getCollection(name);
+		}
+		return new MongoNafMemoryCollection(name) {
+		    public Map<Integer, String> bulkWrite(List<MongoNafWrite> writes, WriteConcern concern) {
+			throw new IllegalStateException("Unavailable");
+		    }
+		};
+	    }
+	};
+	File checkpoint = new File(this.folder.getRoot(), "corpus.ckpt");
+	MongoNafManager manager = new MongoNafManager(MongoNaf.newInstance(storage, false), 1, 2, checkpoint);
+	manager.load(dir);
+	assertEquals(0, manager.getStored());
+	assertEquals(2, manager.getFailed());
+	// Not done, so a new load stores it again
+	assertFalse(checkpoint.exists());
+    }
+
+    private List<String> getStoredDocIds() throws Exception {
+	return new ArrayList<String>(this.mongoNaf.getNafs(Arrays.asList("a", "b", "c", "d", "e"), Arrays.asList("text")).keySet());
+    }
+
+    private void writeNaf(File dir, String name) throws IOException {
+	KAFDocument naf = NafDocuments.create(1);
+	this.write(dir.getName() + "/" + name, naf.toString().getBytes("UTF-8"), false);
+    }
+
+    private File write(String path, byte[] content, boolean gzip) throws IOException {
+	File file = new File(this.folder.getRoot(), path);
+	OutputStream out = new FileOutputStream(file);
+	if (gzip) {
+	    out = new GZIPOutputStream(out);
+	}
+	try {
+	    out.write(content);
+	} finally {
+	    out.close();
+	}
+	return file;
+    }
+
+    private static String readCheckpoint(File checkpoint) throws IOException {
+	return new String(Files.readAllBytes(checkpoint.toPath()), "UTF-8").trim();
+    }
+
+    private static void entry(ByteArrayOutputStream tar, String name, String prefix, char type, String content) throws IOException {
+	byte[] data = content.getBytes("UTF-8");
+	tar.write(header(name, prefix, data.length, type));
+	tar.write(data);
+	tar.write(new byte[(512 - data.length % 512) % 512]);
+    }
+
+    // ustar header (the checksum isn't checked by the loader)
+    private static byte[] header(String name, String prefix, long size, char type) throws IOException {
+	byte[] header = new byte[512];
+	put(header, 0, name.getBytes("UTF-8"));
+	put(header, 124, String.format("%011o", size).getBytes("UTF-8"));
+	header[156] = (byte) type;
+	put(header, 257, "ustar\0".getBytes("UTF-8"));
+	put(header, 263, "00".getBytes("UTF-8"));
+	put(header, 345, prefix.getBytes("UTF-8"));
+	return header;
+    }
+
+    private static void put(byte[] header, int offset, byte[] value) {
+	System.arraycopy(value, 0, header, offset, value.length);
+    }
+
+    // "<length> <key>=<value>\n", the length counting itself
+    private static String paxRecord(String key, String value) throws IOException {
+	String record = " " + key + "=" + value + "\n";
+	int bytes = record.getBytes("UTF-8").length;
+	int length = bytes + String.valueOf(bytes).length();
+	if (String.valueOf(length).length() > String.valueOf(bytes).length()) {
+	    length++;
+	}
+	return length + record;
+    }
+
+    private static String repeat(String s, int times) {
+	StringBuilder repeated = new StringBuilder();
+	for (int i = 0; i < times; i++) {
+	    repeated.append(s);
+	}
+	return repeated.toString();
+    }
+
+}
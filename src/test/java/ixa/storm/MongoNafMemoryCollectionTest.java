@@ -0,0 +1,164 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.WriteConcern;
+import java.util.Arrays;
+import java.util.List;
+import java.util.ArrayList;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+// Queries, updates, projections and sorts of the in-memory collection, compared with what MongoDB returns
+public class MongoNafMemoryCollectionTest {
+
+    private MongoNafMemoryCollection collection;
+
+
+    @Before
+    public void setUp() {
+	this.collection = new MongoNafMemoryCollection("terms");
+	this.collection.save(layer("d1", null, term("t1", "house"), term("t2", "red")), null);
+	this.collection.save(layer("d1", 1, term("t3", "car")), null);
+	this.collection.save(layer("d1", 2, term("t4", "house")), null);
+	this.collection.save(layer("d2", null, term("t1", "tree")), null);
+    }
+
+    @Test
+    public void equalityMatchesArrayElementsThroughDottedPaths() {
+	assertEquals(Arrays.asList("d1", "d1_2"), this.ids(new BasicDBObject("annotations.lemma", "house")));
+	assertEquals(Arrays.asList("d2"), this.ids(new BasicDBObject("doc_id", "d2")));
+	assertTrue(this.ids(new BasicDBObject("annotations.lemma", "boat")).isEmpty());
+    }
+
+    @Test
+    public void queryOperators() {
+	assertEquals(Arrays.asList("d1", "d1_1", "d1_2", "d2"), this.ids(new BasicDBObject("doc_id", new BasicDBObject("$in", Arrays.asList("d1", "d2")))));
+	assertEquals(Arrays.asList("d1", "d2"), this.ids(new BasicDBObject("paragraph", new BasicDBObject("$exists", false))));
+	assertEquals(Arrays.asList("d1_1", "d1_2"), this.ids(new BasicDBObject("paragraph", new BasicDBObject("$gte", 1))));
+	assertEquals(Arrays.asList("d1_2"), this.ids(new BasicDBObject("paragraph", new BasicDBObject("$gt", 1))));
+	assertEquals(Arrays.asList("d1_1"), this.ids(new BasicDBObject("paragraph", new BasicDBObject("$lt", 2))));
+	assertEquals(Arrays.asList("d1_1", "d1_2"), this.ids(new BasicDBObject("paragraph", new BasicDBObject("$gte", 1).append("$lte", 2))));
+	assertEquals(Arrays.asList("d2"), this.ids(new BasicDBObject("doc_id", new BasicDBObject("$gt", "d1"))));
+	assertEquals(Arrays.asList("d1_1", "d1_2", "d2"), this.ids(new BasicDBObject("_id", new BasicDBObject("$ne", "d1"))));
+	List<DBObject> or = Arrays.<DBObject>asList(new BasicDBObject("annotations.lemma", "car"), new BasicDBObject("doc_id", "d2"));
+	assertEquals(Arrays.asList("d1_1", "d2"), this.ids(new BasicDBObject("$or", or)));
+    }
+
+    @Test(expected = MongoException.class)
+    public void unsupportedOperatorsFail() {
+	this.collection.find(new BasicDBObject("paragraph", new BasicDBObject("$mod", Arrays.asList(2, 0))), null, null);
+    }
+
+    @Test
+    public void sortProjectionAndLimit() {
+	DBObject sort = new BasicDBObject("doc_id", -1).append("paragraph", 1);
+	List<DBObject> objs = this.collection.find(new BasicDBObject(), new BasicDBObject("paragraph", 1), sort, 3);
+	assertEquals(3, objs.size());
+	assertEquals("d2", objs.get(0).get("_id"));
+	// Missing values sort first
+	assertEquals("d1", objs.get(1).get("_id"));
+	assertEquals(1, objs.get(2).get("paragraph"));
+	assertFalse(objs.get(2).containsField("annotations"));
+	assertFalse(objs.get(2).containsField("doc_id"));
+    }
+
+    @Test
+    public void findElementsReturnsTheMatchingElementsOfEveryObject() {
+	DBObject ids = new BasicDBObject("$in", Arrays.asList("t1", "t2", "t4"));
+	List<DBObject> elements = this.collection.findElements(new BasicDBObject("doc_id", "d1").append("annotations.id", ids), "annotations", new BasicDBObject("id", ids));
+	assertEquals(Arrays.asList(term("t1", "house"), term("t2", "red"), term("t4", "house")), elements);
+	assertTrue(this.collection.findElements(new BasicDBObject("doc_id", "d3"), "annotations", new BasicDBObject("id", "t1")).isEmpty());
+    }
+
+    @Test
+    public void stringsAreSortedByCodePoints() {
+	// U+FFFD sorts before U+1F600, whose UTF-16 surrogates sort before it
+	this.collection.save(new BasicDBObject("_id", "\uD83D\uDE00"), null);
+	this.collection.save(new BasicDBObject("_id", "\uFFFD"), null);
+	List<String> ids = this.ids(new BasicDBObject("_id", new BasicDBObject("$gt", "d2")));
+	assertEquals(Arrays.asList("\uFFFD", "\uD83D\uDE00"), ids);
+    }
+
+    @Test
+    public void findReturnsCopies() {
+	DBObject obj = this.collection.findOne(new BasicDBObject("_id", "d2"), null);
+	obj.put("doc_id", "changed");
+	assertEquals("d2", this.collection.findOne(new BasicDBObject("_id", "d2"), null).get("doc_id"));
+    }
+
+    @Test
+    public void updateOperators() {
+	DBObject update = new BasicDBObject("$set", new BasicDBObject("annotations.0.lemma", "home"))
+	    .append("$setOnInsert", new BasicDBObject("created", true))
+	    .append("$push", new BasicDBObject("extra", new BasicDBObject("$each", Arrays.asList(1, 2))));
+	this.collection.update(new BasicDBObject("_id", "d2"), update, true, null);
+	DBObject obj = this.collection.findOne(new BasicDBObject("_id", "d2"), null);
+	assertEquals("home", ((DBObject) ((List<?>) obj.get("annotations")).get(0)).get("lemma"));
+	assertFalse(obj.containsField("created"));
+	assertEquals(Arrays.asList(1, 2), obj.get("extra"));
+	this.collection.update(new BasicDBObject("_id", "d2"), new BasicDBObject("$push", new BasicDBObject("extra", 3)), true, null);
+	assertEquals(Arrays.asList(1, 2, 3), this.collection.findOne(new BasicDBObject("_id", "d2"), null).get("extra"));
+    }
+
+    @Test
+    public void upsertsCreateTheObjectFromTheQuery() {
+	DBObject update = new BasicDBObject("$setOnInsert", new BasicDBObject("created", true));
+	this.collection.update(new BasicDBObject("_id", "d3").append("doc_id", "d3"), update, true, null);
+	DBObject obj = this.collection.findOne(new BasicDBObject("doc_id", "d3"), null);
+	assertEquals("d3", obj.get("_id"));
+	assertEquals(true, obj.get("created"));
+	// Conditional updates without upsert leave the collection as it is
+	this.collection.update(new BasicDBObject("_id", "d4").append("paragraph", 1), update, false, null);
+	assertNull(this.collection.findOne(new BasicDBObject("_id", "d4"), null));
+    }
+
+    @Test
+    public void replacingAnObjectUpdatesTheDocIdIndex() {
+	this.collection.save(new BasicDBObject("_id", "d1_1").append("doc_id", "d3"), null);
+	assertEquals(Arrays.asList("d1", "d1_2"), this.ids(new BasicDBObject("doc_id", "d1")));
+	assertEquals(Arrays.asList("d1_1"), this.ids(new BasicDBObject("doc_id", "d3")));
+	this.collection.remove(new BasicDBObject("doc_id", new BasicDBObject("$in", Arrays.asList("d1"))), WriteConcern.ACKNOWLEDGED);
+	assertEquals(Arrays.asList("d1_1", "d2"), this.ids(new BasicDBObject()));
+    }
+
+    @Test(expected = MongoException.class)
+    public void insertRejectsDuplicateIds() {
+	this.collection.insert(new BasicDBObject("_id", "d2"), null);
+    }
+
+    @Test
+    public void distinctValues() {
+	List<?> lemmas = this.collection.distinct("annotations.lemma", new BasicDBObject());
+	assertEquals(4, lemmas.size());
+	assertTrue(lemmas.containsAll(Arrays.asList("house", "red", "car", "tree")));
+    }
+
+    private List<String> ids(DBObject query) {
+	List<String> ids = new ArrayList<String>();
+	for (DBObject obj : this.collection.find(query, new BasicDBObject("_id", 1), new BasicDBObject("_id", 1))) {
+	    ids.add((String) obj.get("_id"));
+	}
+	return ids;
+    }
+
+    private static DBObject layer(String docId, Integer paragraph, DBObject... annotations) {
+	BasicDBObject obj = new BasicDBObject("_id", (paragraph == null) ? docId : docId + "_" + paragraph).append("doc_id", docId);
+	if (paragraph != null) {
+	    obj.append("paragraph", paragraph);
+	}
+	BasicDBList list = new BasicDBList();
+	list.addAll(Arrays.asList(annotations));
+	return obj.append("annotations", list);
+    }
+
+    private static DBObject term(String id, String lemma) {
+	return new BasicDBObject("id", id).append("lemma", lemma);
+    }
+
+}
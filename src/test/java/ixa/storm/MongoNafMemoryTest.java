@@ -0,0 +1,462 @@
+package ixa.storm;
+
+import ixa.kaflib.*;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import static org.junit.Assert.*;
+
+
+// Round trips of NAF documents through MongoNaf on top of the in-memory storage, in both layouts
+@RunWith(Parameterized.class)
+public class MongoNafMemoryTest {
+
+    private final boolean packed;
+    private MongoNafMemoryStorage storage;
+    private MongoNaf mongoNaf;
+
+
+    public MongoNafMemoryTest(boolean packed) {
+	this.packed = packed;
+    }
+
+    @Parameters(name = "packed={0}")
+    public static Collection<Object[]> layouts() {
+	return Arrays.asList(new Object[][] {{false}, {true}});
+    }
+
+    @Before
+    public void setUp() {
+	this.storage = new MongoNafMemoryStorage();
+	this.mongoNaf = MongoNaf.newInstance(this.storage, this.packed);
+    }
+
+    @Test
+    public void insertAndGetWholeDocument() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	KAFDocument stored = this.mongoNaf.getNaf("doc1");
+	assertEquals(naf.getRawText(), stored.getRawText());
+	assertEquals(NafDocuments.getWfForms(naf), NafDocuments.getWfForms(stored));
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(stored));
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(stored));
+	assertEquals(NafDocuments.getDeps(naf), NafDocuments.getDeps(stored));
+	assertEquals(NafDocuments.getPredicates(naf), NafDocuments.getPredicates(stored));
+	assertEquals(Arrays.asList("pos-tagger", "tokenizer"), sorted(this.mongoNaf.getLinguisticProcessorNames("doc1")));
+    }
+
+    @Test
+    public void getNafReadsRequestedLayersAndTheirAnchors() throws Exception {
+	KAFDocument naf = NafDocuments.create(1);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	KAFDocument stored = this.mongoNaf.getNaf("doc1", Arrays.asList("entities"));
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(stored));
+	assertEquals(naf.getTerms().size(), stored.getTerms().size());
+	assertTrue(stored.getPredicates().isEmpty());
+	assertTrue(stored.getRawText() == null || stored.getRawText().isEmpty());
+    }
+
+    @Test
+    public void metricsEstimateTheSizesFromASample() throws Exception {
+	this.mongoNaf.enableMetrics(null);
+	KAFDocument naf = NafDocuments.create(1);
+	for (int i = 0; i < MongoNafMetrics.SIZE_SAMPLING; i++) {
+	    this.mongoNaf.insertLayer("doc" + i, naf, "text");
+	}
+	MongoNafLayerStats encode = this.mongoNaf.getMetrics().getStats("text", MongoNafMetrics.ENCODE);
+	MongoNafLayerStats store = this.mongoNaf.getMetrics().getStats("text", MongoNafMetrics.STORE);
+	assertEquals(1, encode.getCount());
+	assertEquals(MongoNafMetrics.SIZE_SAMPLING, store.getCount());
+	assertTrue(encode.getBytes() > 0);
+	assertEquals(encode.getBytes() * MongoNafMetrics.SIZE_SAMPLING, store.getBytes());
+    }
+
+    @Test
+    public void getNafWithAReadExecutorReadsTheSameDocument() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	ExecutorService executor = Executors.newFixedThreadPool(4);
+	try {
+	    this.mongoNaf.setReadExecutor(executor);
+	    KAFDocument stored = this.mongoNaf.getNaf("doc1");
+	    assertEquals(NafDocuments.getWfForms(naf), NafDocuments.getWfForms(stored));
+	    assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(stored));
+	    assertEquals(NafDocuments.getPredicates(naf), NafDocuments.getPredicates(stored));
+	} finally {
+	    this.mongoNaf.setReadExecutor(null);
+	    executor.shutdown();
+	}
+    }
+
+    @Test
+    public void insertLinguisticProcessorsKeepsTheStoredOnes() throws Exception {
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1));
+	KAFDocument naf = new KAFDocument("en", "v3");
+	naf.addLinguisticProcessor("text", "tokenizer").setVersion("2.0");
+	naf.addLinguisticProcessor("entities", "ner");
+	this.mongoNaf.insertLinguisticProcessors("doc1", naf);
+	assertEquals(Arrays.asList("ner", "pos-tagger", "tokenizer"), sorted(this.mongoNaf.getLinguisticProcessorNames("doc1")));
+	KAFDocument stored = new KAFDocument("en", "v3");
+	this.mongoNaf.getLinguisticProcessors("doc1", stored);
+	List<String> versions = new ArrayList<String>();
+	for (KAFDocument.LinguisticProcessor lp : stored.getLinguisticProcessorList()) {
+	    if (lp.getName().equals("tokenizer")) {
+		versions.add(lp.getVersion());
+	    }
+	}
+	assertEquals(Arrays.asList("1.0"), versions);
+    }
+
+    @Test(expected = MongoNafException.class)
+    public void getNafOfMissingDocumentFails() throws Exception {
+	this.mongoNaf.getNaf("missing");
+    }
+
+    @Test
+    public void insertNafDocumentsStoresEveryDocument() throws Exception {
+	Map<String, KAFDocument> nafs = new LinkedHashMap<String, KAFDocument>();
+	for (int i = 1; i <= 3; i++) {
+	    nafs.put("doc" + i, NafDocuments.create(i));
+	}
+	this.mongoNaf.setBatchSize(2);
+	assertTrue(this.mongoNaf.insertNafDocuments(nafs).isEmpty());
+	Map<String, KAFDocument> stored = this.mongoNaf.getNafs(new ArrayList<String>(nafs.keySet()), Arrays.asList("srl"));
+	for (Map.Entry<String, KAFDocument> naf : nafs.entrySet()) {
+	    assertEquals(NafDocuments.getTermLemmas(naf.getValue()), NafDocuments.getTermLemmas(stored.get(naf.getKey())));
+	    assertEquals(NafDocuments.getPredicates(naf.getValue()), NafDocuments.getPredicates(stored.get(naf.getKey())));
+	}
+	assertEquals(Arrays.asList("pos-tagger", "tokenizer"), sorted(this.mongoNaf.getLinguisticProcessorNames("doc3")));
+    }
+
+    @Test
+    public void getNafsReadsSeveralDocuments() throws Exception {
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1));
+	this.mongoNaf.insertNafDocument("doc2", NafDocuments.create(2));
+	Map<String, KAFDocument> nafs = this.mongoNaf.getNafs(Arrays.asList("doc2", "missing", "doc1"), Arrays.asList("terms"));
+	assertEquals(Arrays.asList("doc2", "doc1"), new ArrayList<String>(nafs.keySet()));
+	assertEquals(2 * NafDocuments.SENTENCES * NafDocuments.TOKENS, nafs.get("doc2").getTerms().size());
+	assertEquals(NafDocuments.SENTENCES * NafDocuments.TOKENS, nafs.get("doc1").getTerms().size());
+    }
+
+    @Test
+    public void anInstanceIsSharedByConcurrentWritersAndReaders() throws Exception {
+	final KAFDocument naf = NafDocuments.create(2);
+	final List<String> lemmas = NafDocuments.getTermLemmas(naf);
+	ExecutorService executor = Executors.newFixedThreadPool(8);
+	try {
+	    List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+	    for (int i = 0; i < 32; i++) {
+		final String docId = "doc" + i;
+		results.add(executor.submit(new Callable<Boolean>() {
+		    public Boolean call() throws Exception {
+			mongoNaf.insertNafDocument(docId, naf);
+			return lemmas.equals(NafDocuments.getTermLemmas(mongoNaf.getNaf(docId, Arrays.asList("terms"))));
+		    }
+		}));
+	    }
+	    for (Future<Boolean> result : results) {
+		assertTrue(result.get());
+	    }
+	} finally {
+	    executor.shutdown();
+	}
+    }
+
+    @Test
+    public void insertAndGetParagraphs() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "P");
+	KAFDocument paragraph = this.mongoNaf.getNaf("doc1", Arrays.asList("srl"), "P", 2);
+	assertEquals(NafDocuments.SENTENCES * NafDocuments.TOKENS, paragraph.getTerms().size());
+	assertEquals("lemma7", paragraph.getTerms().get(0).getLemma());
+	assertEquals(NafDocuments.SENTENCES, paragraph.getPredicates().size());
+	KAFDocument whole = this.mongoNaf.getNaf("doc1");
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(whole));
+	assertEquals(NafDocuments.getPredicates(naf), NafDocuments.getPredicates(whole));
+    }
+
+    @Test
+    public void getNafReadsARangeOfParts() throws Exception {
+	KAFDocument naf = NafDocuments.create(3);
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "S");
+	KAFDocument range = this.mongoNaf.getNaf("doc1", Arrays.asList("srl"), "S", 2, 4);
+	assertEquals(NafDocuments.getTermLemmas(naf).subList(NafDocuments.TOKENS, 4 * NafDocuments.TOKENS), NafDocuments.getTermLemmas(range));
+	assertEquals(3, range.getPredicates().size());
+	// Open ends
+	assertEquals(4 * NafDocuments.TOKENS, this.mongoNaf.getNaf("doc1", Arrays.asList("terms"), "S", 3, null).getTerms().size());
+	assertEquals(2 * NafDocuments.TOKENS, this.mongoNaf.getNaf("doc1", Arrays.asList("terms"), "S", null, 2).getTerms().size());
+    }
+
+    @Test
+    public void getNafOfDocumentStoredWholeAndByParts() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1), 1, null, true);
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(this.mongoNaf.getNaf("doc1")));
+	Map<String, KAFDocument> stored = this.mongoNaf.getNafs(Arrays.asList("doc1"), Arrays.asList("srl"));
+	assertEquals(NafDocuments.getPredicates(naf), NafDocuments.getPredicates(stored.get("doc1")));
+    }
+
+    @Test
+    public void getNafMergesTheStoredParts() throws Exception {
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1), 1, null, true);
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1), 2, null, true);
+	assertEquals(2 * NafDocuments.SENTENCES * NafDocuments.TOKENS, this.mongoNaf.getNaf("doc1").getTerms().size());
+    }
+
+    @Test
+    public void insertPartitionedReplacesTheWholeDocument() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "P");
+	KAFDocument whole = this.mongoNaf.getNaf("doc1");
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(whole));
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(whole));
+	// Parts written later keep the document partitioned (the first paragraph is the same again)
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1), 1, null, true);
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(this.mongoNaf.getNaf("doc1", Arrays.asList("terms"))));
+    }
+
+    @Test
+    public void getNafOfPartitionedDocumentReadsAnnotationsSpanningParts() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	// An entity on the last term of the first paragraph and the first one of the second paragraph
+	List<Span<Term>> references = new ArrayList<Span<Term>>();
+	references.add(KAFDocument.newTermSpan(new ArrayList<Term>(naf.getTerms().subList(5, 7))));
+	naf.newEntity(references).setType("ORGANIZATION");
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "P");
+	assertEquals(NafDocuments.SENTENCES, this.mongoNaf.getNaf("doc1", Arrays.asList("entities"), "P", 1).getEntities().size());
+	// In the order of the document, though the entity spanning both paragraphs is stored apart
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(this.mongoNaf.getNaf("doc1")));
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(this.mongoNaf.getNafs(Arrays.asList("doc1"), Arrays.asList("entities")).get("doc1")));
+    }
+
+    @Test
+    public void partitioningAgainReplacesTheOldParts() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "S");
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "P");
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(this.mongoNaf.getNaf("doc1")));
+	assertTrue(this.mongoNaf.getNaf("doc1", Arrays.asList("terms"), "S", 1).getTerms().isEmpty());
+    }
+
+    @Test
+    public void wholeLayersReplaceThePartsOfAPartitionedDocument() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "P");
+	this.mongoNaf.insertLayer("doc1", naf, "terms");
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(this.mongoNaf.getNaf("doc1")));
+	naf.getTerms().get(1).setLemma("changed");
+	this.mongoNaf.updateLayer("doc1", naf, "entities", null, null);
+	this.mongoNaf.updateLayer("doc1", naf, "terms", null, null);
+	KAFDocument whole = this.mongoNaf.getNaf("doc1");
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(whole));
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(whole));
+	// The other layers are still read by parts
+	assertEquals(NafDocuments.SENTENCES * NafDocuments.TOKENS, this.mongoNaf.getNaf("doc1", Arrays.asList("text"), "P", 1).getWFs().size());
+	assertTrue(this.mongoNaf.getNaf("doc1", Arrays.asList("terms"), "P", 1).getTerms().isEmpty());
+    }
+
+    @Test
+    public void annotationsAppendedToAPartitionedDocumentGoAtTheEnd() throws Exception {
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", naf, "P");
+	List<Span<Term>> references = new ArrayList<Span<Term>>();
+	references.add(KAFDocument.newTermSpan(new ArrayList<Term>(naf.getTerms().subList(0, 1))));
+	Entity entity = naf.newEntity(references);
+	entity.setType("ORGANIZATION");
+	this.mongoNaf.appendToLayer("doc1", "entities", Arrays.asList(entity), null, null);
+	assertEquals(NafDocuments.getEntities(naf), NafDocuments.getEntities(this.mongoNaf.getNaf("doc1")));
+    }
+
+    @Test
+    public void appendToLayerAddsTheAnnotationsToTheStoredOnes() throws Exception {
+	KAFDocument naf = NafDocuments.create(1);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	List<Span<Term>> references = new ArrayList<Span<Term>>();
+	references.add(KAFDocument.newTermSpan(new ArrayList<Term>(naf.getTerms().subList(2, 3))));
+	Entity entity = naf.newEntity(references);
+	entity.setType("ORGANIZATION");
+	this.mongoNaf.appendToLayer("doc1", "entities", Arrays.asList(entity), null, null);
+	List<String> stored = NafDocuments.getEntities(this.mongoNaf.getNaf("doc1", Arrays.asList("entities")));
+	assertEquals(NafDocuments.SENTENCES + 1, stored.size());
+	assertEquals(NafDocuments.getEntities(naf), stored);
+    }
+
+    @Test
+    public void updateLayerStoresTheChanges() throws Exception {
+	KAFDocument naf = NafDocuments.create(1);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	naf.getTerms().get(1).setLemma("changed");
+	this.mongoNaf.updateLayer("doc1", naf, "terms", null, null);
+	KAFDocument stored = this.mongoNaf.getNaf("doc1", Arrays.asList("terms"));
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(stored));
+	assertEquals("changed", stored.getTerms().get(1).getLemma());
+    }
+
+    @Test
+    public void updatesRefreshTheInsertionTime() throws Exception {
+	this.mongoNaf.enableRetention(3600);
+	KAFDocument naf = NafDocuments.create(1);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	Date inserted = this.getInsertedAt("terms");
+	assertNotNull(inserted);
+	Thread.sleep(10);
+	naf.getTerms().get(1).setLemma("changed");
+	this.mongoNaf.updateLayer("doc1", naf, "terms", null, null);
+	Date updated = this.getInsertedAt("terms");
+	assertTrue(updated.after(inserted));
+	Thread.sleep(10);
+	this.mongoNaf.appendToLayer("doc1", "entities", naf.getEntities(), null, null);
+	assertTrue(this.getInsertedAt("entities").after(updated));
+    }
+
+    @Test
+    public void theLogOnlyGetsTheIndexOfTheRetention() throws Exception {
+	DBObject partKeys = new BasicDBObject("doc_id", 1).append("paragraph", 1).append("sentence", 1);
+	assertTrue(this.storage.getCollection("terms").getIndexKeys().contains(partKeys));
+	assertEquals(Arrays.asList(new BasicDBObject("_id", 1)), this.storage.getCollection("log").getIndexKeys());
+	this.mongoNaf.enableRetention(3600);
+	assertEquals(Arrays.asList(new BasicDBObject("_id", 1), new BasicDBObject("inserted_at", 1)), this.storage.getCollection("log").getIndexKeys());
+    }
+
+    private Date getInsertedAt(String layerName) {
+	MongoNafCollection collection = this.storage.getCollection(this.packed ? "documents" : layerName);
+	return (Date) collection.findOne(new BasicDBObject("_id", "doc1"), null).get("inserted_at");
+    }
+
+    @Test
+    public void insertLayerReplacesTheLayer() throws Exception {
+	KAFDocument naf = NafDocuments.create(1);
+	this.mongoNaf.insertNafDocument("doc1", naf);
+	naf.getEntities().get(0).setType("ORGANIZATION");
+	this.mongoNaf.insertLayer("doc1", naf, "entities");
+	assertEquals("ORGANIZATION", this.mongoNaf.getNaf("doc1", Arrays.asList("entities")).getEntities().get(0).getType());
+    }
+
+    @Test
+    public void theStorageCanBeUsedAgainAfterDroppingIt() throws Exception {
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1));
+	MongoNafCollection header = this.storage.getCollection(this.packed ? "documents" : "header");
+	this.mongoNaf.drop();
+	assertSame(header, this.storage.getCollection(this.packed ? "documents" : "header"));
+	assertTrue(header.find(new BasicDBObject(), null, null).isEmpty());
+	KAFDocument naf = NafDocuments.create(2);
+	this.mongoNaf.insertNafDocument("doc2", naf);
+	assertEquals(NafDocuments.getTermLemmas(naf), NafDocuments.getTermLemmas(this.mongoNaf.getNaf("doc2")));
+    }
+
+    @Test
+    public void removeDocsRemovesEveryLayer() throws Exception {
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1));
+	this.mongoNaf.insertNafDocument("doc2", NafDocuments.create(1));
+	this.mongoNaf.insertNafDocumentPartitioned("doc3", NafDocuments.create(2), "S");
+	this.mongoNaf.removeDocs(Arrays.asList("doc1", "doc3"));
+	assertTrue(this.mongoNaf.getNafs(Arrays.asList("doc1", "doc2", "doc3"), Arrays.asList("all")).keySet().equals(java.util.Collections.singleton("doc2")));
+	assertFalse(this.mongoNaf.findAnnotations("terms", "lemma", "lemma1").next().getDocId().equals("doc1"));
+    }
+
+    @Test
+    public void findAnnotationsReturnsTheMatchingDocuments() throws Exception {
+	this.mongoNaf.insertNafDocument("doc1", NafDocuments.create(1));
+	this.mongoNaf.insertNafDocument("doc2", NafDocuments.create(2));
+	this.mongoNaf.insertNafDocumentPartitioned("doc3", NafDocuments.create(2), "P");
+	List<String> matches = new ArrayList<String>();
+	Iterator<MongoNafMatch> it = this.mongoNaf.findAnnotations("terms", "lemma", "lemma8");
+	while (it.hasNext()) {
+	    MongoNafMatch match = it.next();
+	    matches.add(match.getDocId() + ":" + match.getParagraph());
+	}
+	assertEquals(Arrays.asList("doc2:null", "doc3:2"), matches);
+	assertFalse(this.mongoNaf.findAnnotations("entities", "type", "ORGANIZATION").hasNext());
+	assertTrue(this.mongoNaf.findAnnotations("srl", "external_references.reference", "predicate.01").hasNext());
+    }
+
+    @Test
+    public void getAnnotationsReadsSeveralIdsOfTheSamePart() throws Exception {
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", NafDocuments.create(2), "P");
+	this.mongoNaf.insertNafDocument("doc2", NafDocuments.create(2));
+	Map<String, DBObject> terms = this.mongoNaf.getAnnotations("doc1", "terms", Arrays.asList("t1", "t2", "t8", "t99"));
+	assertEquals(3, terms.size());
+	assertEquals("lemma1", terms.get("t1").get("lemma"));
+	assertEquals("lemma2", terms.get("t2").get("lemma"));
+	assertEquals("lemma8", terms.get("t8").get("lemma"));
+	// Layers stored with the columnar encoding are read whole
+	this.mongoNaf.setColumnarEncoding(true);
+	this.mongoNaf.insertNafDocument("doc3", NafDocuments.create(1));
+	assertEquals("lemma3", this.mongoNaf.getAnnotation("doc3", "terms", "t3").get("lemma"));
+	assertNull(this.mongoNaf.getAnnotation("doc3", "terms", "t99"));
+    }
+
+    @Test
+    public void iterateCorpusMergesTheStoredDocumentsInOrder() throws Exception {
+	this.mongoNaf.insertNafDocument("doc2", NafDocuments.create(1));
+	this.mongoNaf.insertNafDocumentPartitioned("doc1", NafDocuments.create(2), "P");
+	this.mongoNaf.insertNafDocument("doc3", NafDocuments.create(2));
+	this.mongoNaf.insertNafDocument("doc3", NafDocuments.create(1), 1, null, true);
+	this.mongoNaf.insertNafDocument("doc4", NafDocuments.create(1));
+	this.mongoNaf.removeDoc("doc4");
+	// Objects of a document without header are skipped
+	this.storage.getCollection(this.packed ? "documents" : "terms").save(new BasicDBObject("_id", "doc0_1").append("doc_id", "doc0").append("paragraph", 1), null);
+	ExecutorService executor = Executors.newFixedThreadPool(2);
+	try {
+	    for (MongoNafCorpusIterator it : Arrays.asList(this.mongoNaf.iterateCorpus(Arrays.asList("terms")),
+							   this.mongoNaf.iterateCorpus(Arrays.asList("terms"), 2, executor, 2))) {
+		List<String> docIds = new ArrayList<String>();
+		List<Integer> terms = new ArrayList<Integer>();
+		while (it.hasNext()) {
+		    terms.add(it.next().getTerms().size());
+		    docIds.add(it.getDocId());
+		}
+		it.close();
+		assertEquals(Arrays.asList("doc1", "doc2", "doc3"), docIds);
+		int paragraph = NafDocuments.SENTENCES * NafDocuments.TOKENS;
+		assertEquals(Arrays.asList(2 * paragraph, paragraph, 2 * paragraph), terms);
+	    }
+	} finally {
+	    executor.shutdown();
+	}
+    }
+
+    @Test
+    public void durabilityProfilesSetTheConcernOfEveryLayer() throws Exception {
+	this.mongoNaf.setDurabilityProfile("fast");
+	assertEquals(WriteConcern.JOURNALED, this.mongoNaf.getWriteConcern("header"));
+	assertEquals(WriteConcern.UNACKNOWLEDGED, this.mongoNaf.getWriteConcern("terms"));
+	assertEquals(WriteConcern.UNACKNOWLEDGED, this.mongoNaf.getWriteConcern("log"));
+	this.mongoNaf.setDurabilityProfile("durable");
+	assertEquals(WriteConcern.JOURNALED, this.mongoNaf.getWriteConcern("log"));
+	this.mongoNaf.setDurabilityProfile("default");
+	assertEquals(this.storage.getDefaultWriteConcern(), this.mongoNaf.getWriteConcern("log"));
+    }
+
+    @Test(expected = MongoNafException.class)
+    public void unknownDurabilityProfilesFail() throws Exception {
+	this.mongoNaf.setDurabilityProfile("unsafe");
+    }
+
+    private static List<String> sorted(List<String> values) {
+	List<String> sorted = new ArrayList<String>(values);
+	java.util.Collections.sort(sorted);
+	return sorted;
+    }
+
+}
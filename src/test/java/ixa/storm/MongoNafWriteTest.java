@@ -0,0 +1,115 @@
+package ixa.storm;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+
+// Coalesced writes must leave the same object as the writes applied one after another
+public class MongoNafWriteTest {
+
+    private MongoNafCollection collection;
+
+
+    @Before
+    public void setUp() {
+	this.collection = new MongoNafMemoryStorage().getCollection("terms");
+    }
+
+    private MongoNafWrite update(DBObject update) {
+	return MongoNafWrite.update(this.collection, "doc1", "doc1", update, WriteConcern.ACKNOWLEDGED);
+    }
+
+    private MongoNafWrite replace(DBObject obj) {
+	obj.put("_id", "doc1");
+	return MongoNafWrite.replace(this.collection, "doc1", obj, WriteConcern.ACKNOWLEDGED);
+    }
+
+    private static DBObject push(Object... values) {
+	return new BasicDBObject("$push", new BasicDBObject("annotations", new BasicDBObject("$each", Arrays.asList(values))));
+    }
+
+    // Object stored by applying the writes in order, checking the coalesced write stores the same one
+    private DBObject assertCoalescedEquals(MongoNafWrite first, MongoNafWrite later) {
+	MongoNafWrite coalesced = first.coalesce(later);
+	assertNotNull(coalesced);
+	first.execute();
+	later.execute();
+	DBObject expected = this.collection.findOne(new BasicDBObject("_id", "doc1"), null);
+	this.collection.remove(new BasicDBObject(), WriteConcern.ACKNOWLEDGED);
+	coalesced.execute();
+	assertEquals(expected, this.collection.findOne(new BasicDBObject("_id", "doc1"), null));
+	return expected;
+    }
+
+    @Test
+    public void firstSetOnInsertWins() {
+	DBObject obj = this.assertCoalescedEquals(this.update(new BasicDBObject("$setOnInsert", new BasicDBObject("name", "first"))),
+						  this.update(new BasicDBObject("$setOnInsert", new BasicDBObject("name", "later"))));
+	assertEquals("first", obj.get("name"));
+    }
+
+    @Test
+    public void pushedValuesAreConcatenated() {
+	DBObject obj = this.assertCoalescedEquals(this.update(push(1, 2)), this.update(push(3)));
+	assertEquals(Arrays.asList(1, 2, 3), obj.get("annotations"));
+    }
+
+    @Test
+    public void laterSetWins() {
+	DBObject obj = this.assertCoalescedEquals(this.update(new BasicDBObject("$set", new BasicDBObject("lang", "en").append("version", "v3"))),
+						  this.update(new BasicDBObject("$set", new BasicDBObject("lang", "es"))));
+	assertEquals("es", obj.get("lang"));
+	assertEquals("v3", obj.get("version"));
+    }
+
+    @Test
+    public void updatesAreAppliedToAReplacement() {
+	DBObject update = push(3);
+	update.put("$setOnInsert", new BasicDBObject("doc_id", "other"));
+	update.put("$set", new BasicDBObject("layers.terms", Arrays.asList(4)));
+	DBObject obj = this.assertCoalescedEquals(this.replace(new BasicDBObject("doc_id", "doc1").append("annotations", Arrays.asList(1, 2))),
+						  this.update(update));
+	assertEquals(Arrays.asList(1, 2, 3), obj.get("annotations"));
+	assertEquals("doc1", obj.get("doc_id"));
+    }
+
+    @Test
+    public void itemsAreSetInAReplacement() {
+	DBObject obj = this.assertCoalescedEquals(this.replace(new BasicDBObject("annotations", Arrays.asList(1, 2))),
+						  this.update(new BasicDBObject("$set", new BasicDBObject("annotations.1", 5))));
+	assertEquals(Arrays.asList(1, 5), obj.get("annotations"));
+    }
+
+    @Test
+    public void laterReplacementWins() {
+	this.assertCoalescedEquals(this.update(push(1)), this.replace(new BasicDBObject("annotations", Arrays.asList(2))));
+    }
+
+    @Test
+    public void overlappingPathsAreNotMerged() {
+	MongoNafWrite set = this.update(new BasicDBObject("$set", new BasicDBObject("annotations.0", 5)));
+	assertNull(set.coalesce(this.update(push(1))));
+	assertNull(this.update(push(1)).coalesce(set));
+    }
+
+    @Test
+    public void writesWhichCantBeAppliedExactlyAreNotMerged() {
+	// Operators other than $set, $setOnInsert and $push
+	assertNull(this.update(push(1)).coalesce(this.update(new BasicDBObject("$inc", new BasicDBObject("count", 1)))));
+	// A $push to a value which isn't an array
+	assertNull(this.replace(new BasicDBObject("annotations", "text")).coalesce(this.update(push(1))));
+	// An item out of the array
+	assertNull(this.replace(new BasicDBObject("annotations", Arrays.asList(1))).coalesce(this.update(new BasicDBObject("$set", new BasicDBObject("annotations.3", 5)))));
+	// Conditional updates
+	DBObject query = new BasicDBObject("_id", "doc1").append("lps.name", new BasicDBObject("$ne", "tok"));
+	MongoNafWrite conditional = MongoNafWrite.updateIf(this.collection, "doc1", query, new BasicDBObject("$push", new BasicDBObject("lps", "tok")), WriteConcern.ACKNOWLEDGED);
+	assertNull(conditional.coalesce(conditional));
+    }
+
+}
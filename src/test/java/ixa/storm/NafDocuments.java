@@ -0,0 +1,108 @@
+package ixa.storm;
+
+import ixa.kaflib.*;
+import java.util.List;
+import java.util.ArrayList;
+
+
+// Small NAF documents for the tests: paragraphs of SENTENCES sentences of TOKENS tokens. Every token
+// has a term (lemma "lemma<N>"), each sentence a dependency chain, an entity on its first term and a
+// predicate on its second one with an A0 role on the first.
+class NafDocuments {
+
+    static final int SENTENCES = 2;
+    static final int TOKENS = 3;
+
+
+    static KAFDocument create(int paragraphs)
+    {
+	KAFDocument naf = new KAFDocument("en", "v3");
+	naf.addLinguisticProcessor("text", "tokenizer").setVersion("1.0");
+	naf.addLinguisticProcessor("terms", "pos-tagger");
+	StringBuilder rawText = new StringBuilder();
+	int token = 0;
+	for (int paragraph = 1; paragraph <= paragraphs; paragraph++) {
+	    for (int i = 0; i < SENTENCES; i++) {
+		int sent = (paragraph - 1) * SENTENCES + i + 1;
+		List<Term> terms = new ArrayList<Term>();
+		for (int j = 0; j < TOKENS; j++) {
+		    token++;
+		    String form = "form" + token;
+		    WF wf = naf.newWF(form, rawText.length(), sent);
+		    wf.setPara(paragraph);
+		    wf.setLength(form.length());
+		    rawText.append(form).append(' ');
+		    List<WF> wfs = new ArrayList<WF>();
+		    wfs.add(wf);
+		    Term term = naf.newTerm(KAFDocument.newWFSpan(wfs));
+		    term.setType("open");
+		    term.setLemma("lemma" + token);
+		    term.setPos("N");
+		    terms.add(term);
+		}
+		for (int j = 1; j < terms.size(); j++) {
+		    naf.newDep(terms.get(j - 1), terms.get(j), "dep");
+		}
+		List<Span<Term>> references = new ArrayList<Span<Term>>();
+		references.add(KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(0, 1))));
+		Entity entity = naf.newEntity(references);
+		entity.setType((sent % 2 == 0) ? "PERSON" : "LOCATION");
+		Predicate predicate = naf.newPredicate(KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(1, 2))));
+		predicate.addExternalRef(naf.newExternalRef("PropBank", "predicate.0" + sent));
+		predicate.addRole(naf.newRole(predicate, "A0", KAFDocument.newTermSpan(new ArrayList<Term>(terms.subList(0, 1)))));
+	    }
+	}
+	naf.setRawText(rawText.toString());
+	return naf;
+    }
+
+    static List<String> getWfForms(KAFDocument naf)
+    {
+	List<String> forms = new ArrayList<String>();
+	for (WF wf : naf.getWFs()) {
+	    forms.add(wf.getId() + ":" + wf.getForm() + ":" + wf.getSent() + ":" + wf.getPara());
+	}
+	return forms;
+    }
+
+    static List<String> getTermLemmas(KAFDocument naf)
+    {
+	List<String> lemmas = new ArrayList<String>();
+	for (Term term : naf.getTerms()) {
+	    lemmas.add(term.getId() + ":" + term.getLemma() + ":" + term.getSpan().getTargets().get(0).getId());
+	}
+	return lemmas;
+    }
+
+    static List<String> getEntities(KAFDocument naf)
+    {
+	List<String> entities = new ArrayList<String>();
+	for (Entity entity : naf.getEntities()) {
+	    entities.add(entity.getId() + ":" + entity.getType() + ":" + entity.getTerms().get(0).getId());
+	}
+	return entities;
+    }
+
+    static List<String> getPredicates(KAFDocument naf)
+    {
+	List<String> predicates = new ArrayList<String>();
+	for (Predicate predicate : naf.getPredicates()) {
+	    String roles = "";
+	    for (Predicate.Role role : predicate.getRoles()) {
+		roles += role.getSemRole() + "=" + role.getTerms().get(0).getId();
+	    }
+	    predicates.add(predicate.getId() + ":" + predicate.getTerms().get(0).getId() + ":" + roles);
+	}
+	return predicates;
+    }
+
+    static List<String> getDeps(KAFDocument naf)
+    {
+	List<String> deps = new ArrayList<String>();
+	for (Dep dep : naf.getDeps()) {
+	    deps.add(dep.getFrom().getId() + ">" + dep.getTo().getId() + ":" + dep.getRfunc());
+	}
+	return deps;
+    }
+
+}